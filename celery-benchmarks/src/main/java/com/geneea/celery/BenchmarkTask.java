@@ -0,0 +1,14 @@
+package com.geneea.celery;
+
+import java.util.List;
+
+/**
+ * Task dispatched by the benchmarks, registered through the generated loader like any user task.
+ */
+@CeleryTask
+public class BenchmarkTask {
+
+    public int countWords(List<String> words) {
+        return words.size();
+    }
+}
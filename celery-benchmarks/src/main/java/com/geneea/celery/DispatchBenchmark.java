@@ -0,0 +1,65 @@
+package com.geneea.celery;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link CeleryWorker#handleDelivery} running the task in the consumer thread - decoding the message, dispatching it
+ * to the task and reporting the result to a backend that drops it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    // Keep a reference, the log manager holds the loggers weakly.
+    private final Logger workerLog = Logger.getLogger(CeleryWorker.class.getName());
+
+    private CeleryWorker worker;
+    private Envelope envelope;
+    private AMQP.BasicProperties properties;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The worker logs each task on INFO, which would be most of what we measure.
+        workerLog.setLevel(Level.WARNING);
+
+        worker = new CeleryWorker(Stubs.channel(), new Stubs.NullBackend());
+        envelope = new Envelope(1, false, "", "celery");
+        properties = new AMQP.BasicProperties.Builder()
+                .contentEncoding("utf-8")
+                .contentType("application/json")
+                .headers(ImmutableMap.of("id", "c4c7a2b1-3b0e-4d8a-9c55-7a1f1e0b3c2d", "task", Payloads.TASK_NAME))
+                .build();
+        body = new TaskPayloadWriter(new com.fasterxml.jackson.databind.ObjectMapper()).write(Payloads.args(size));
+    }
+
+    @Benchmark
+    public void dispatch() throws IOException {
+        worker.handleDelivery("tag", envelope, properties, body);
+    }
+}
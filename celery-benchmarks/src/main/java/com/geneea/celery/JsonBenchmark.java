@@ -0,0 +1,104 @@
+package com.geneea.celery;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the task arguments on the client and decoding them on the worker, without the rest of the message handling.
+ * <p>
+ * The {@code encodeTree} and {@code decodePerArgument} baselines do it the way it was done before the prepared writer
+ * and readers: building a tree of the payload and looking up a deserializer for every argument of every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private TaskPayloadWriter writer;
+    private TaskMethod method;
+    private Object[] args;
+    private byte[] body;
+    private JavaType[] parameterTypes;
+
+    @Setup
+    public void setUp() throws IOException, DispatchException, NoSuchMethodException {
+        writer = new TaskPayloadWriter(mapper);
+        method = TaskMethod.resolve(Payloads.TASK_NAME, mapper);
+        args = Payloads.args(size);
+        body = writer.write(args);
+
+        Method countWords = BenchmarkTask.class.getMethod("countWords", List.class);
+        parameterTypes = new JavaType[] {mapper.getTypeFactory().constructType(countWords.getGenericParameterTypes()[0])};
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return writer.write(args);
+    }
+
+    @Benchmark
+    public Object[] decode() throws IOException {
+        return method.decodeArgs(body, "utf-8", mapper);
+    }
+
+    @Benchmark
+    public byte[] encodeTree() throws IOException {
+        ArrayNode payload = mapper.createArrayNode();
+        ArrayNode argsArr = payload.addArray();
+        for (Object arg : args) {
+            argsArr.addPOJO(arg);
+        }
+        payload.addObject();
+        payload.addObject()
+                .putNull("callbacks")
+                .putNull("chain")
+                .putNull("chord")
+                .putNull("errbacks");
+        return mapper.writeValueAsBytes(payload);
+    }
+
+    @Benchmark
+    public Object[] decodePerArgument() throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            parser.nextToken();
+            parser.nextToken();
+            Object[] decoded = new Object[parameterTypes.length];
+            int i = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (i < decoded.length) {
+                    decoded[i] = mapper.readValue(parser, parameterTypes[i]);
+                } else {
+                    parser.skipChildren();
+                }
+                i++;
+            }
+            return decoded;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.geneea.celery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Submitting a task and waiting for its result through the {@code memory://} broker and backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryRoundTripBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private final Logger workerLog = Logger.getLogger(CeleryWorker.class.getName());
+
+    private MemoryWorker worker;
+    private Celery client;
+    private Object[] args;
+
+    @Setup
+    public void setUp() {
+        workerLog.setLevel(Level.WARNING);
+        worker = MemoryWorker.builder().brokerUri("memory://benchmark").build();
+        client = Celery.builder().brokerUri("memory://benchmark").backendUri("memory://benchmark").build();
+        args = Payloads.args(size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        worker.close();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException, ExecutionException, InterruptedException {
+        return client.submit(Payloads.TASK_NAME, args).get();
+    }
+}
@@ -0,0 +1,87 @@
+package com.geneea.celery;
+
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.BrokerFactory;
+import com.geneea.celery.spi.Message;
+import com.google.common.collect.ImmutableSet;
+import org.kohsuke.MetaInfServices;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Broker for the {@code null://} URIs. The messages are built as usual but sending them does nothing; the last body
+ * sent is kept in {@link #lastBody} so that the JIT can't optimize the serialization away.
+ */
+@MetaInfServices
+public class NullBrokerFactory implements BrokerFactory {
+
+    public static volatile byte[] lastBody;
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("null");
+    }
+
+    @Override
+    public Broker createBroker(URI uri, ExecutorService executor) {
+        return new Broker() {
+            @Override
+            public void declareQueue(String name) {
+            }
+
+            @Override
+            public Message newMessage() {
+                return new NullMessage();
+            }
+        };
+    }
+
+    private static class NullMessage implements Message, Message.Headers {
+        private byte[] body;
+
+        @Override
+        public void setBody(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public void setContentEncoding(String contentEncoding) {
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+        }
+
+        @Override
+        public Headers getHeaders() {
+            return this;
+        }
+
+        @Override
+        public void send(String queue) {
+            lastBody = body;
+        }
+
+        @Override
+        public void setId(String id) {
+        }
+
+        @Override
+        public void setArgsRepr(String argsRepr) {
+        }
+
+        @Override
+        public void setOrigin(String origin) {
+        }
+
+        @Override
+        public void setReplyTo(String clientId) {
+        }
+
+        @Override
+        public void setTaskName(String task) {
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.geneea.celery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments of {@link BenchmarkTask#countWords(List)} of the sizes the benchmarks are parametrized with.
+ */
+public final class Payloads {
+
+    public static final String TASK_NAME = BenchmarkTask.class.getName() + "#countWords";
+
+    private Payloads() {
+    }
+
+    /**
+     * @param size "small" (10 words, about 100 B of JSON) or "large" (100 000 words, about 1 MB of JSON)
+     * @return task arguments
+     */
+    public static Object[] args(String size) {
+        int count;
+        switch (size) {
+            case "small":
+                count = 10;
+                break;
+            case "large":
+                count = 100_000;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload size " + size);
+        }
+
+        List<String> words = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            words.add("word" + i);
+        }
+        return new Object[] {words};
+    }
+}
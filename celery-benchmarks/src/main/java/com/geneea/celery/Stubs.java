@@ -0,0 +1,57 @@
+package com.geneea.celery;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.rabbitmq.client.Channel;
+import com.geneea.celery.spi.Backend;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * In-memory stand-ins for the transport so that the benchmarks measure only the library code.
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    /**
+     * @return channel whose methods do nothing and return null, zero or false
+     */
+    public static Channel channel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class},
+                (proxy, method, args) -> {
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    } else if (type == int.class) {
+                        return 0;
+                    } else if (type == long.class) {
+                        return 0L;
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Backend dropping all the results.
+     */
+    public static class NullBackend implements Backend {
+
+        @Override
+        public ResultsProvider resultsProviderFor(String clientId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reportResult(String taskId, String queue, String correlationId, Object result) {
+        }
+
+        @Override
+        public void reportException(String taskId, String queue, String correlationId, Throwable exception) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
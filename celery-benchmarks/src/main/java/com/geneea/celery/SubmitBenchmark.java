@@ -0,0 +1,45 @@
+package com.geneea.celery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Celery#submit(String, Object[])} - building and serializing the task message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubmitBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private Celery client;
+    private Object[] args;
+
+    @Setup
+    public void setUp() {
+        client = Celery.builder().brokerUri("null://localhost/").build();
+        args = Payloads.args(size);
+    }
+
+    @Benchmark
+    public Celery.AsyncResult<?> submit() throws IOException {
+        return client.submit(Payloads.TASK_NAME, args);
+    }
+}
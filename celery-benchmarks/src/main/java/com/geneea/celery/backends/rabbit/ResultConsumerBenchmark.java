@@ -0,0 +1,79 @@
+package com.geneea.celery.backends.rabbit;
+
+import com.geneea.celery.Stubs;
+import com.geneea.celery.backends.TaskResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RabbitResultConsumer} - registering a result future and completing it from a result message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultConsumerBenchmark {
+
+    private static final String ID_PREFIX = "00000000-0000-0000-0000-";
+    private static final int ID_COUNTER_LENGTH = 12;
+
+    private RabbitResultConsumer consumer;
+    private Envelope envelope;
+    private AMQP.BasicProperties properties;
+    private byte[] bodyTemplate;
+    private int idOffset;
+    private long counter;
+
+    @Setup
+    public void setUp() throws IOException {
+        consumer = new RabbitResultConsumer(Stubs.channel());
+        envelope = new Envelope(1, false, "", "client");
+        properties = new AMQP.BasicProperties.Builder().build();
+
+        TaskResult result = new TaskResult();
+        result.taskId = ID_PREFIX + Strings.repeat("0", ID_COUNTER_LENGTH);
+        result.status = TaskResult.Status.SUCCESS;
+        result.result = 42;
+        String body = new ObjectMapper().writeValueAsString(result);
+        bodyTemplate = body.getBytes(StandardCharsets.US_ASCII);
+        idOffset = body.indexOf(result.taskId) + ID_PREFIX.length();
+    }
+
+    /**
+     * Each call uses a new task ID, written into a copy of the message template, so that it completes a fresh future.
+     */
+    @Benchmark
+    public Future<Object> complete() throws IOException {
+        byte[] body = bodyTemplate.clone();
+        long id = counter++;
+        for (int i = ID_COUNTER_LENGTH - 1; i >= 0; i--) {
+            body[idOffset + i] = (byte) Character.forDigit((int) (id & 0xf), 16);
+            id >>>= 4;
+        }
+        String taskId = new String(body, idOffset - ID_PREFIX.length(), ID_PREFIX.length() + ID_COUNTER_LENGTH,
+                StandardCharsets.US_ASCII);
+
+        Future<Object> future = consumer.getResult(taskId);
+        consumer.handleDelivery("tag", envelope, properties, body);
+        return future;
+    }
+}
@@ -1,29 +1,52 @@
 package com.geneea.celery;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import lombok.Builder;
 import lombok.extern.java.Log;
 import com.geneea.celery.backends.CeleryBackends;
+import com.geneea.celery.blobstores.CeleryBlobStores;
 import com.geneea.celery.brokers.CeleryBrokers;
+import com.geneea.celery.serializers.CelerySerializers;
 import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BlobStore;
 import com.geneea.celery.spi.Broker;
 import com.geneea.celery.spi.Message;
+import com.geneea.celery.spi.Metrics;
+import com.geneea.celery.spi.Serializer;
+import com.geneea.celery.util.Compression;
+import com.geneea.celery.util.QueueShards;
+import com.geneea.celery.util.Timestamps;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -31,10 +54,20 @@ import java.util.function.Supplier;
  */
 @Log
 public class Celery {
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_BLOB_THRESHOLD = 1024 * 1024;
+
     private final String clientId = UUID.randomUUID().toString();
     private final String clientName = clientId + "@" + getLocalHostName();
-    private final ObjectMapper jsonMapper = new ObjectMapper();
-    private final String queue;
+    private final ConcurrentMap<Serializer, TaskPayloadWriter> payloadWriters = new ConcurrentHashMap<>();
+    private final QueueShards queues;
+    private final int maxPriority;
+    private final Serializer serializer;
+    @Nullable private final Compression compression;
+    private final int compressionThreshold;
+    @Nullable private final BlobStore blobStore;
+    private final int blobThreshold;
+    private final Metrics metrics;
 
     // Memoized suppliers help us to deal with a connection that can't be established yet. It may fail several times
     // with an exception but when it succeeds, it then always returns the same instance.
@@ -50,20 +83,63 @@ public class Celery {
      * @param brokerUri connection to broker that will dispatch messages
      * @param backendUri connection to backend providing responses
      * @param queue routing tag (specifies into which Rabbit queue the messages will go)
+     * @param shards split the queue into this many physical queues, {@code <queue>.0} to {@code <queue>.<shards - 1>},
+     *               to spread the load over more broker cores; the tasks are placed by their
+     *               {@link SubmitOptions#builder() shard key} or in turn. Not sharded by default.
+     * @param maxPriority declare the queue with priorities from 0 up to this one (RabbitMQ recommends at most 10), see
+     *                    {@link SubmitOptions#builder()}; the workers must declare the same. No priorities by default.
+     * @param serializer how to serialize the task arguments ({@code json} or {@code msgpack}, see
+     *                   {@link CelerySerializers}); JSON by default, can be changed for each task with
+     *                   {@link SubmitOptions}
+     * @param compression how to compress the task bodies ({@code zlib}, {@code lz4} or {@code zstd}, see
+     *                    {@link Compression}); not compressed by default
+     * @param compressionThreshold compress only the bodies of at least this many bytes (default
+     *                             {@value #DEFAULT_COMPRESSION_THRESHOLD})
+     * @param blobStoreUri where to keep the large bodies, e.g. {@code file:///shared/celery-blobs}; only their keys
+     *                     are sent through the broker, see {@link BlobStore}. The workers need the same store.
+     * @param blobThreshold keep in the blob store the bodies of at least this many bytes, after compression (default
+     *                      {@value #DEFAULT_BLOB_THRESHOLD})
+     * @param metrics where to record the submit latency, the publish rate and the result round-trip, see
+     *                {@link Metrics}; nothing is recorded by default
      */
     @Builder
     private Celery(final String brokerUri,
                    @Nullable final String queue,
+                   @Nullable final Integer shards,
+                   @Nullable final Integer maxPriority,
                    @Nullable final String backendUri,
-                   @Nullable final ExecutorService executor) {
-        this.queue = queue == null ? "celery" : queue;
+                   @Nullable final ExecutorService executor,
+                   @Nullable final String serializer,
+                   @Nullable final String compression,
+                   @Nullable final Integer compressionThreshold,
+                   @Nullable final String blobStoreUri,
+                   @Nullable final Integer blobThreshold,
+                   @Nullable final Metrics metrics) {
+        this.queues = new QueueShards(queue == null ? "celery" : queue, shards == null ? 1 : shards);
+        this.maxPriority = maxPriority == null ? 0 : maxPriority;
+        this.serializer = CelerySerializers.forName(serializer == null ? "json" : serializer);
+        this.compression = compression == null ? null : Compression.forName(compression);
+        this.compressionThreshold = compressionThreshold == null
+                ? DEFAULT_COMPRESSION_THRESHOLD
+                : compressionThreshold;
+        this.blobStore = blobStoreUri == null ? null : CeleryBlobStores.create(blobStoreUri);
+        this.blobThreshold = blobThreshold == null ? DEFAULT_BLOB_THRESHOLD : blobThreshold;
+        this.metrics = metrics == null ? Metrics.NONE : metrics;
 
         ExecutorService executorService = executor != null ? executor : Executors.newCachedThreadPool();
 
         broker = Suppliers.memoize(() -> {
             Broker b = CeleryBrokers.createBroker(brokerUri, executorService);
+            if (Celery.this.compression != null) {
+                require(b, Broker.Feature.COMPRESSION);
+            }
+            if (Celery.this.blobStore != null) {
+                require(b, Broker.Feature.CLAIM_CHECK);
+            }
             try {
-                b.declareQueue(Celery.this.queue);
+                for (String q : queues.getQueues()) {
+                    b.declareQueue(q, Celery.this.maxPriority);
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -110,6 +186,22 @@ public class Celery {
         return submit(taskClass.getName() + "#" + method, args);
     }
 
+    /**
+     * Submit a Java task with options, as the proxies generated by @{@link CeleryTask} do when given them.
+     *
+     * @param taskClass task implementing class
+     * @param method method in {@code taskClass} that does the work
+     * @param args positional arguments for the method (need to be serializable)
+     * @param options how to submit the task
+     * @return asynchronous result
+     *
+     * @throws IOException if the message couldn't be sent
+     */
+    public AsyncResult<?> submit(Class<?> taskClass, String method, Object[] args, SubmitOptions options)
+            throws IOException {
+        return submit(taskClass.getName() + "#" + method, args, options);
+    }
+
     /**
      * Submit a task by name. A low level method for submitting arbitrary tasks that don't have their proxies
      * generated by @{@link CeleryTask} annotation.
@@ -121,62 +213,312 @@ public class Celery {
      * @throws IOException if the message couldn't be sent
      */
     public AsyncResult<?> submit(String name, Object[] args) throws IOException {
+        return submit(name, args, SubmitOptions.DEFAULTS);
+    }
+
+    /**
+     * Submit a task by name with options of its own, such as a different serializer.
+     *
+     * @param name task name as understood by the worker
+     * @param args positional arguments for the method (need to be serializable)
+     * @param options how to submit the task
+     * @return asynchronous result
+     *
+     * @throws IOException if the message couldn't be sent
+     */
+    public AsyncResult<?> submit(String name, Object[] args, SubmitOptions options) throws IOException {
         // Get the provider early to increase the chance to find out there is a connection problem before actually
         // sending the message.
         //
         // This will help for example in the case when the connection can't be established at all. The connection may
         // still drop after sending the message but there isn't much we can do about it.
         Optional<Backend.ResultsProvider> rp = resultsProvider.get();
+        long start = System.nanoTime();
         String taskId = UUID.randomUUID().toString();
 
-        ArrayNode payload = jsonMapper.createArrayNode();
-        ArrayNode argsArr = payload.addArray();
-        for (Object arg : args) {
-            argsArr.addPOJO(arg);
+        Message message = newTaskMessage(taskId, name, args, options, rp.isPresent());
+        // Wait for the result before sending the task so that the result can't come first.
+        ListenableFuture<Object> result = resultOf(taskId, rp, start);
+        try {
+            message.send(queues.forKey(options.getShardKey()));
+        } catch (IOException | RuntimeException e) {
+            result.cancel(false);
+            throw e;
         }
-        payload.addObject();
-        payload.addObject()
-                .putNull("callbacks")
-                .putNull("chain")
-                .putNull("chord")
-                .putNull("errbacks");
+        metrics.submitted(1, System.nanoTime() - start);
 
-        Message message = broker.get().newMessage();
-        message.setBody(jsonMapper.writeValueAsBytes(payload));
-        message.setContentEncoding("utf-8");
-        message.setContentType("application/json");
+        return new AsyncResultImpl<>(result);
+    }
+
+    /**
+     * Submit many invocations of the same task at once. See {@link Batch}.
+     *
+     * @param name task name as understood by the worker
+     * @param argsList positional arguments for each of the invocations (need to be JSON serializable)
+     * @return asynchronous results in the order of {@code argsList}
+     *
+     * @throws IOException if the messages couldn't be sent
+     */
+    public List<AsyncResult<?>> submitAll(String name, Iterable<Object[]> argsList) throws IOException {
+        Batch batch = batch();
+        for (Object[] args : argsList) {
+            batch.add(name, args);
+        }
+        return batch.submit();
+    }
+
+    /**
+     * @return a new, empty batch of tasks to be submitted together
+     */
+    public Batch batch() {
+        return new Batch();
+    }
 
+    private Message newTaskMessage(String taskId, String name, Object[] args, SubmitOptions options,
+                                   boolean replyTo) throws IOException {
+        Serializer serializer = options.getSerializer() != null ? options.getSerializer() : this.serializer;
+        Message message = broker.get().newMessage();
         Message.Headers headers = message.getHeaders();
+        if (!message.setArgs(args)) {
+            TaskPayloadWriter payloadWriter = payloadWriters.computeIfAbsent(
+                    serializer, (s) -> new TaskPayloadWriter(s.getMapper()));
+            byte[] body = payloadWriter.write(args);
+            if (compression != null && body.length >= compressionThreshold) {
+                body = compression.compress(body);
+                headers.setCompression(compression.getContentType());
+            }
+            if (blobStore != null && body.length >= blobThreshold) {
+                headers.setClaimCheck(blobStore.put(body));
+                body = new byte[0];
+            }
+            message.setBody(body);
+        }
+        message.setContentEncoding(serializer.getContentEncoding());
+        message.setContentType(serializer.getContentType());
+        if (options.getPriority() != null) {
+            message.setPriority(options.getPriority());
+        }
+
         headers.setId(taskId);
         headers.setTaskName(name);
-        headers.setArgsRepr("(" + Joiner.on(", ").join(args) + ")");
+        headers.setArgsRepr("(" + Joiner.on(", ").useForNull("None").join(args) + ")");
         headers.setOrigin(clientName);
-        if (rp.isPresent()) {
+        headers.setSentAt(System.currentTimeMillis());
+        Instant eta = options.getEta();
+        if (eta != null) {
+            require(broker.get(), Broker.Feature.ETA);
+            headers.setEta(Timestamps.format(eta));
+        }
+        Instant expires = options.getExpires();
+        if (expires != null) {
+            require(broker.get(), Broker.Feature.EXPIRES);
+            headers.setExpires(Timestamps.format(expires));
+        }
+        if (options.getSoftTimeLimit() != null || options.getTimeLimit() != null) {
+            require(broker.get(), Broker.Feature.TIME_LIMIT);
+            headers.setTimeLimit(seconds(options.getSoftTimeLimit()), seconds(options.getTimeLimit()));
+        }
+        if (replyTo) {
             headers.setReplyTo(clientId);
         }
+        return message;
+    }
+
+    private static void require(Broker broker, Broker.Feature feature) {
+        if (!broker.supports(feature)) {
+            throw new IllegalArgumentException(
+                    "The broker doesn't support " + feature.name().toLowerCase(Locale.ROOT).replace('_', ' '));
+        }
+    }
 
-        message.send(queue);
+    @Nullable
+    private static Double seconds(@Nullable Duration duration) {
+        return duration == null ? null : duration.toMillis() / 1000.0;
+    }
 
-        Future<Object> result;
+    private ListenableFuture<Object> resultOf(String taskId, Optional<Backend.ResultsProvider> rp, long start) {
         if (rp.isPresent()) {
-            result = rp.get().getResult(taskId);
-        } else {
-            result = CompletableFuture.completedFuture(null);
+            ListenableFuture<Object> result = rp.get().getResult(taskId);
+            if (metrics != Metrics.NONE) {
+                result.addListener(() -> {
+                    if (!result.isCancelled()) {
+                        metrics.resultReceived(System.nanoTime() - start);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            return result;
         }
-        return new AsyncResultImpl<>(result);
+        return Futures.immediateFuture(null);
     }
 
+    /**
+     * Tasks to be submitted together. The messages are all serialized first and then handed over to the broker at
+     * once, which publishes them back-to-back. This is much faster than calling {@link #submit(String, Object[])} in
+     * a loop when fanning out many tasks.
+     */
+    public class Batch {
+        private final List<String> names = new ArrayList<>();
+        private final List<Object[]> argsList = new ArrayList<>();
+        private final List<SubmitOptions> optionsList = new ArrayList<>();
+        private boolean confirm = false;
+
+        private Batch() {
+        }
+
+        /**
+         * @param taskClass task implementing class
+         * @param method method in {@code taskClass} that does the work
+         * @param args positional arguments for the method (need to be JSON serializable)
+         * @return this batch
+         */
+        public Batch add(Class<?> taskClass, String method, Object[] args) {
+            return add(taskClass.getName() + "#" + method, args);
+        }
+
+        /**
+         * @param name task name as understood by the worker
+         * @param args positional arguments for the method (need to be JSON serializable)
+         * @return this batch
+         */
+        public Batch add(String name, Object[] args) {
+            return add(name, args, SubmitOptions.DEFAULTS);
+        }
+
+        /**
+         * @param name task name as understood by the worker
+         * @param args positional arguments for the method (need to be serializable)
+         * @param options how to submit the task
+         * @return this batch
+         */
+        public Batch add(String name, Object[] args, SubmitOptions options) {
+            names.add(name);
+            argsList.add(args);
+            optionsList.add(options);
+            return this;
+        }
+
+        /**
+         * @param confirm whether {@link #submit()} should wait until the broker confirms it has taken over all the
+         *                messages (a single wait for the whole batch, or for each shard of a sharded queue)
+         * @return this batch
+         */
+        public Batch confirm(boolean confirm) {
+            this.confirm = confirm;
+            return this;
+        }
+
+        /**
+         * @return asynchronous results in the order the tasks were added
+         *
+         * @throws IOException if the messages couldn't be sent
+         */
+        public List<AsyncResult<?>> submit() throws IOException {
+            Optional<Backend.ResultsProvider> rp = resultsProvider.get();
+            long start = System.nanoTime();
+
+            List<String> taskIds = new ArrayList<>(names.size());
+            // Kept in the order the tasks were added, so the tasks with the same shard key stay in order.
+            Map<String, List<Message>> messages = new LinkedHashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                String taskId = UUID.randomUUID().toString();
+                taskIds.add(taskId);
+                messages.computeIfAbsent(queues.forKey(optionsList.get(i).getShardKey()), (q) -> new ArrayList<>())
+                        .add(newTaskMessage(
+                                taskId, names.get(i), argsList.get(i), optionsList.get(i), rp.isPresent()));
+            }
+
+            List<ListenableFuture<Object>> futures = new ArrayList<>(taskIds.size());
+            for (String taskId : taskIds) {
+                futures.add(resultOf(taskId, rp, start));
+            }
+            try {
+                for (Map.Entry<String, List<Message>> shard : messages.entrySet()) {
+                    broker.get().sendAll(shard.getKey(), shard.getValue(), confirm);
+                }
+            } catch (IOException | RuntimeException e) {
+                futures.forEach((f) -> f.cancel(false));
+                throw e;
+            }
+            metrics.submitted(taskIds.size(), System.nanoTime() - start);
+
+            List<AsyncResult<?>> results = new ArrayList<>(futures.size());
+            for (ListenableFuture<Object> future : futures) {
+                results.add(new AsyncResultImpl<>(future));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Result of a submitted task.
+     *
+     * @param <T> type of the task result
+     */
     public interface AsyncResult<T> {
+        /**
+         * @return whether the result has arrived
+         */
         boolean isDone();
 
+        /**
+         * Wait for the result.
+         *
+         * @return the task result
+         * @throws ExecutionException if the task failed
+         * @throws InterruptedException if interrupted while waiting
+         */
         T get() throws ExecutionException, InterruptedException;
+
+        /**
+         * Wait for the result at most the given time.
+         *
+         * @param timeout how long to wait
+         * @param unit unit of {@code timeout}
+         * @return the task result
+         * @throws ExecutionException if the task failed
+         * @throws InterruptedException if interrupted while waiting
+         * @throws TimeoutException if the result didn't arrive in time
+         */
+        T get(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException;
+
+        /**
+         * Get the result without blocking a thread. Cancelling the returned future stops waiting for the result.
+         *
+         * @return future completed with the task result once it arrives
+         */
+        CompletableFuture<T> toCompletableFuture();
+
+        /**
+         * Register a callback run once the result arrives, in the thread delivering the result (or right away if it
+         * has already arrived). The callback gets either the result or the reason the task failed.
+         *
+         * @param action callback receiving the result or {@code null}, and the failure or {@code null}
+         * @return this result
+         */
+        default AsyncResult<T> whenComplete(BiConsumer<? super T, ? super Throwable> action) {
+            toCompletableFuture().whenComplete(action);
+            return this;
+        }
+
+        /**
+         * Register a callback run in the given executor once the result arrives.
+         *
+         * @param action callback receiving the result or {@code null}, and the failure or {@code null}
+         * @param executor executor to run the callback in
+         * @return this result
+         */
+        default AsyncResult<T> whenComplete(BiConsumer<? super T, ? super Throwable> action, Executor executor) {
+            toCompletableFuture().whenCompleteAsync(action, executor);
+            return this;
+        }
     }
 
-    private class AsyncResultImpl<T> implements AsyncResult<T> {
+    private static class AsyncResultImpl<T> implements AsyncResult<T> {
 
-        private final Future<T> future;
+        private final ListenableFuture<T> future;
+        private volatile CompletableFuture<T> completable;
 
-        AsyncResultImpl(Future<T> future) {
+        AsyncResultImpl(ListenableFuture<T> future) {
             this.future = future;
         }
 
@@ -189,5 +531,47 @@ public class Celery {
         public T get() throws ExecutionException, InterruptedException {
             return future.get();
         }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        @Override
+        public CompletableFuture<T> toCompletableFuture() {
+            CompletableFuture<T> result = completable;
+            if (result == null) {
+                synchronized (this) {
+                    result = completable;
+                    if (result == null) {
+                        result = adapt(future);
+                        completable = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static <T> CompletableFuture<T> adapt(ListenableFuture<T> future) {
+            CompletableFuture<T> result = new CompletableFuture<T>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    future.cancel(false);
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            };
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    result.complete(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }, MoreExecutors.directExecutor());
+            return result;
+        }
     }
 }
@@ -8,8 +8,8 @@ import java.lang.annotation.Target;
 /**
  * Marks your code as a Celery CeleryTask.
  * <p>
- * The annotation processor included in this package then generates two classes - {@code *Proxy} and {@code *Loader}.
- * The loader is
+ * The annotation processor included in this package then generates three classes - {@code *Proxy}, {@code *Invoker}
+ * and {@code *Loader}. The loader is
  * <p>
  * All parameters and return types must be JSON-serializable.
  * <p>
@@ -20,4 +20,16 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.CLASS)
 @Target(ElementType.TYPE)
 public @interface CeleryTask {
+
+    /**
+     * @return how many seconds the task's methods may run before their thread is interrupted, 0 for no limit; a limit
+     *         given on submit takes precedence
+     */
+    double softTimeLimit() default 0;
+
+    /**
+     * @return how many seconds the task's methods may run before the worker gives them up and reports them failed
+     *         with {@link TimeLimitExceeded}, 0 for no limit; a limit given on submit takes precedence
+     */
+    double timeLimit() default 0;
 }
@@ -7,4 +7,14 @@ package com.geneea.celery;
  */
 public interface CeleryTaskLoader {
     Object loadTask();
+
+    /**
+     * The generated loaders override this method to return the generated invoker which calls the task methods
+     * directly. The default implementation falls back to reflection.
+     *
+     * @return invoker dispatching the calls to a task instance created by {@link #loadTask()}
+     */
+    default TaskInvoker loadInvoker() {
+        return new ReflectiveTaskInvoker(loadTask());
+    }
 }
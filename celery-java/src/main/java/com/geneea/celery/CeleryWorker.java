@@ -3,17 +3,10 @@ package com.geneea.celery;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Splitter;
-import com.google.common.base.Stopwatch;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.MoreCollectors;
-import com.google.common.collect.Streams;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
@@ -21,134 +14,544 @@ import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.geneea.celery.backends.rabbit.RabbitBackend;
+import com.geneea.celery.blobstores.CeleryBlobStores;
 import com.geneea.celery.spi.Backend;
-
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Metrics;
+import com.geneea.celery.util.Compression;
+import com.geneea.celery.util.QueueShards;
+import com.geneea.celery.util.Timestamps;
+import com.geneea.celery.util.TimingWheel;
+import lombok.Builder;
+
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.text.MessageFormat;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
  * CeleryWorker that listens on RabbitMQ queue and executes tasks. You can either embed it into your project via
- * {@link #create(String, Connection)} or start it stand-alone and supply your tasks on classpath like this:
+ * {@link #create(String, Connection)} or {@code builder()} or start it stand-alone and supply your tasks on classpath
+ * like this:
  *
  * <pre>
  * java -cp celery-java-xyz.jar:your-tasks.jar com.geneea.celery.CeleryWorker --concurrency 8
  * </pre>
+ *
+ * By default, the worker runs the tasks one by one in a thread of its own, and the consumer's thread only takes the
+ * deliveries as they come (the constructors without an executor run the tasks right in the consumer's thread). When
+ * given an executor, the consumer only decodes the deliveries' headers and runs the tasks in the executor, so that a
+ * single consumer can process many tasks concurrently. With an executor starting a thread per task (e.g. virtual
+ * threads, {@code --pool virtual}), a semaphore caps the number of tasks running at once.
+ * <p>
+ * Given {@code maxPrefetch}, the worker adapts how many deliveries the broker sends in advance to the measured task
+ * duration and broker round-trip, see {@link #getPrefetchCount()}.
+ * <p>
+ * Given {@code maxPriority}, the worker declares a priority queue and the prefetched tasks start by their priority
+ * too, not in the order they were delivered, whether they wait for the thread of a solo worker or for a free slot in
+ * the executor; the larger the prefetch, the further a task of high priority can overtake.
+ * <p>
+ * The tasks with an ETA wait in a timing wheel, unacknowledged, and run once due. The worker raises its prefetch by one
+ * for each task it holds, as Celery does, so that the held tasks don't take the place of the ones to run now. Given
+ * {@code etaHorizonMillis}, the tasks due later go to a delay queue and come back when closer to their ETA. The due
+ * tasks of a worker running the tasks one by one still run one by one, never next to the task of the consumer.
+ * <p>
+ * A task over its soft time limit has its thread interrupted. A task over its hard limit is reported as failed and its
+ * delivery acknowledged right away. Its thread can't be stopped and runs on until the task returns, so the worker lets
+ * it go: it frees the task's slot, and a fixed-size thread pool, such as the thread of a solo worker, gets another
+ * thread in its place. Up to {@code maxConcurrency} threads are let go at once; a task given up beyond that keeps its
+ * slot and its pool thread until it returns, as it always does with the direct executor.
  */
 public class CeleryWorker extends DefaultConsumer {
 
-    private final ObjectMapper jsonMapper;
-    private final Lock taskRunning = new ReentrantLock();
+    private final TaskDispatcher dispatcher;
     private final Backend backend;
+    private final Executor executor;
+    private final Semaphore slots;
+    // The threads of the tasks given up at their hard limit let go while still running, at most maxAbandoned.
+    private final int maxAbandoned;
+    private final Object abandonedLock = new Object();
+    private int abandoned = 0;
+    @Nullable private ExecutorService ownExecutor;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private PrefetchController prefetch;
+    private Metrics metrics = Metrics.NONE;
+    @Nullable private PriorityBlockingQueue<Delivery> byPriority;
+    private final AtomicLong deliveries = new AtomicLong();
+    private long etaHorizonMillis = 0;
+    private final Set<String> delayQueues = new HashSet<>();
+    private Executor dueExecutor;
+    // The prefetch set by the builder if not adaptive, 0 if unknown.
+    private int fixedPrefetch = 0;
+    private final AtomicInteger held = new AtomicInteger();
+    private final AtomicBoolean qosPending = new AtomicBoolean();
+    // The prefetch last sent to the broker, guarded by the channel's monitor.
+    private int sentPrefetch = 0;
+    private volatile boolean closed = false;
+
+    private final Object inFlightLock = new Object();
+    private int inFlight = 0;
 
     private static final Logger LOG = Logger.getLogger(CeleryWorker.class.getName());
 
     public CeleryWorker(Channel channel, Backend backend) {
+        this(channel, backend, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @param channel channel to consume from
+     * @param backend backend to report the results to; if it publishes through {@code channel}, it must do so holding
+     *                the channel's monitor as the worker acknowledges the deliveries from the executor threads, or
+     *                from the backend's thread once it has published the results, see {@link Backend#reported()}
+     * @param executor executor running the tasks
+     */
+    public CeleryWorker(Channel channel, Backend backend, Executor executor) {
+        this(channel, backend, executor, 0);
+    }
+
+    /**
+     * @param channel channel to consume from
+     * @param backend backend to report the results to, see {@link #CeleryWorker(Channel, Backend, Executor)}
+     * @param executor executor running the tasks
+     * @param maxConcurrency how many tasks can run at once, the other tasks wait in their executor threads; 0 for no
+     *                       limit other than the executor's own
+     */
+    public CeleryWorker(Channel channel, Backend backend, Executor executor, int maxConcurrency) {
+        this(channel, backend, executor, maxConcurrency, null);
+    }
+
+    /**
+     * @param channel channel to consume from
+     * @param backend backend to report the results to, see {@link #CeleryWorker(Channel, Backend, Executor)}
+     * @param executor executor running the tasks
+     * @param maxConcurrency how many tasks can run at once, 0 for no limit other than the executor's own; also how
+     *                       many threads of the tasks given up at their hard limit can be let go at once
+     * @param blobStore where the clients keep the large bodies, {@code null} if they don't
+     */
+    public CeleryWorker(Channel channel, Backend backend, Executor executor, int maxConcurrency,
+                        @Nullable BlobStore blobStore) {
         super(channel);
         this.backend = backend;
-        jsonMapper = new ObjectMapper();
+        this.dispatcher = new TaskDispatcher(backend, blobStore);
+        this.executor = executor;
+        // The direct executor runs a task at a time in the consumer's thread, a due task must wait for it.
+        this.slots = maxConcurrency > 0 ? new Semaphore(maxConcurrency)
+                : executor == MoreExecutors.directExecutor() ? new Semaphore(1)
+                : null;
+        this.maxAbandoned = executor == MoreExecutors.directExecutor() ? 0 : maxConcurrency;
     }
 
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope,
                                AMQP.BasicProperties properties, byte[] body)
             throws IOException {
-        String taskId = properties.getHeaders().get("id").toString();
-        taskRunning.lock();
+        if (prefetch != null) {
+            // Only a delivery with no other one waiting ahead of it shows how long the broker takes to refill.
+            prefetch.deliveryReceived(System.nanoTime(), waiting.get() == 0);
+        }
+        Object eta = properties.getHeaders() == null ? null : properties.getHeaders().get("eta");
+        if (eta != null && delay(envelope, properties, body, eta)) {
+            return;
+        }
+        deliver(envelope, properties, body);
+    }
+
+    /**
+     * Hold a delivery whose ETA hasn't come yet, without blocking the consumer. It stays unacknowledged until its task
+     * runs, so it returns to the queue if the worker dies, and the prefetch is raised by one meanwhile. The deliveries
+     * due later than the horizon go to the delay queue instead, so that the worker doesn't hold a delivery
+     * unacknowledged longer than the broker allows (RabbitMQ's {@code consumer_timeout}, 30 minutes by default).
+     *
+     * @return {@code false} if the delivery is due already
+     */
+    private boolean delay(Envelope envelope, AMQP.BasicProperties properties, byte[] body, Object eta)
+            throws IOException {
+        long delayMillis;
         try {
-            Stopwatch stopwatch = Stopwatch.createStarted();
-            String message = new String(body, properties.getContentEncoding());
+            delayMillis = Timestamps.parse(eta).toEpochMilli() - System.currentTimeMillis();
+        } catch (DateTimeParseException e) {
+            LOG.log(Level.WARNING, "Running a task with a malformed ETA " + eta + " right away", e);
+            return false;
+        }
+        if (delayMillis <= 0) {
+            return false;
+        }
+        if (etaHorizonMillis > 0 && delayMillis > etaHorizonMillis) {
+            spill(envelope, properties, body);
+            return true;
+        }
+        changeHeld(1);
+        Delayed.WHEEL.schedule(() -> dueExecutor().execute(() -> {
+            if (closed) {
+                return;
+            }
+            changeHeld(-1);
+            try {
+                deliver(envelope, properties, body);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Couldn't return a delayed task to the queue", e);
+            }
+        }), delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
-            JsonNode payload = jsonMapper.readTree(message);
+    /**
+     * Move a delivery to the delay queue of its queue, {@code <queue>.delay}. The delay queue holds each message for
+     * the horizon and then dead-letters it back to its queue, where it's held or spilled again.
+     */
+    private void spill(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        String queue = envelope.getRoutingKey();
+        String delayQueue = queue + ".delay";
+        synchronized (getChannel()) {
+            if (delayQueues.add(queue)) {
+                getChannel().queueDeclare(delayQueue, true, false, false, ImmutableMap.of(
+                        "x-message-ttl", etaHorizonMillis,
+                        "x-dead-letter-exchange", "",
+                        "x-dead-letter-routing-key", queue));
+            }
+            getChannel().basicPublish("", delayQueue, properties, body);
+            getChannel().basicAck(envelope.getDeliveryTag(), false);
+        }
+        if (prefetch != null) {
+            prefetch.acked(System.nanoTime());
+        }
+    }
 
-            String taskClassName = properties.getHeaders().get("task").toString();
-            Object result = processTask(
-                    taskClassName,
-                    (ArrayNode) payload.get(0),
-                    (ObjectNode) payload.get(1));
+    /**
+     * The due tasks are handed over to the executor by the wheel's thread, a solo worker's single thread included;
+     * only running them in the consumer's thread needs a thread of their own, which waits for the consumer's task.
+     */
+    private synchronized Executor dueExecutor() {
+        if (dueExecutor == null) {
+            dueExecutor = executor == MoreExecutors.directExecutor()
+                    ? Executors.newSingleThreadExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("celery-eta-%d").setDaemon(true).build())
+                    : MoreExecutors.directExecutor();
+        }
+        return dueExecutor;
+    }
 
-            LOG.info(String.format("CeleryTask %s[%s] succeeded in %s. Result was: %s",
-                    taskClassName, taskId, stopwatch, result));
+    private void deliver(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        synchronized (inFlightLock) {
+            inFlight++;
+        }
+        waiting.incrementAndGet();
+        Delivery delivery = null;
+        if (byPriority != null) {
+            // Each delivery is handed to an executor task, which takes whichever buffered delivery is the most urgent
+            // once it gets a slot.
+            delivery = new Delivery(envelope, properties, body, deliveries.getAndIncrement());
+            byPriority.add(delivery);
+        }
 
-            backend.reportResult(taskId, properties.getReplyTo(), properties.getCorrelationId(), result);
+        try {
+            executor.execute(() -> {
+                if (slots != null) {
+                    slots.acquireUninterruptibly();
+                }
+                waiting.decrementAndGet();
+                Delivery next = byPriority != null ? byPriority.poll() : null;
+                if (closed) {
+                    // The channel is gone and the broker returns the delivery to the queue, running it would run the
+                    // task twice.
+                    if (slots != null) {
+                        slots.release();
+                    }
+                    taskFinished();
+                    return;
+                }
+                if (next != null) {
+                    run(next.envelope, next.properties, next.body);
+                } else {
+                    run(envelope, properties, body);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (delivery != null) {
+                byPriority.remove(delivery);
+            }
+            waiting.decrementAndGet();
+            taskFinished();
+            LOG.log(Level.WARNING, "The executor rejected a task, returning it to the queue", e);
+            synchronized (getChannel()) {
+                getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+            }
+            if (prefetch != null) {
+                prefetch.acked(System.nanoTime());
+            }
+        }
+    }
 
-            getChannel().basicAck(envelope.getDeliveryTag(), false);
-        } catch (DispatchException e) {
-            LOG.log(Level.SEVERE, String.format("CeleryTask %s dispatch error", taskId), e.getCause());
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e);
-            getChannel().basicAck(envelope.getDeliveryTag(), false);
-        } catch (InvocationTargetException e) {
-            LOG.log(Level.WARNING, String.format("CeleryTask %s error", taskId), e.getCause());
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e.getCause());
-            getChannel().basicAck(envelope.getDeliveryTag(), false);
-        } catch (JsonProcessingException e) {
-            LOG.log(Level.SEVERE, String.format("CeleryTask %s - %s", taskId, e), e.getCause());
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e);
-            getChannel().basicNack(envelope.getDeliveryTag(), false, false);
-        } catch (RuntimeException e) {
-            LOG.log(Level.SEVERE, String.format("CeleryTask %s - %s", taskId, e), e);
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(),
-                    e.getCause() != null ? e.getCause() : e);
-            getChannel().basicNack(envelope.getDeliveryTag(), false, false);
+    private void run(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        Running running = new Running(envelope,
+                properties.getHeaders() == null ? null : properties.getHeaders().get(BlobStore.HEADER));
+        Boolean processed = null;
+        try {
+            processed = processDelivery(envelope, properties, body, running);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Couldn't report a task, returning it to the queue", e);
         } finally {
-            taskRunning.unlock();
+            running.finish(processed);
+        }
+    }
+
+    /**
+     * Start the waiting tasks by their priority. With the direct executor, no task waits: each one runs as delivered.
+     */
+    void prioritize() {
+        byPriority = new PriorityBlockingQueue<>();
+    }
+
+    /**
+     * @param horizonMillis move the tasks due later than this to the delay queue, 0 to hold all of them
+     */
+    void spillDelayed(long horizonMillis) {
+        this.etaHorizonMillis = horizonMillis;
+    }
+
+    private void taskFinished() {
+        synchronized (inFlightLock) {
+            inFlight--;
+            if (inFlight == 0) {
+                inFlightLock.notifyAll();
+            }
         }
     }
 
-    private Object processTask(String taskName, ArrayNode args, ObjectNode kwargs)
-            throws DispatchException, InvocationTargetException {
+    /**
+     * Let the thread of a task given up at its hard limit go, unless too many are let go already: free the task's
+     * slot and, in a fixed-size pool, start another thread in its place.
+     *
+     * @return {@code false} if the task keeps its slot until its thread returns
+     */
+    private boolean abandonThread() {
+        synchronized (abandonedLock) {
+            if (abandoned >= maxAbandoned) {
+                return false;
+            }
+            abandoned++;
+            ThreadPoolExecutor pool = fixedPool();
+            if (pool != null) {
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + 1);
+                pool.setCorePoolSize(pool.getCorePoolSize() + 1);
+            }
+        }
+        if (slots != null) {
+            slots.release();
+        }
+        return true;
+    }
 
-        List<String> name = ImmutableList.copyOf(Splitter.on("#").split(taskName).iterator());
+    /**
+     * Take a thread let go back once its task returns, the pool's extra thread ends once idle.
+     */
+    private void rejoinThread() {
+        synchronized (abandonedLock) {
+            abandoned--;
+            ThreadPoolExecutor pool = fixedPool();
+            if (pool != null) {
+                pool.setCorePoolSize(pool.getCorePoolSize() - 1);
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() - 1);
+            }
+        }
+    }
 
-        if (name.size() != 2) {
-            throw new DispatchException(MessageFormat.format(
-                    "This worker can only process tasks with name in form package.ClassName#method, got {}",
-                    taskName));
+    /**
+     * @return the executor if it's a pool of a fixed number of threads, which doesn't start a thread for a new task
+     *         while its threads are busy, {@code null} otherwise
+     */
+    @Nullable
+    private ThreadPoolExecutor fixedPool() {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            if (pool.getCorePoolSize() == pool.getMaximumPoolSize()) {
+                return pool;
+            }
         }
+        return null;
+    }
 
-        Object task = TaskRegistry.getTask(name.get(0));
+    private void adjustPrefetch(int newPrefetch) {
+        if (newPrefetch < 0) {
+            return;
+        }
+        LOG.fine(String.format("Changing prefetch to %d", newPrefetch));
+        updatePrefetch();
+    }
 
-        if (task == null) {
-            throw new DispatchException(String.format("CeleryTask %s not registered.", taskName));
+    /**
+     * Count a delivery held until its ETA, or released, and raise or lower the prefetch accordingly. A worker created
+     * by a constructor doesn't know its prefetch and leaves it alone.
+     */
+    private void changeHeld(int delta) {
+        held.addAndGet(delta);
+        if (prefetch != null) {
+            prefetch.heldChanged(delta);
         }
+        updatePrefetch();
+    }
 
-        Method method = Arrays.stream(task.getClass().getDeclaredMethods())
-                .filter((m) -> m.getName().equals(name.get(1)))
-                .collect(MoreCollectors.onlyElement());
+    /**
+     * Send the broker the prefetch wanted now, eventually, as Celery does: the changes made meanwhile coalesce into a
+     * single {@code basic.qos}, sent from a thread of its own, as it waits for the broker, rather than from the
+     * consumer's thread or the timing wheel's.
+     */
+    private void updatePrefetch() {
+        if (qosPending.compareAndSet(false, true)) {
+            PrefetchUpdates.EXECUTOR.execute(() -> {
+                qosPending.set(false);
+                int base = prefetch != null ? prefetch.getPrefetch() : fixedPrefetch;
+                if (base <= 0 || closed) {
+                    return;
+                }
+                int wanted = base + held.get();
+                try {
+                    // Per-consumer limits (global=false) apply only to the consumers started afterwards, the
+                    // channel-wide limit can be changed at any time. The worker is the only consumer on its channel
+                    // so the effect is the same.
+                    synchronized (getChannel()) {
+                        if (wanted != sentPrefetch) {
+                            getChannel().basicQos(wanted, true);
+                            sentPrefetch = wanted;
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.log(Level.WARNING, "Couldn't change the prefetch to " + wanted, e);
+                }
+            });
+        }
+    }
 
-        List<?> convertedArgs = Streams.mapWithIndex(
-                Arrays.stream(method.getParameterTypes()),
-                              (paramType, i) -> jsonMapper.convertValue(args.get((int) i), paramType)
-        ).collect(Collectors.toList());
+    /**
+     * @return whether to acknowledge the delivery or reject it
+     */
+    private boolean processDelivery(Envelope envelope, AMQP.BasicProperties properties, byte[] body,
+                                    Runnable giveUp) throws IOException {
+        Map<String, Object> headers = properties.getHeaders();
+        String taskId = headers.get("id").toString();
+        String taskName = headers.get("task").toString();
+        dispatcher.received(taskName, headers.get(Metrics.SENT_AT_HEADER));
+        if (dispatcher.expired(taskId, taskName, properties.getReplyTo(), properties.getCorrelationId(),
+                headers.get("expires"))) {
+            return true;
+        }
+        return dispatcher.dispatch(
+                taskId,
+                taskName,
+                properties.getReplyTo(),
+                properties.getCorrelationId(),
+                dispatcher.bodyDecoder(body, properties.getContentType(), properties.getContentEncoding(),
+                        headers.get(Compression.HEADER), headers.get(BlobStore.HEADER)),
+                headers.get("timelimit"),
+                giveUp);
+    }
 
-        try {
-            return method.invoke(task, convertedArgs.toArray());
-        } catch (IllegalAccessException e) {
-            throw new DispatchException(String.format("Error calling %s", method), e);
-        } catch (IllegalArgumentException e) {
-            // should not happen because of findRunMethod
-            throw new AssertionError(String.format("Error calling %s", method), e);
+    // The channel isn't safe to be used concurrently and the acknowledgements may come from the executor threads.
+    private void ack(Envelope envelope) throws IOException {
+        long start = System.nanoTime();
+        synchronized (getChannel()) {
+            getChannel().basicAck(envelope.getDeliveryTag(), false);
+        }
+        metrics.acked(System.nanoTime() - start);
+        if (prefetch != null) {
+            prefetch.acked(System.nanoTime());
         }
     }
 
+    private void nack(Envelope envelope, boolean requeue) throws IOException {
+        long start = System.nanoTime();
+        synchronized (getChannel()) {
+            getChannel().basicNack(envelope.getDeliveryTag(), false, requeue);
+        }
+        metrics.acked(System.nanoTime() - start);
+        if (prefetch != null) {
+            prefetch.acked(System.nanoTime());
+        }
+    }
+
+    /**
+     * @return how many deliveries the broker currently sends in advance as chosen by the adaptive prefetch, 0 if the
+     *         worker wasn't created with {@code maxPrefetch}
+     */
+    public int getPrefetchCount() {
+        return prefetch != null ? prefetch.getPrefetch() : 0;
+    }
+
+    /**
+     * @param metrics where to record the task metrics, nowhere if {@code null}
+     * @param logEvery log every n-th succeeded task at INFO, 0 for none; every one if {@code null}
+     */
+    void instrument(@Nullable Metrics metrics, @Nullable Integer logEvery) {
+        if (metrics != null) {
+            this.metrics = metrics;
+            dispatcher.setMetrics(metrics);
+            metrics.workerStarted(this::getInFlightCount, this::getPrefetchCount);
+        }
+        if (logEvery != null) {
+            dispatcher.setLogEvery(logEvery);
+        }
+    }
+
+    /**
+     * @return how many tasks the worker has received and not yet finished
+     */
+    public int getInFlightCount() {
+        synchronized (inFlightLock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Stop consuming. The deliveries not started yet are left to the broker, which returns them to the queue; the
+     * running tasks finish, see {@link #join()}.
+     */
     public void close() throws IOException {
+        closed = true;
         getChannel().abort();
         backend.close();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
     }
 
+    /**
+     * Wait until all the tasks received so far are finished.
+     */
     public void join() {
-        taskRunning.lock();
-        taskRunning.unlock();
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                try {
+                    inFlightLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 
     private static Optional<java.lang.reflect.Method> findRunMethod(Class<?> cls, List<Class<?>> args) {
@@ -169,25 +572,294 @@ public class CeleryWorker extends DefaultConsumer {
                 }).findAny();
     }
 
+    /**
+     * A delivery waiting for a slot, the higher priority first and then in the order of delivery.
+     */
+    private static final class Delivery implements Comparable<Delivery> {
+        private final Envelope envelope;
+        private final AMQP.BasicProperties properties;
+        private final byte[] body;
+        private final int priority;
+        private final long order;
+
+        Delivery(Envelope envelope, AMQP.BasicProperties properties, byte[] body, long order) {
+            this.envelope = envelope;
+            this.properties = properties;
+            this.body = body;
+            this.priority = properties.getPriority() == null ? 0 : properties.getPriority();
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * A task holding a slot. The slot is freed and the delivery acknowledged once: when the task finishes, or as soon
+     * as the dispatcher gives the task up at its hard time limit, while the task's thread runs on. The slot is freed
+     * right away, the delivery is acknowledged only once the backend has delivered the task's results.
+     */
+    private final class Running extends AtomicBoolean implements Runnable {
+        private final Envelope envelope;
+        @Nullable private final Object claimCheck;
+        private final long start = System.nanoTime();
+        // Guarded by this, the task may return before or after it's been given up.
+        private boolean givenUp = false;
+        private boolean returned = false;
+        private boolean letGo = false;
+
+        Running(Envelope envelope, @Nullable Object claimCheck) {
+            this.envelope = envelope;
+            this.claimCheck = claimCheck;
+        }
+
+        /**
+         * Give the task up, the dispatcher has reported it failed. Its thread is let go if possible.
+         */
+        @Override
+        public void run() {
+            CompletableFuture<Void> reported = backend.reported();
+            if (!compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (this) {
+                givenUp = true;
+                if (returned) {
+                    releaseSlot();
+                } else {
+                    letGo = abandonThread();
+                }
+            }
+            settleOnceReported(reported, true);
+        }
+
+        /**
+         * @param processed whether to acknowledge the delivery or reject it; {@code null} if the worker failed to
+         *                  report it, it's then returned to the queue once and rejected when redelivered
+         */
+        void finish(@Nullable Boolean processed) {
+            // Asked even for a task given up already, so that its results don't hold up the next task of the thread.
+            CompletableFuture<Void> reported = backend.reported();
+            if (!compareAndSet(false, true)) {
+                rejoin();
+                return;
+            }
+            releaseSlot();
+            settleOnceReported(reported, processed);
+        }
+
+        /**
+         * The thread of a task given up is back, it takes its place in the worker again.
+         */
+        private synchronized void rejoin() {
+            returned = true;
+            if (!givenUp) {
+                return;
+            }
+            if (letGo) {
+                rejoinThread();
+            } else {
+                releaseSlot();
+            }
+        }
+
+        private void releaseSlot() {
+            if (slots != null) {
+                slots.release();
+            }
+        }
+
+        private void settleOnceReported(CompletableFuture<Void> reported, @Nullable Boolean processed) {
+            reported.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    LOG.log(Level.SEVERE, "Couldn't report a task, returning it to the queue", e);
+                }
+                settle(e == null ? processed : null);
+            });
+        }
+
+        /**
+         * Acknowledge or reject the delivery once the task's results are out.
+         */
+        private void settle(@Nullable Boolean processed) {
+            try {
+                boolean requeue = processed == null && !envelope.isRedeliver();
+                if (processed == null) {
+                    nack(envelope, requeue);
+                } else if (processed) {
+                    ack(envelope);
+                } else {
+                    nack(envelope, false);
+                }
+                // A returned delivery comes back with the same body.
+                if (!requeue) {
+                    dispatcher.dropBody(claimCheck);
+                }
+                if (processed != null && prefetch != null) {
+                    long end = System.nanoTime();
+                    adjustPrefetch(prefetch.taskCompleted(end - start, end));
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Couldn't acknowledge a task", e);
+            } finally {
+                taskFinished();
+            }
+        }
+    }
+
+    private static class Delayed {
+        static final TimingWheel WHEEL = new TimingWheel("celery-eta", 100, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    private static class PrefetchUpdates {
+        static final Executor EXECUTOR = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("celery-prefetch-%d").setDaemon(true).build());
+    }
+
     private static class Args {
 
         @Parameter(names = "--queue", description = "Celery queue to watch")
         private String queue = "celery";
 
+        @Parameter(names = "--shards", description = "Number of shards the clients split the queue into; the solo "
+                + "consumers take turns in them, so that each shard has a single consumer")
+        private int shards = 1;
+
         @Parameter(names = "--concurrency", description = "Number of concurrent tasks to process")
         private int numWorkers = 2;
 
+        @Parameter(names = "--pool", description = "How to run the tasks: solo (each of --concurrency consumers runs "
+                + "one task at a time), threads (one consumer and a pool of --concurrency threads), forkjoin (one "
+                + "consumer and a ForkJoinPool of parallelism --concurrency) or virtual (one consumer running up to "
+                + "--concurrency tasks, each in its own virtual thread; needs Java 21)")
+        private String pool = "solo";
+
+        @Parameter(names = "--min-prefetch", description = "Lower bound of the adaptive prefetch, --concurrency by "
+                + "default")
+        private Integer minPrefetch = null;
+
+        @Parameter(names = "--max-prefetch", description = "Upper bound of the adaptive prefetch; if not given, the "
+                + "prefetch is fixed to twice the --concurrency")
+        private Integer maxPrefetch = null;
+
         @Parameter(names = "--broker", description = "Broker URL, e. g. amqp://localhost//")
         private String broker = "amqp://localhost/%2F";
+
+        @Parameter(names = "--max-priority", description = "Declare the queue with priorities up to this one, the "
+                + "same as the clients")
+        private Integer maxPriority = null;
+
+        @Parameter(names = "--eta-horizon-millis", description = "Move the tasks due later than this to a delay "
+                + "queue rather than hold them unacknowledged")
+        private Long etaHorizonMillis = null;
+
+        @Parameter(names = "--log-every", description = "Log every n-th succeeded task, 0 not to log them")
+        private int logEvery = 1;
+
+        @Parameter(names = "--blob-store", description = "Where the clients keep the large bodies, e. g. "
+                + "file:///shared/celery-blobs")
+        private String blobStore = null;
     }
 
     public static CeleryWorker create(String queue, Connection connection) throws IOException {
+        return builder().queue(queue).connection(connection).build();
+    }
+
+    /**
+     * Create a worker consuming tasks from a queue. Use {@code builder()} to call it.
+     *
+     * @param queue queue to consume from, "celery" by default
+     * @param shards number of shards the clients split the queue into (the {@code shards} of {@link Celery}), the
+     *               queue isn't sharded by default
+     * @param shardIds the shards to consume from, all of them by default; a shard consumed by a single worker running
+     *                 one task at a time keeps the tasks with the same shard key in order
+     * @param connection connection to RabbitMQ
+     * @param executor executor to run the tasks in; by default the tasks run one by one in a thread of the worker
+     * @param concurrency how many tasks can run at once; it determines how many deliveries the broker sends in
+     *                    advance (prefetch), 1 by default
+     * @param minPrefetch lower bound of the adaptive prefetch, {@code concurrency} by default
+     * @param maxPrefetch upper bound of the adaptive prefetch; when given, the prefetch is resized at runtime according
+     *                    to the measured task duration and ack latency, otherwise it's twice the {@code concurrency}
+     * @param blobStoreUri where the clients keep the large bodies, see {@link BlobStore}
+     * @param maxPriority declare the queue with priorities from 0 up to this one, the same as the clients do (the
+     *                    {@code maxPriority} of {@link Celery}), and start the prefetched tasks by their priority; no
+     *                    priorities by default
+     * @param etaHorizonMillis the tasks due later than this are moved to the delay queue {@code <queue>.delay} rather
+     *                         than held unacknowledged by the worker, longer than the broker may allow; all are held
+     *                         by default
+     * @param metrics where to record the task metrics, see {@link Metrics}
+     * @param logEvery log every n-th succeeded task at INFO, 0 not to log them; every one by default
+     * @return started worker
+     * @throws IOException in case of connection problem
+     */
+    @Builder
+    private static CeleryWorker newWorker(@Nullable String queue,
+                                          @Nullable Integer shards,
+                                          @Nullable Collection<Integer> shardIds,
+                                          Connection connection,
+                                          @Nullable Executor executor,
+                                          @Nullable Integer concurrency,
+                                          @Nullable Integer minPrefetch,
+                                          @Nullable Integer maxPrefetch,
+                                          @Nullable String blobStoreUri,
+                                          @Nullable Integer maxPriority,
+                                          @Nullable Long etaHorizonMillis,
+                                          @Nullable Metrics metrics,
+                                          @Nullable Integer logEvery) throws IOException {
+        String q = queue == null ? "celery" : queue;
+        int c = concurrency == null ? 1 : concurrency;
+
+        List<String> queues = new QueueShards(q, shards == null ? 1 : shards).getQueues();
+        if (shardIds != null) {
+            for (int shardId : shardIds) {
+                if (shardId < 0 || shardId >= queues.size()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Shard %d doesn't exist, the queue %s has shards 0 to %d", shardId, q, queues.size() - 1));
+                }
+            }
+            queues = shardIds.stream().map(queues::get).collect(Collectors.toList());
+        }
+
         final Channel channel = connection.createChannel();
-        channel.basicQos(2);
-        channel.queueDeclare(queue, true, false, false, null);
+        PrefetchController prefetchController = null;
+        if (maxPrefetch == null) {
+            // Channel-wide, as the worker changes it while holding the delayed tasks, see updatePrefetch().
+            channel.basicQos(2 * c, true);
+        } else {
+            prefetchController = new PrefetchController(c, minPrefetch == null ? c : minPrefetch, maxPrefetch);
+            channel.basicQos(prefetchController.getPrefetch(), true);
+        }
+        Map<String, Object> queueArguments = maxPriority == null || maxPriority == 0
+                ? null
+                : ImmutableMap.of("x-max-priority", maxPriority);
+        for (String shard : queues) {
+            channel.queueDeclare(shard, true, false, false, queueArguments);
+        }
         RabbitBackend backend = new RabbitBackend(channel);
-        final CeleryWorker consumer = new CeleryWorker(channel, backend);
-        channel.basicConsume(queue, false, "", true, false, null, consumer);
+        BlobStore blobStore = blobStoreUri == null ? null : CeleryBlobStores.create(blobStoreUri);
+        ExecutorService solo = executor == null ? soloExecutor() : null;
+        final CeleryWorker consumer = executor == null
+                ? new CeleryWorker(channel, backend, solo, 1, blobStore)
+                : new CeleryWorker(channel, backend, executor, concurrency == null ? 0 : concurrency, blobStore);
+        consumer.ownExecutor = solo;
+        consumer.prefetch = prefetchController;
+        consumer.fixedPrefetch = maxPrefetch == null ? 2 * c : 0;
+        consumer.sentPrefetch = maxPrefetch == null ? 2 * c : prefetchController.getPrefetch();
+        consumer.instrument(metrics, logEvery);
+        if (queueArguments != null) {
+            consumer.prioritize();
+        }
+        if (etaHorizonMillis != null) {
+            consumer.spillDelayed(etaHorizonMillis);
+        }
+        for (String shard : queues) {
+            channel.basicConsume(shard, false, "", true, false, null, consumer);
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
@@ -201,6 +873,15 @@ public class CeleryWorker extends DefaultConsumer {
         return consumer;
     }
 
+    /**
+     * The thread of a solo worker, running its tasks one by one. The deliveries wait in its queue, so that the
+     * consumer's thread sees each of them as soon as it arrives.
+     */
+    private static ExecutorService soloExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("celery-solo-%d").setDaemon(true).build());
+    }
+
     public static void main(String[] argv) throws Exception {
         Args args = new Args();
         JCommander.newBuilder()
@@ -212,8 +893,48 @@ public class CeleryWorker extends DefaultConsumer {
         factory.setUri(args.broker);
         Connection connection = factory.newConnection(Executors.newCachedThreadPool());
 
-        for (int i = 0; i < args.numWorkers; i++) {
-            create(args.queue, connection);
+        CeleryWorkerBuilder builder = builder().queue(args.queue).connection(connection)
+                .shards(args.shards)
+                .minPrefetch(args.minPrefetch)
+                .maxPrefetch(args.maxPrefetch)
+                .blobStoreUri(args.blobStore)
+                .maxPriority(args.maxPriority)
+                .etaHorizonMillis(args.etaHorizonMillis)
+                .logEvery(args.logEvery);
+
+        switch (args.pool) {
+            case "solo":
+                if (args.shards > 1) {
+                    for (int i = 0; i < Math.min(args.numWorkers, args.shards); i++) {
+                        List<Integer> shardIds = new ArrayList<>();
+                        for (int shard = i; shard < args.shards; shard += args.numWorkers) {
+                            shardIds.add(shard);
+                        }
+                        builder.shardIds(shardIds).build();
+                    }
+                    break;
+                }
+                for (int i = 0; i < args.numWorkers; i++) {
+                    builder.build();
+                }
+                break;
+            case "threads":
+                builder.executor(Executors.newFixedThreadPool(args.numWorkers))
+                        .concurrency(args.numWorkers)
+                        .build();
+                break;
+            case "forkjoin":
+                builder.executor(new ForkJoinPool(args.numWorkers))
+                        .concurrency(args.numWorkers)
+                        .build();
+                break;
+            case "virtual":
+                builder.executor(VirtualThreads.newExecutor())
+                        .concurrency(args.numWorkers)
+                        .build();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pool " + args.pool);
         }
 
         System.out.println(String.format("Started consuming tasks from queue %s.", args.queue));
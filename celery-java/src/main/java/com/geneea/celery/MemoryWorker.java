@@ -0,0 +1,93 @@
+package com.geneea.celery;
+
+import com.geneea.celery.backends.CeleryBackends;
+import com.geneea.celery.brokers.CeleryBrokers;
+import com.geneea.celery.brokers.memory.MemoryBroker;
+import com.geneea.celery.brokers.memory.MemoryMessage;
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.Metrics;
+import lombok.Builder;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Worker executing tasks submitted through a {@code memory://} broker in the same JVM, see {@link MemoryBroker}. Each
+ * of the {@code concurrency} threads takes a message from the queue and runs the task. The arguments the client gave
+ * as objects are passed to the task as they are if they have the parameter's class, so there is no serialization
+ * involved. Together with a {@code memory://} backend, the results don't get serialized either.
+ * <pre>
+ * MemoryWorker worker = MemoryWorker.builder().brokerUri("memory://local").backendUri("memory://local").build();
+ * Celery client = Celery.builder().brokerUri("memory://local").backendUri("memory://local").build();
+ * </pre>
+ */
+public class MemoryWorker extends PollingWorker<MemoryMessage> {
+
+    private final MemoryBroker broker;
+    private final String queue;
+
+    private MemoryWorker(MemoryBroker broker, String queue, Backend backend) {
+        super(backend);
+        this.broker = broker;
+        this.queue = queue;
+    }
+
+    /**
+     * Create a worker consuming tasks from a queue of a memory broker. Use {@code builder()} to call it.
+     *
+     * @param brokerUri {@code memory://} URI of the broker
+     * @param backendUri URI of the backend to report the results to, {@code brokerUri} by default
+     * @param queue queue to consume from, "celery" by default
+     * @param concurrency how many tasks can run at once, 1 by default
+     * @param metrics where to record the task metrics, see {@link Metrics}
+     * @param logEvery log every n-th succeeded task at INFO, 0 not to log them; every one by default
+     * @return started worker
+     */
+    @Builder
+    private static MemoryWorker newWorker(String brokerUri,
+                                          @Nullable String backendUri,
+                                          @Nullable String queue,
+                                          @Nullable Integer concurrency,
+                                          @Nullable Metrics metrics,
+                                          @Nullable Integer logEvery) {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Broker broker = CeleryBrokers.createBroker(brokerUri, executor);
+        if (!(broker instanceof MemoryBroker)) {
+            throw new IllegalArgumentException("MemoryWorker needs a memory:// broker, got " + brokerUri);
+        }
+        Backend backend = CeleryBackends.create(backendUri == null ? brokerUri : backendUri, executor);
+
+        MemoryWorker worker = new MemoryWorker((MemoryBroker) broker, queue == null ? "celery" : queue, backend);
+        worker.instrument(metrics, logEvery);
+        worker.start(concurrency == null ? 1 : concurrency, "celery-memory-worker");
+        return worker;
+    }
+
+    @Override
+    MemoryMessage take() throws InterruptedException {
+        return broker.take(queue);
+    }
+
+    @Override
+    boolean process(MemoryMessage message) throws IOException {
+        dispatcher.received(message.getTaskName(), message.getSentAt());
+        if (dispatcher.expired(message.getId(), message.getTaskName(), message.getReplyTo(), message.getId(),
+                message.getExpires())) {
+            return true;
+        }
+        return dispatcher.dispatch(
+                message.getId(),
+                message.getTaskName(),
+                message.getReplyTo(),
+                message.getId(),
+                message.getArgs() != null
+                        ? (method, mapper) -> method.bindArgs(message.getArgs(), mapper)
+                        : dispatcher.bodyDecoder(message.getBody(), message.getContentType(),
+                                message.getContentEncoding(), null, null),
+                message.getTimeLimit(),
+                null);
+    }
+}
@@ -0,0 +1,157 @@
+package com.geneea.celery;
+
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Metrics;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Base of the workers whose threads fetch the messages from the broker themselves, one message at a time per thread.
+ *
+ * @param <M> message type of the broker
+ */
+abstract class PollingWorker<M> implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CeleryWorker.class.getName());
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    protected final TaskDispatcher dispatcher;
+    private final Backend backend;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    PollingWorker(Backend backend) {
+        this(backend, null);
+    }
+
+    /**
+     * @param backend where to report the results
+     * @param blobStore where the clients keep the large bodies, {@code null} if they don't
+     */
+    PollingWorker(Backend backend, @Nullable BlobStore blobStore) {
+        this.backend = backend;
+        this.dispatcher = new TaskDispatcher(backend, blobStore);
+    }
+
+    /**
+     * @param metrics where to record the task metrics, nowhere if {@code null}
+     * @param logEvery log every n-th succeeded task at INFO, 0 for none; every one if {@code null}
+     */
+    void instrument(@Nullable Metrics metrics, @Nullable Integer logEvery) {
+        if (metrics != null) {
+            dispatcher.setMetrics(metrics);
+            // The messages are taken one at a time, nothing is prefetched.
+            metrics.workerStarted(this::getInFlightCount, () -> 0);
+        }
+        if (logEvery != null) {
+            dispatcher.setLogEvery(logEvery);
+        }
+    }
+
+    /**
+     * @return how many tasks the worker has taken and not yet finished
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @param threadCount how many threads to consume with
+     * @param name prefix of the thread names
+     */
+    void start(int threadCount, String name) {
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::consume, name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the next message, or {@code null} if there was none for a while
+     * @throws InterruptedException if interrupted while waiting for a message
+     * @throws IOException if the broker can't be reached
+     */
+    abstract M take() throws InterruptedException, IOException;
+
+    /**
+     * Run the task of the message and report the outcome.
+     *
+     * @param message message taken from the broker
+     * @return {@code false} if the message couldn't be processed and was dropped
+     * @throws IOException if the outcome couldn't be reported
+     */
+    abstract boolean process(M message) throws IOException;
+
+    private void consume() {
+        // Don't rely on the interrupt only, a task might have swallowed it.
+        while (!closed) {
+            M message;
+            try {
+                message = take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Couldn't fetch a task, retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            if (message == null) {
+                continue;
+            }
+
+            inFlight.incrementAndGet();
+            try {
+                if (!process(message)) {
+                    LOG.warning("Dropped a task that couldn't be processed");
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Couldn't report a task", e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            // The message is gone from the broker already, there's nothing to acknowledge once the results are out.
+            backend.reported().whenComplete((ignored, e) -> {
+                if (e != null) {
+                    LOG.log(Level.SEVERE, "Couldn't report a task", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the worker. The threads are interrupted, so the tasks still running are interrupted as well. The messages
+     * left in the queue stay there for other workers.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        backend.close();
+    }
+}
@@ -0,0 +1,132 @@
+package com.geneea.celery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how many deliveries the broker should send to a consumer in advance (prefetch, {@code basic.qos}).
+ * <p>
+ * To keep all the {@code concurrency} slots busy, the consumer needs enough messages buffered to cover the time it
+ * takes the broker to send a new message after an ack. By Little's law, that's {@code concurrency * (1 + L / S)} where
+ * {@code S} is the task service time and {@code L} is the refill latency - the broker round-trip from an ack to the
+ * delivery it lets the broker send. Both are measured as exponentially weighted moving averages. Millisecond tasks
+ * thus get a high prefetch and long tasks a prefetch close to {@code concurrency}, so they don't hoard messages other
+ * workers could process.
+ * <p>
+ * The broker sends a delivery for an ack only when the ack frees a full window of unacknowledged deliveries, so only
+ * the first delivery after such an ack is a refill. It's sampled only when no earlier delivery is waiting for a slot,
+ * as one already buffered says nothing about the round-trip, and only when it comes within {@value #MAX_REFILL_MILLIS}
+ * ms, a longer gap means the queue ran dry. The consumer must see the deliveries as they arrive, not run the tasks in
+ * its own thread.
+ */
+class PrefetchController {
+
+    private static final double ALPHA = 0.2;
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_REFILL_MILLIS = 1000;
+
+    private final int concurrency;
+    private final int minPrefetch;
+    private final int maxPrefetch;
+
+    private double serviceTimeNanos = Double.NaN;
+    private double refillLatencyNanos = 0;
+    private long lastAckNanos = 0;
+    private boolean refilling = false;
+    private int unacked = 0;
+    private int held = 0;
+    private long lastAdjustNanos = System.nanoTime();
+    private volatile int prefetch;
+
+    /**
+     * @param concurrency how many tasks the consumer runs at once
+     * @param minPrefetch lower bound of the prefetch, also the initial value
+     * @param maxPrefetch upper bound of the prefetch
+     */
+    PrefetchController(int concurrency, int minPrefetch, int maxPrefetch) {
+        if (minPrefetch < 1 || maxPrefetch < minPrefetch) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid prefetch bounds [%d, %d]", minPrefetch, maxPrefetch));
+        }
+        this.concurrency = concurrency;
+        this.minPrefetch = minPrefetch;
+        this.maxPrefetch = maxPrefetch;
+        this.prefetch = minPrefetch;
+    }
+
+    /**
+     * @return the currently chosen prefetch
+     */
+    int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @param nowNanos {@link System#nanoTime()} of the delivery
+     * @param idle whether no earlier delivery was waiting for a slot when this one arrived
+     */
+    synchronized void deliveryReceived(long nowNanos, boolean idle) {
+        unacked++;
+        if (refilling) {
+            refilling = false;
+            long latency = nowNanos - lastAckNanos;
+            if (idle && latency <= TimeUnit.MILLISECONDS.toNanos(MAX_REFILL_MILLIS)) {
+                refillLatencyNanos = ewma(refillLatencyNanos, latency);
+            }
+        }
+    }
+
+    /**
+     * @param nowNanos {@link System#nanoTime()} of the ack or reject
+     */
+    synchronized void acked(long nowNanos) {
+        // The held deliveries are among the unacknowledged ones, the window is wider by as many.
+        if (unacked >= prefetch + held) {
+            refilling = true;
+            lastAckNanos = nowNanos;
+        }
+        unacked = Math.max(0, unacked - 1);
+    }
+
+    /**
+     * @param delta how many more deliveries the consumer holds until their ETA, or fewer once they are due; the
+     *              consumer raises its prefetch by as many
+     */
+    synchronized void heldChanged(int delta) {
+        held += delta;
+    }
+
+    /**
+     * @return the measured refill latency
+     */
+    synchronized double getRefillLatencyNanos() {
+        return refillLatencyNanos;
+    }
+
+    /**
+     * @param serviceNanos how long the task took
+     * @param nowNanos {@link System#nanoTime()} of the completion
+     * @return new prefetch if it should be changed, otherwise -1
+     */
+    synchronized int taskCompleted(long serviceNanos, long nowNanos) {
+        serviceTimeNanos = Double.isNaN(serviceTimeNanos) ? serviceNanos : ewma(serviceTimeNanos, serviceNanos);
+
+        if (nowNanos - lastAdjustNanos < ADJUST_INTERVAL_NANOS) {
+            return -1;
+        }
+        lastAdjustNanos = nowNanos;
+
+        double target = concurrency * (1 + refillLatencyNanos / Math.max(serviceTimeNanos, 1));
+        int bounded = (int) Math.max(minPrefetch, Math.min(maxPrefetch, Math.round(target)));
+
+        // Some hysteresis so that the noise in the measurements doesn't make us send basic.qos all the time.
+        if (Math.abs(bounded - prefetch) < Math.max(1, prefetch / 10)) {
+            return -1;
+        }
+        prefetch = bounded;
+        return bounded;
+    }
+
+    private static double ewma(double average, double sample) {
+        return average + ALPHA * (sample - average);
+    }
+}
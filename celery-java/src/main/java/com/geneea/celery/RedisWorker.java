@@ -0,0 +1,127 @@
+package com.geneea.celery;
+
+import com.geneea.celery.backends.CeleryBackends;
+import com.geneea.celery.brokers.CeleryBrokers;
+import com.geneea.celery.brokers.redis.KombuMessage;
+import com.geneea.celery.brokers.redis.RedisBroker;
+import com.geneea.celery.blobstores.CeleryBlobStores;
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.Metrics;
+import com.geneea.celery.util.Compression;
+import lombok.Builder;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Worker executing tasks from a {@code redis://} broker, see {@link RedisBroker}. Each of the {@code concurrency}
+ * threads pops a message from the queue with {@code BRPOP} and runs the task.
+ * <pre>
+ * RedisWorker worker = RedisWorker.builder().brokerUri("redis://localhost:6379/0").concurrency(4).build();
+ * </pre>
+ */
+public class RedisWorker extends PollingWorker<KombuMessage> {
+
+    // Short enough for close() not to wait long for the threads.
+    private static final int POP_TIMEOUT_SECONDS = 1;
+
+    private final RedisBroker broker;
+    private final String queue;
+
+    private RedisWorker(RedisBroker broker, String queue, Backend backend, @Nullable BlobStore blobStore) {
+        super(backend, blobStore);
+        this.broker = broker;
+        this.queue = queue;
+    }
+
+    /**
+     * Create a worker consuming tasks from a queue of a Redis broker. Use {@code builder()} to call it.
+     *
+     * @param brokerUri {@code redis://} URI of the broker
+     * @param backendUri URI of the backend to report the results to, {@code brokerUri} by default
+     * @param queue queue to consume from, "celery" by default
+     * @param concurrency how many tasks can run at once, 1 by default
+     * @param blobStoreUri where the clients keep the large bodies, see {@link BlobStore}
+     * @param metrics where to record the task metrics, see {@link Metrics}
+     * @param logEvery log every n-th succeeded task at INFO, 0 not to log them; every one by default
+     * @return started worker
+     */
+    @Builder
+    private static RedisWorker newWorker(String brokerUri,
+                                         @Nullable String backendUri,
+                                         @Nullable String queue,
+                                         @Nullable Integer concurrency,
+                                         @Nullable String blobStoreUri,
+                                         @Nullable Metrics metrics,
+                                         @Nullable Integer logEvery) {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Broker broker = CeleryBrokers.createBroker(brokerUri, executor);
+        if (!(broker instanceof RedisBroker)) {
+            throw new IllegalArgumentException("RedisWorker needs a redis:// broker, got " + brokerUri);
+        }
+        Backend backend = CeleryBackends.create(backendUri == null ? brokerUri : backendUri, executor);
+
+        BlobStore blobStore = blobStoreUri == null ? null : CeleryBlobStores.create(blobStoreUri);
+
+        RedisWorker worker = new RedisWorker(
+                (RedisBroker) broker, queue == null ? "celery" : queue, backend, blobStore);
+        worker.instrument(metrics, logEvery);
+        worker.start(concurrency == null ? 1 : concurrency, "celery-redis-worker");
+        return worker;
+    }
+
+    /**
+     * Stop the worker and close the connections to the broker.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            broker.close();
+        }
+    }
+
+    @Override
+    KombuMessage take() throws IOException {
+        return broker.take(queue, POP_TIMEOUT_SECONDS);
+    }
+
+    @Override
+    boolean process(KombuMessage message) throws IOException {
+        try {
+            return dispatch(message);
+        } finally {
+            // The message is gone from the list already, it won't be delivered again.
+            dispatcher.dropBody(message.headers.get(BlobStore.HEADER));
+        }
+    }
+
+    private boolean dispatch(KombuMessage message) throws IOException {
+        String taskId = String.valueOf(message.headers.get("id"));
+        String taskName = String.valueOf(message.headers.get("task"));
+        dispatcher.received(taskName, message.headers.get(Metrics.SENT_AT_HEADER));
+        if (dispatcher.expired(taskId, taskName, message.properties.replyTo, message.properties.correlationId,
+                message.headers.get("expires"))) {
+            return true;
+        }
+
+        byte[] body = "base64".equals(message.properties.bodyEncoding)
+                ? Base64.getDecoder().decode(message.body)
+                : message.body.getBytes(message.contentEncoding == null ? "utf-8" : message.contentEncoding);
+        return dispatcher.dispatch(
+                taskId,
+                taskName,
+                message.properties.replyTo,
+                message.properties.correlationId,
+                dispatcher.bodyDecoder(body, message.contentType, message.contentEncoding,
+                        message.headers.get(Compression.HEADER), message.headers.get(BlobStore.HEADER)),
+                message.headers.get("timelimit"),
+                null);
+    }
+}
@@ -0,0 +1,57 @@
+package com.geneea.celery;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Fallback {@link TaskInvoker} for hand-written {@link CeleryTaskLoader}s. The methods are looked up once, when the
+ * invoker is created.
+ */
+class ReflectiveTaskInvoker implements TaskInvoker {
+
+    private final Object task;
+    private final Map<String, Method> methods;
+
+    ReflectiveTaskInvoker(Object task) {
+        this.task = task;
+
+        // Overloaded methods can't be told apart by the task name so they can't be dispatched to.
+        Map<String, Long> nameCounts = Arrays.stream(task.getClass().getDeclaredMethods())
+                .collect(Collectors.groupingBy(Method::getName, Collectors.counting()));
+        this.methods = Arrays.stream(task.getClass().getDeclaredMethods())
+                .filter((m) -> nameCounts.get(m.getName()) == 1)
+                .collect(ImmutableMap.toImmutableMap(Method::getName, Function.identity()));
+    }
+
+    @Override
+    public Object getTask() {
+        return task;
+    }
+
+    @Override
+    public Type[] getParameterTypes(String method) {
+        Method m = methods.get(method);
+        return m == null ? null : m.getGenericParameterTypes();
+    }
+
+    @Override
+    public Object invoke(String method, Object[] args) throws DispatchException, InvocationTargetException {
+        Method m = methods.get(method);
+        if (m == null) {
+            throw new DispatchException(String.format("Method %s not found in %s.", method, task.getClass()));
+        }
+
+        try {
+            return m.invoke(task, args);
+        } catch (IllegalAccessException e) {
+            throw new DispatchException(String.format("Error calling %s", m), e);
+        }
+    }
+}
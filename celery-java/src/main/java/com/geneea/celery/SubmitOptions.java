@@ -0,0 +1,122 @@
+package com.geneea.celery;
+
+import com.geneea.celery.serializers.CelerySerializers;
+import com.geneea.celery.spi.Serializer;
+import lombok.Builder;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Options of a single submitted task, see {@link Celery#submit(String, Object[], SubmitOptions)}. The options left
+ * unset take the client's defaults.
+ */
+public class SubmitOptions {
+
+    /**
+     * No options, the task is submitted as the client is configured.
+     */
+    public static final SubmitOptions DEFAULTS = builder().build();
+
+    @Nullable private final Serializer serializer;
+    @Nullable private final String shardKey;
+    @Nullable private final Integer priority;
+    @Nullable private final Instant eta;
+    @Nullable private final Duration countdown;
+    @Nullable private final Instant expires;
+    @Nullable private final Duration expiresAfter;
+    @Nullable private final Duration softTimeLimit;
+    @Nullable private final Duration timeLimit;
+
+    /**
+     * @param serializer how to serialize the task arguments ({@code json} or {@code msgpack}, see
+     *                   {@link CelerySerializers}); the client's serializer by default
+     * @param shardKey when the client's queue is sharded, the tasks with the same key go to the same shard and so
+     *                 keep their order; without a key, the tasks are sent to the shards in turn
+     * @param priority the tasks of higher priority overtake the others waiting in the queue, from 0 (the default) up
+     *                 to the client's {@code maxPriority}
+     * @param eta don't run the task before this time; the worker holds the message until then
+     * @param countdown don't run the task until this long after it's submitted, instead of {@code eta}
+     * @param expires don't run the task after this time; the worker drops it without decoding its arguments and the
+     *                client gets a {@code TaskRevokedError}
+     * @param expiresAfter don't run the task later than this long after it's submitted, instead of {@code expires}
+     * @param softTimeLimit interrupt the task's thread once it runs this long, so that the task can stop on its own;
+     *                      the task's own {@link CeleryTask#softTimeLimit()} by default
+     * @param timeLimit give the task up once it runs this long, the client gets a {@link TimeLimitExceeded}; the
+     *                  task's own {@link CeleryTask#timeLimit()} by default
+     * @throws IllegalArgumentException if the serializer is unknown or its library isn't on the classpath, if the
+     *                                  priority is out of range, if both {@code eta} and {@code countdown} or both
+     *                                  {@code expires} and {@code expiresAfter} are given, or if a time limit isn't
+     *                                  positive
+     */
+    @Builder
+    private SubmitOptions(@Nullable String serializer, @Nullable String shardKey, @Nullable Integer priority,
+                          @Nullable Instant eta, @Nullable Duration countdown,
+                          @Nullable Instant expires, @Nullable Duration expiresAfter,
+                          @Nullable Duration softTimeLimit, @Nullable Duration timeLimit) {
+        if (priority != null && (priority < 0 || priority > 255)) {
+            throw new IllegalArgumentException("The priority must be between 0 and 255, got " + priority);
+        }
+        if (eta != null && countdown != null) {
+            throw new IllegalArgumentException("Give either the ETA or the countdown, not both");
+        }
+        if (expires != null && expiresAfter != null) {
+            throw new IllegalArgumentException("Give either the expiry time or how long after it expires, not both");
+        }
+        if (softTimeLimit != null && (softTimeLimit.isNegative() || softTimeLimit.isZero())
+                || timeLimit != null && (timeLimit.isNegative() || timeLimit.isZero())) {
+            throw new IllegalArgumentException("The time limits must be positive");
+        }
+        this.softTimeLimit = softTimeLimit;
+        this.timeLimit = timeLimit;
+        this.expires = expires;
+        this.expiresAfter = expiresAfter;
+        this.eta = eta;
+        this.countdown = countdown;
+        this.serializer = serializer == null ? null : CelerySerializers.forName(serializer);
+        this.shardKey = shardKey;
+        this.priority = priority;
+    }
+
+    @Nullable
+    Serializer getSerializer() {
+        return serializer;
+    }
+
+    @Nullable
+    String getShardKey() {
+        return shardKey;
+    }
+
+    @Nullable
+    Integer getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the earliest time to run the task, {@code null} to run it right away
+     */
+    @Nullable
+    Instant getEta() {
+        return countdown != null ? Instant.now().plus(countdown) : eta;
+    }
+
+    /**
+     * @return the latest time to run the task, {@code null} if it doesn't expire
+     */
+    @Nullable
+    Instant getExpires() {
+        return expiresAfter != null ? Instant.now().plus(expiresAfter) : expires;
+    }
+
+    @Nullable
+    Duration getSoftTimeLimit() {
+        return softTimeLimit;
+    }
+
+    @Nullable
+    Duration getTimeLimit() {
+        return timeLimit;
+    }
+}
@@ -0,0 +1,440 @@
+package com.geneea.celery;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.geneea.celery.serializers.CelerySerializers;
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Metrics;
+import com.geneea.celery.util.Compression;
+import com.geneea.celery.util.Timestamps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.BaseStream;
+
+/**
+ * Runs the tasks and reports their outcome to a backend, regardless of how the tasks were delivered. The workers only
+ * receive the messages and acknowledge or reject them.
+ */
+class TaskDispatcher {
+
+    // Log under the worker's name, that's what the users configure.
+    private static final Logger LOG = Logger.getLogger(CeleryWorker.class.getName());
+
+    static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final Map<String, TaskMethod> taskMethods = new ConcurrentHashMap<>();
+    // The names that aren't tasks, so that each message of one isn't looked up again; bounded as the names come from
+    // the messages, and expiring in case the task is registered later.
+    private final Cache<String, DispatchException> unknownTasks = CacheBuilder.newBuilder()
+            .maximumSize(1024)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    private final Backend backend;
+    private final int chunkSize;
+    @Nullable private final BlobStore blobStore;
+    private final AtomicLong logCounter = new AtomicLong();
+    // Set up by the workers' builders before the first task.
+    private volatile Metrics metrics = Metrics.NONE;
+    private volatile int logEvery = 1;
+
+    /**
+     * Turns the delivered message into the task arguments. The mapper is the worker's JSON one, for the messages
+     * carrying the arguments as objects; the bodies are read in their own format.
+     */
+    interface ArgsDecoder {
+        Object[] decode(TaskMethod method, ObjectMapper mapper) throws IOException;
+    }
+
+    TaskDispatcher(Backend backend) {
+        this(backend, null);
+    }
+
+    TaskDispatcher(Backend backend, @Nullable BlobStore blobStore) {
+        this(backend, DEFAULT_CHUNK_SIZE, blobStore);
+    }
+
+    /**
+     * @param backend where to report the results
+     * @param chunkSize how many items of a streamed result go in one message
+     * @param blobStore where the large bodies are kept, {@code null} if the clients don't use one
+     */
+    TaskDispatcher(Backend backend, int chunkSize, @Nullable BlobStore blobStore) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("The chunk size must be positive, got " + chunkSize);
+        }
+        this.backend = backend;
+        this.chunkSize = chunkSize;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * @param metrics where to record the task execution times and queue waits
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param logEvery log every n-th succeeded task at INFO, 0 not to log them at all
+     */
+    void setLogEvery(int logEvery) {
+        if (logEvery < 0) {
+            throw new IllegalArgumentException("logEvery must not be negative, got " + logEvery);
+        }
+        this.logEvery = logEvery;
+    }
+
+    /**
+     * Record that a task was received.
+     *
+     * @param taskName full task name
+     * @param sentAt the {@value Metrics#SENT_AT_HEADER} header, {@code null} or 0 if unknown
+     */
+    void received(String taskName, @Nullable Object sentAt) {
+        if (sentAt instanceof Number && ((Number) sentAt).longValue() > 0) {
+            metrics.received(metricName(taskName), System.currentTimeMillis() - ((Number) sentAt).longValue());
+        }
+    }
+
+    /**
+     * @return the task name if the task is known, {@link Metrics#UNKNOWN_TASK} otherwise
+     */
+    private String metricName(String taskName) {
+        try {
+            resolve(taskName);
+            return taskName;
+        } catch (DispatchException e) {
+            return Metrics.UNKNOWN_TASK;
+        }
+    }
+
+    /**
+     * Report a task past its {@code expires} time as revoked. This needs only the headers, so a backlog of expired
+     * tasks is drained without decoding any of the bodies.
+     *
+     * @param taskId unique task ID as received
+     * @param taskName full task name
+     * @param replyTo where to report the result (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param expires the {@code expires} header, {@code null} if the task doesn't expire
+     * @return {@code true} if the task has expired and mustn't run; its message should be acknowledged
+     * @throws IOException if the revocation couldn't be reported
+     */
+    boolean expired(String taskId, String taskName, String replyTo, String correlationId, @Nullable Object expires)
+            throws IOException {
+        if (expires == null) {
+            return false;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Timestamps.parse(expires).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            LOG.log(Level.WARNING, String.format("CeleryTask %s has a malformed expiry %s, running it", taskId,
+                    expires), e);
+            return false;
+        }
+        if (expiresAt > System.currentTimeMillis()) {
+            return false;
+        }
+        LOG.fine(() -> String.format("CeleryTask %s[%s] expired at %s", taskName, taskId, expires));
+        backend.reportRevoked(taskId, replyTo, correlationId, "expired");
+        return true;
+    }
+
+    /**
+     * Decoder of a message body in the format of its content type. A body kept in the blob store is read from there
+     * only once the task is resolved, straight from the store's buffer. It stays in the store, in case the message is
+     * delivered again, until the worker drops the message, see {@link #dropBody(Object)}.
+     *
+     * @param body message body
+     * @param contentType content type of the body, JSON if {@code null}
+     * @param encoding encoding of the body
+     * @param compression the {@code compression} header, {@code null} if the body isn't compressed
+     * @param claimCheck the {@value BlobStore#HEADER} header, {@code null} if the body isn't in the blob store
+     * @return decoder of the task arguments
+     */
+    ArgsDecoder bodyDecoder(byte[] body, @Nullable String contentType, @Nullable String encoding,
+                            @Nullable Object compression, @Nullable Object claimCheck) {
+        return (method, mapper) -> {
+            ObjectMapper format = CelerySerializers.forContentType(contentType).getMapper();
+            if (claimCheck == null) {
+                return method.decodeArgs(Compression.decompress(compression, body), encoding, format);
+            }
+            if (blobStore == null) {
+                throw new IOException("The body is kept in a blob store but the worker has none");
+            }
+
+            return method.decodeArgs(
+                    Compression.decompressing(compression,
+                            new ByteBufferBackedInputStream(blobStore.get(claimCheck.toString()))),
+                    encoding, format);
+        };
+    }
+
+    /**
+     * Delete the body of a message from the blob store, once the message is acknowledged or rejected for good and won't
+     * be delivered again.
+     *
+     * @param claimCheck the {@value BlobStore#HEADER} header, {@code null} if the body isn't in the blob store
+     */
+    void dropBody(@Nullable Object claimCheck) {
+        if (claimCheck == null || blobStore == null) {
+            return;
+        }
+        String key = claimCheck.toString();
+        try {
+            blobStore.delete(key);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't delete the blob " + key, e);
+        }
+    }
+
+    /**
+     * Run the task and report its result or exception.
+     *
+     * @param taskId unique task ID as received
+     * @param taskName full task name ({@code package.ClassName#method})
+     * @param replyTo where to report the result (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param args decoder of the task arguments
+     * @return {@code true} if the message should be acknowledged, {@code false} if it should be rejected because it
+     *         couldn't be decoded or the worker failed unexpectedly
+     * @throws IOException if the result couldn't be reported
+     */
+    boolean dispatch(String taskId, String taskName, String replyTo, String correlationId, ArgsDecoder args)
+            throws IOException {
+        return dispatch(taskId, taskName, replyTo, correlationId, args, null, null);
+    }
+
+    /**
+     * Run the task within its time limits and report its result or exception. A task given up at its hard limit is
+     * reported as failed with {@link TimeLimitExceeded} as soon as the limit passes, without waiting for its thread.
+     * The limits hold until a returned iterator or stream is reported too, as a lazy one only does its work then.
+     *
+     * @param taskId unique task ID as received
+     * @param taskName full task name ({@code package.ClassName#method})
+     * @param replyTo where to report the result (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param args decoder of the task arguments
+     * @param timeLimit the {@code timelimit} header, {@code [hard, soft]} in seconds; {@code null} for the task's own
+     *                  limits
+     * @param giveUp called once a task given up at its hard limit is reported, so the worker can acknowledge the
+     *               message and let the task's thread go; {@code null} if the worker just waits for the thread
+     * @return {@code true} if the message should be acknowledged, {@code false} if it should be rejected because it
+     *         couldn't be decoded or the worker failed unexpectedly
+     * @throws IOException if the result couldn't be reported
+     */
+    boolean dispatch(String taskId, String taskName, String replyTo, String correlationId, ArgsDecoder args,
+                     @Nullable Object timeLimit, @Nullable Runnable giveUp) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        String metricName = Metrics.UNKNOWN_TASK;
+        try {
+            TaskMethod method = resolve(taskName);
+            metricName = taskName;
+            Object[] decoded = decode(args, method);
+            long hardMillis = TimeLimit.millis(timeLimit, 0, method.getTimeLimit());
+            TimeLimit limit = TimeLimit.start(TimeLimit.millis(timeLimit, 1, method.getSoftTimeLimit()), hardMillis,
+                    () -> giveUp(taskId, taskName, replyTo, correlationId, hardMillis, giveUp));
+
+            Object result;
+            boolean streamed = false;
+            try {
+                result = method.invoke(decoded);
+                if (result instanceof Iterator || result instanceof BaseStream) {
+                    failed = !reportStream(taskId, taskName, replyTo, correlationId, result, start, limit);
+                    streamed = true;
+                }
+            } catch (Exception e) {
+                if (limit != null && !limit.finish()) {
+                    return true;
+                }
+                throw e;
+            }
+            if (limit != null && !limit.finish()) {
+                failed = true;
+                return true;
+            }
+            if (streamed) {
+                return true;
+            }
+
+            if (shouldLog()) {
+                LOG.info(String.format("CeleryTask %s[%s] succeeded in %.3f ms. Result was: %s",
+                        taskName, taskId, millisSince(start), result));
+            }
+
+            backend.reportResult(taskId, replyTo, correlationId, result);
+            failed = false;
+            return true;
+        } catch (DispatchException e) {
+            LOG.log(Level.SEVERE, String.format("CeleryTask %s dispatch error", taskId), e.getCause());
+            backend.reportException(taskId, replyTo, correlationId, e);
+            return true;
+        } catch (InvocationTargetException e) {
+            LOG.log(Level.WARNING, String.format("CeleryTask %s error", taskId), e.getCause());
+            backend.reportException(taskId, replyTo, correlationId, e.getCause());
+            return true;
+        } catch (JsonProcessingException e) {
+            LOG.log(Level.SEVERE, String.format("CeleryTask %s - %s", taskId, e), e.getCause());
+            backend.reportException(taskId, replyTo, correlationId, e);
+            return false;
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, String.format("CeleryTask %s - %s", taskId, e), e);
+            backend.reportException(taskId, replyTo, correlationId, e.getCause() != null ? e.getCause() : e);
+            return false;
+        } finally {
+            metrics.executed(metricName, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Report a task over its hard time limit, from the time limits' own thread.
+     */
+    private void giveUp(String taskId, String taskName, String replyTo, String correlationId, long limitMillis,
+                        @Nullable Runnable then) {
+        LOG.warning(String.format("CeleryTask %s[%s] exceeded its time limit of %d ms, giving it up",
+                taskName, taskId, limitMillis));
+        try {
+            backend.reportException(taskId, replyTo, correlationId, new TimeLimitExceeded(limitMillis));
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.SEVERE, String.format("Couldn't report CeleryTask %s over its time limit", taskId), e);
+        }
+        if (then != null) {
+            then.run();
+        }
+    }
+
+    /**
+     * Sample the succeeded tasks to log, the failures are always logged.
+     */
+    private boolean shouldLog() {
+        int every = logEvery;
+        return every > 0 && LOG.isLoggable(Level.INFO) && (every == 1 || logCounter.getAndIncrement() % every == 0);
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Any failure to decode the arguments, such as a corrupted compressed body or an unknown content type, means a
+     * malformed message.
+     */
+    private Object[] decode(ArgsDecoder args, TaskMethod method) throws JsonProcessingException {
+        try {
+            return args.decode(method, jsonMapper);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new JsonMappingException((Closeable) null, "Couldn't decode the message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Report the items of a returned iterator or stream. If the backend can't deliver them in chunks, they are all
+     * collected into a list first. An exception thrown while producing the items is the task's failure. Once the task
+     * is given up at its hard limit, the rest of the items is dropped.
+     *
+     * @return {@code false} if the task failed or was given up while producing the items
+     */
+    private boolean reportStream(String taskId, String taskName, String replyTo, String correlationId, Object result,
+                                 long start, @Nullable TimeLimit limit) throws IOException {
+        List<Object> chunk = new ArrayList<>();
+        long count = 0;
+        boolean streaming = backend.supportsStreaming();
+
+        BaseStream<?, ?> stream = result instanceof BaseStream ? (BaseStream<?, ?>) result : null;
+        Iterator<?> items = stream != null ? stream.iterator() : (Iterator<?>) result;
+        try {
+            while (true) {
+                Object item;
+                try {
+                    if (!items.hasNext()) {
+                        break;
+                    }
+                    item = items.next();
+                } catch (Throwable e) {
+                    // Anything the iterator throws, errors and sneaky checked exceptions too, is the task's failure,
+                    // unless the task was given up and reported already.
+                    if (limit != null && limit.isGivenUp()) {
+                        return false;
+                    }
+                    LOG.log(Level.WARNING, String.format("CeleryTask %s error", taskId), e);
+                    backend.reportException(taskId, replyTo, correlationId, e);
+                    return false;
+                }
+                if (limit != null && limit.isGivenUp()) {
+                    return false;
+                }
+                chunk.add(item);
+                count++;
+                if (streaming && chunk.size() == chunkSize) {
+                    backend.reportChunk(taskId, replyTo, correlationId, chunk);
+                    chunk = new ArrayList<>();
+                }
+            }
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        if (limit != null && limit.isGivenUp()) {
+            return false;
+        }
+        if (shouldLog()) {
+            LOG.info(String.format("CeleryTask %s[%s] streamed %d items in %.3f ms",
+                    taskName, taskId, count, millisSince(start)));
+        }
+
+        if (!streaming) {
+            backend.reportResult(taskId, replyTo, correlationId, chunk);
+            return true;
+        }
+        // Even an empty result goes out as a chunk so the client always gets an iterator.
+        if (!chunk.isEmpty() || count == 0) {
+            backend.reportChunk(taskId, replyTo, correlationId, chunk);
+        }
+        backend.reportResult(taskId, replyTo, correlationId, count);
+        return true;
+    }
+
+    private TaskMethod resolve(String taskName) throws DispatchException {
+        TaskMethod method = taskMethods.get(taskName);
+
+        if (method == null) {
+            DispatchException unknown = unknownTasks.getIfPresent(taskName);
+            if (unknown != null) {
+                throw unknown;
+            }
+            try {
+                method = TaskMethod.resolve(taskName, jsonMapper);
+            } catch (DispatchException e) {
+                unknownTasks.put(taskName, e);
+                throw e;
+            }
+            taskMethods.put(taskName, method);
+        }
+        return method;
+    }
+}
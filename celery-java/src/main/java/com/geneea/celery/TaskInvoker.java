@@ -0,0 +1,49 @@
+package com.geneea.celery;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Type;
+
+/**
+ * Calls methods of a {@link CeleryTask} instance on behalf of the {@link CeleryWorker}.
+ * <p>
+ * An invoker is generated for every class annotated with {@link CeleryTask}. It dispatches by a switch on the method
+ * name and calls the method directly so that the worker doesn't need any reflection on the hot path. Loaders that
+ * are not generated get a reflection-based invoker, see {@link CeleryTaskLoader#loadInvoker()}.
+ */
+public interface TaskInvoker {
+
+    /**
+     * @return the task instance the calls are dispatched to
+     */
+    Object getTask();
+
+    /**
+     * @param method name of the task method
+     * @return declared types of the method parameters (the array must not be modified) or {@code null} if the task
+     *         has no method of this name that can be dispatched to
+     */
+    Type[] getParameterTypes(String method);
+
+    /**
+     * @param method name of the task method
+     * @param args arguments already converted to the types given by {@link #getParameterTypes(String)}
+     * @return value returned by the method, {@code null} for void methods
+     * @throws DispatchException if there's no such method
+     * @throws InvocationTargetException wrapping whatever the task method has thrown
+     */
+    Object invoke(String method, Object[] args) throws DispatchException, InvocationTargetException;
+
+    /**
+     * @return soft time limit of the task's methods in seconds, 0 for none; see {@link CeleryTask#softTimeLimit()}
+     */
+    default double getSoftTimeLimit() {
+        return 0;
+    }
+
+    /**
+     * @return hard time limit of the task's methods in seconds, 0 for none; see {@link CeleryTask#timeLimit()}
+     */
+    default double getTimeLimit() {
+        return 0;
+    }
+}
@@ -0,0 +1,185 @@
+package com.geneea.celery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import com.google.common.primitives.Primitives;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+/**
+ * A task method resolved from the full task name ({@code package.ClassName#method}). The worker resolves each task name
+ * once and keeps the result so the dispatch itself doesn't need to parse the name or look anything up.
+ */
+class TaskMethod {
+
+    private final TaskInvoker invoker;
+    private final String method;
+    private final JavaType[] parameterTypes;
+    private final ObjectReader[] argReaders;
+
+    private TaskMethod(TaskInvoker invoker, String method, JavaType[] parameterTypes, ObjectReader[] argReaders) {
+        this.invoker = invoker;
+        this.method = method;
+        this.parameterTypes = parameterTypes;
+        this.argReaders = argReaders;
+    }
+
+    static TaskMethod resolve(String taskName, ObjectMapper mapper) throws DispatchException {
+        int hash = taskName.indexOf('#');
+
+        if (hash < 0 || hash != taskName.lastIndexOf('#')) {
+            throw new DispatchException(String.format(
+                    "This worker can only process tasks with name in form package.ClassName#method, got %s",
+                    taskName));
+        }
+
+        TaskInvoker invoker = TaskRegistry.getInvoker(taskName.substring(0, hash));
+
+        if (invoker == null) {
+            throw new DispatchException(String.format("CeleryTask %s not registered.", taskName));
+        }
+
+        String method = taskName.substring(hash + 1);
+        Type[] types = invoker.getParameterTypes(method);
+
+        if (types == null) {
+            throw new DispatchException(String.format("CeleryTask %s has no method %s.", taskName, method));
+        }
+
+        // Readers for a concrete type have their deserializers looked up right away, not on each message.
+        JavaType[] parameterTypes = new JavaType[types.length];
+        ObjectReader[] argReaders = new ObjectReader[types.length];
+        for (int i = 0; i < types.length; i++) {
+            parameterTypes[i] = mapper.getTypeFactory().constructType(types[i]);
+            argReaders[i] = mapper.readerFor(parameterTypes[i]);
+        }
+        return new TaskMethod(invoker, method, parameterTypes, argReaders);
+    }
+
+    /**
+     * Decode the arguments from the message body in the protocol v2 format ({@code [args, kwargs, embed]}). The body is
+     * parsed as a stream and each argument is bound directly to its parameter type, so no intermediate string or JSON
+     * tree is built. Only the positional arguments are read; missing ones are {@code null} and extra ones are skipped.
+     *
+     * @param body message body
+     * @param encoding body encoding, UTF-8 if {@code null}; {@code binary} for binary formats
+     * @param mapper mapper of the body's format, whose parser factory is used
+     * @return the arguments for {@link #invoke(Object[])}
+     * @throws IOException if the body is not a valid task message
+     */
+    Object[] decodeArgs(byte[] body, String encoding, ObjectMapper mapper) throws IOException {
+        return decodeArgs(new ByteArrayInputStream(body), body, encoding, mapper);
+    }
+
+    /**
+     * Decode the arguments from a message body read as a stream, such as a body kept in a blob store. See
+     * {@link #decodeArgs(byte[], String, ObjectMapper)}.
+     *
+     * @param body message body
+     * @param encoding body encoding, UTF-8 if {@code null}; {@code binary} for binary formats
+     * @param mapper mapper of the body's format, whose parser factory is used
+     * @return the arguments for {@link #invoke(Object[])}
+     * @throws IOException if the body is not a valid task message or can't be read
+     */
+    Object[] decodeArgs(InputStream body, String encoding, ObjectMapper mapper) throws IOException {
+        return decodeArgs(body, null, encoding, mapper);
+    }
+
+    private Object[] decodeArgs(InputStream body, byte[] bytes, String encoding, ObjectMapper mapper)
+            throws IOException {
+        try (JsonParser parser = createParser(mapper.getFactory(), body, bytes, encoding)) {
+            expect(parser, JsonToken.START_ARRAY);
+            expect(parser, JsonToken.START_ARRAY);
+
+            Object[] args = new Object[argReaders.length];
+            int i = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (i < args.length) {
+                    args[i] = argReaders[i].readValue(parser);
+                } else {
+                    parser.skipChildren();
+                }
+                i++;
+            }
+            return args;
+        }
+    }
+
+    /**
+     * Prepare arguments passed as objects, without a message body. An argument already of its parameter's class is
+     * passed as it is; other arguments, and all the arguments of generic types whose elements can't be checked, are
+     * converted by the mapper.
+     *
+     * @param args arguments as given to the client
+     * @param mapper mapper converting the arguments
+     * @return the arguments for {@link #invoke(Object[])}
+     * @throws IOException if an argument can't be converted to its parameter type
+     */
+    Object[] bindArgs(Object[] args, ObjectMapper mapper) throws IOException {
+        Object[] bound = new Object[parameterTypes.length];
+        for (int i = 0; i < bound.length && i < args.length; i++) {
+            JavaType type = parameterTypes[i];
+            Object arg = args[i];
+            if (arg == null || !type.hasGenericTypes() && Primitives.wrap(type.getRawClass()).isInstance(arg)) {
+                bound[i] = arg;
+            } else {
+                try {
+                    bound[i] = mapper.convertValue(arg, type);
+                } catch (IllegalArgumentException e) {
+                    throw JsonMappingException.from((JsonParser) null, e.getMessage(), e);
+                }
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * @return the task's own soft time limit in seconds, 0 for none
+     */
+    double getSoftTimeLimit() {
+        return invoker.getSoftTimeLimit();
+    }
+
+    /**
+     * @return the task's own hard time limit in seconds, 0 for none
+     */
+    double getTimeLimit() {
+        return invoker.getTimeLimit();
+    }
+
+    Object invoke(Object[] args) throws DispatchException, InvocationTargetException {
+        return invoker.invoke(method, args);
+    }
+
+    /**
+     * The parser reads the body's bytes directly, if it has them.
+     */
+    private static JsonParser createParser(JsonFactory factory, InputStream body, byte[] bytes, String encoding)
+            throws IOException {
+        Charset charset = encoding == null || "binary".equals(encoding) ? null : Charset.forName(encoding);
+        // The parser detects the UTF flavours by itself and reads them straight from the bytes.
+        if (charset != null && !charset.name().startsWith("UTF-")) {
+            return factory.createParser(new InputStreamReader(body, charset));
+        }
+        return bytes != null ? factory.createParser(bytes) : factory.createParser(body);
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException {
+        if (parser.nextToken() != token) {
+            throw MismatchedInputException.from(parser, Object[].class, String.format(
+                    "Expected %s in the task message, got %s", token, parser.currentToken()));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.geneea.celery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+
+/**
+ * Serializes task arguments into the protocol v2 message body ({@code [args, kwargs, embed]}). The body is written
+ * with a streaming generator and each argument by an {@link ObjectWriter} prepared for its class the first time the
+ * class is seen, so submitting a task doesn't build a JSON tree nor look up serializers.
+ */
+class TaskPayloadWriter {
+
+    private final JsonFactory factory;
+    private final ClassValue<ObjectWriter> writers;
+
+    TaskPayloadWriter(ObjectMapper mapper) {
+        this.factory = mapper.getFactory();
+        this.writers = new ClassValue<ObjectWriter>() {
+            @Override
+            protected ObjectWriter computeValue(Class<?> type) {
+                return mapper.writerFor(type);
+            }
+        };
+    }
+
+    byte[] write(Object[] args) throws IOException {
+        ByteArrayBuilder out = new ByteArrayBuilder();
+        try (JsonGenerator gen = factory.createGenerator(out)) {
+            gen.writeStartArray();
+
+            gen.writeStartArray();
+            for (Object arg : args) {
+                if (arg == null) {
+                    gen.writeNull();
+                } else {
+                    writers.get(arg.getClass()).writeValue(gen, arg);
+                }
+            }
+            gen.writeEndArray();
+
+            gen.writeStartObject();
+            gen.writeEndObject();
+
+            gen.writeStartObject();
+            gen.writeNullField("callbacks");
+            gen.writeNullField("chain");
+            gen.writeNullField("chord");
+            gen.writeNullField("errbacks");
+            gen.writeEndObject();
+
+            gen.writeEndArray();
+        }
+        return out.toByteArray();
+    }
+}
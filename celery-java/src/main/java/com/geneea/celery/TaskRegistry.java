@@ -9,20 +9,20 @@ import java.util.Set;
 import java.util.function.Function;
 
 /**
- * Loads registered {@link CeleryTask} services and provides them by their class name.
+ * Loads registered {@link CeleryTask} services and provides their invokers by the task class name.
  */
 class TaskRegistry {
 
-    private static final Map<String, Object> TASKS = Streams
+    private static final Map<String, TaskInvoker> TASKS = Streams
             .stream(ServiceLoader.load(CeleryTaskLoader.class))
-            .map((loader) -> loader.loadTask())
-            .collect(ImmutableMap.toImmutableMap((v) -> v.getClass().getName(), Function.identity()));
+            .map((loader) -> loader.loadInvoker())
+            .collect(ImmutableMap.toImmutableMap((v) -> v.getTask().getClass().getName(), Function.identity()));
 
     static Set<String> getRegisteredTaskNames() {
         return TASKS.keySet();
     }
 
-    static Object getTask(String taskName) {
+    static TaskInvoker getInvoker(String taskName) {
         return TASKS.get(taskName);
     }
 }
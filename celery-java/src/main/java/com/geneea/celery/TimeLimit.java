@@ -0,0 +1,137 @@
+package com.geneea.celery;
+
+import com.geneea.celery.util.TimingWheel;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time limits of a running task, enforced by timeouts on a timing wheel shared by all the workers rather than by
+ * a watchdog thread per task.
+ * <p>
+ * At the soft limit, the task's thread is interrupted, so a task blocked interruptibly or checking
+ * {@link Thread#interrupted()} can stop on its own. At the hard limit, the task is given up: its thread is interrupted
+ * once more and the worker reports the failure and lets the thread go right away. A Java thread can't be killed, so
+ * the thread runs on until the task returns; whatever it returns then is ignored.
+ */
+final class TimeLimit {
+
+    private enum State { RUNNING, DONE, GIVEN_UP }
+
+    private final Thread thread = Thread.currentThread();
+    @Nullable private final TimingWheel.Timeout soft;
+    @Nullable private final TimingWheel.Timeout hard;
+    // Guarded by this, so that the thread is never interrupted once the task is done.
+    private State state = State.RUNNING;
+    private boolean interrupted = false;
+
+    private TimeLimit(long softMillis, long hardMillis, Runnable giveUp) {
+        this.soft = softMillis > 0
+                ? Timers.WHEEL.schedule(this::interrupt, softMillis, TimeUnit.MILLISECONDS)
+                : null;
+        this.hard = hardMillis > 0
+                ? Timers.WHEEL.schedule(() -> {
+                    if (giveUp()) {
+                        Timers.GIVE_UP.execute(giveUp);
+                    }
+                }, hardMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    /**
+     * Start watching the task running in the current thread.
+     *
+     * @param softMillis soft limit, 0 for none
+     * @param hardMillis hard limit, 0 for none
+     * @param giveUp what to do once the task is given up at the hard limit, such as reporting the failure
+     * @return the limits, {@code null} if there are none
+     */
+    @Nullable
+    static TimeLimit start(long softMillis, long hardMillis, Runnable giveUp) {
+        if (softMillis <= 0 && hardMillis <= 0) {
+            return null;
+        }
+        return new TimeLimit(softMillis, hardMillis, giveUp);
+    }
+
+    /**
+     * Stop watching the task, called by the task's thread once the task returns. The interruption by the limits, if
+     * any, is cleared so it doesn't leak to the next task of the thread.
+     *
+     * @return {@code false} if the task was given up at its hard limit and its outcome must be ignored
+     */
+    boolean finish() {
+        boolean done;
+        boolean clear;
+        synchronized (this) {
+            done = state == State.RUNNING;
+            if (done) {
+                state = State.DONE;
+            }
+            clear = interrupted;
+        }
+        if (soft != null) {
+            soft.cancel();
+        }
+        if (hard != null) {
+            hard.cancel();
+        }
+        if (clear) {
+            Thread.interrupted();
+        }
+        return done;
+    }
+
+    /**
+     * @return whether the task was given up at its hard limit, so that it can stop reporting its results
+     */
+    synchronized boolean isGivenUp() {
+        return state == State.GIVEN_UP;
+    }
+
+    /**
+     * Parse a limit from the {@code timelimit} header, {@code [hard, soft]} in seconds as Celery sends it.
+     *
+     * @param header the header, {@code null} if there is none
+     * @param index 0 for the hard limit, 1 for the soft one
+     * @param defaultSeconds the task's own limit, used if the header doesn't set it
+     * @return the limit in milliseconds, 0 for none
+     */
+    static long millis(@Nullable Object header, int index, double defaultSeconds) {
+        Object value = header instanceof List && ((List<?>) header).size() > index
+                ? ((List<?>) header).get(index)
+                : null;
+        double seconds = value instanceof Number ? ((Number) value).doubleValue() : defaultSeconds;
+        return seconds > 0 ? Math.max(1, (long) (seconds * 1000)) : 0;
+    }
+
+    private synchronized void interrupt() {
+        if (state == State.RUNNING) {
+            interrupted = true;
+            thread.interrupt();
+        }
+    }
+
+    private synchronized boolean giveUp() {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        interrupt();
+        state = State.GIVEN_UP;
+        return true;
+    }
+
+    /**
+     * The wheel only interrupts the threads; reporting the given up tasks takes longer, it's done on a thread of its
+     * own.
+     */
+    private static class Timers {
+        static final TimingWheel WHEEL = new TimingWheel("celery-time-limit", 100, TimeUnit.MILLISECONDS, 512);
+        static final Executor GIVE_UP = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("celery-time-limit-%d").setDaemon(true).build());
+    }
+}
@@ -0,0 +1,11 @@
+package com.geneea.celery;
+
+/**
+ * A task given up by the worker at its hard time limit, named like Celery's own so that the Python clients recognize
+ * it. See {@link CeleryTask#timeLimit()} and {@link SubmitOptions}.
+ */
+public class TimeLimitExceeded extends Exception {
+    public TimeLimitExceeded(long limitMillis) {
+        super(String.format("The task ran longer than its time limit of %d ms", limitMillis));
+    }
+}
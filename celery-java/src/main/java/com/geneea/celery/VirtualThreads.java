@@ -0,0 +1,44 @@
+package com.geneea.celery;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21+) while the library itself stays compatible with Java 8.
+ */
+class VirtualThreads {
+
+    private static final MethodHandle NEW_EXECUTOR = findNewExecutor();
+
+    private static MethodHandle findNewExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return executor starting a new virtual thread for each task
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads
+     */
+    static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Couldn't create a virtual thread executor", t);
+        }
+    }
+}
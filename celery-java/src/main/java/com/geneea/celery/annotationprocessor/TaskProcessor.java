@@ -17,13 +17,20 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.Name;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.ElementScanner8;
+import javax.lang.model.util.SimpleTypeVisitor8;
 import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
@@ -77,6 +84,7 @@ public class TaskProcessor extends AbstractProcessor {
             Name packageName = packageElement.getQualifiedName();
 
             writeProxy(taskClassElem, methods, packageName);
+            writeInvoker(taskClassElem, findInvokerMethods(taskClassElem), packageName);
             writeLoader(taskClassElem, packageName);
         }
         return true;
@@ -103,7 +111,48 @@ public class TaskProcessor extends AbstractProcessor {
                 return super.visitExecutable(e, aVoid);
             }
         }, null);
-        return methods;
+
+        // The proxy has a non-blocking fooAsync variant of each method foo, unless the task has its own fooAsync.
+        Set<String> names = methods.stream()
+                .map((m) -> m.get("simpleName").toString())
+                .collect(Collectors.toSet());
+        return methods.stream()
+                .<Map<Object, Object>>map((m) -> ImmutableMap.builder()
+                        .putAll(m)
+                        .put("async", !names.contains(m.get("simpleName") + "Async"))
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the methods the generated invoker can dispatch to. Unlike the proxy, the invoker calls the methods
+     * directly so it must skip private methods. Overloaded methods can't be distinguished by the task name so they are
+     * skipped as well.
+     */
+    private List<Map<Object, Object>> findInvokerMethods(TypeElement elem) {
+        List<ExecutableElement> candidates = ElementFilter.methodsIn(elem.getEnclosedElements()).stream()
+                .filter((m) -> !m.getModifiers().contains(Modifier.PRIVATE))
+                .collect(Collectors.toList());
+
+        Map<String, Long> nameCounts = candidates.stream()
+                .collect(Collectors.groupingBy((m) -> m.getSimpleName().toString(), Collectors.counting()));
+
+        return candidates.stream()
+                .filter((m) -> nameCounts.get(m.getSimpleName().toString()) == 1)
+                .map((m) -> {
+                    List<Map<Object, Object>> parameters = m.getParameters().stream().map((param) ->
+                            ImmutableMap.<Object, Object>of(
+                                    "simpleName", param.getSimpleName(),
+                                    "type", convert(eraseTypeVariables(param.asType()))
+                            )).collect(Collectors.toList());
+
+                    return ImmutableMap.<Object, Object>of(
+                            "simpleName", m.getSimpleName(),
+                            "target", m.getModifiers().contains(Modifier.STATIC) ? elem.getQualifiedName() : "task",
+                            "returnsVoid", m.getReturnType().getKind() == TypeKind.VOID,
+                            "parameters", parameters);
+                })
+                .collect(Collectors.toList());
     }
 
     private void writeLoader(TypeElement elem, Name packageName) {
@@ -147,6 +196,60 @@ public class TaskProcessor extends AbstractProcessor {
         }
     }
 
+    private void writeInvoker(TypeElement elem, List<Map<Object, Object>> methods, Name packageName) {
+        Name binaryName = processingEnv.getElementUtils().getBinaryName(elem);
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(binaryName + "Invoker", elem);
+
+            VelocityContext vc = new VelocityContext();
+
+            vc.put("taskName", elem.getSimpleName());
+            vc.put("packageName", packageName);
+            vc.put("methods", methods);
+            CeleryTask task = elem.getAnnotation(CeleryTask.class);
+            vc.put("softTimeLimit", task.softTimeLimit());
+            vc.put("timeLimit", task.timeLimit());
+
+            Template vt = ve.getTemplate("com/geneea/celery/templates/TaskInvoker.vm");
+
+            Writer writer = file.openWriter();
+            vt.merge(vc, writer);
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The invoker refers to the parameter types outside of the method so it can't use the method's type variables.
+     */
+    private TypeMirror eraseTypeVariables(TypeMirror type) {
+        boolean hasTypeVariable = type.accept(new SimpleTypeVisitor8<Boolean, Void>(false) {
+            @Override
+            public Boolean visitTypeVariable(TypeVariable t, Void aVoid) {
+                return true;
+            }
+
+            @Override
+            public Boolean visitArray(ArrayType t, Void aVoid) {
+                return t.getComponentType().accept(this, null);
+            }
+
+            @Override
+            public Boolean visitDeclared(DeclaredType t, Void aVoid) {
+                return t.getTypeArguments().stream().anyMatch((arg) -> arg.accept(this, null));
+            }
+
+            @Override
+            public Boolean visitWildcard(WildcardType t, Void aVoid) {
+                return (t.getExtendsBound() != null && t.getExtendsBound().accept(this, null))
+                        || (t.getSuperBound() != null && t.getSuperBound().accept(this, null));
+            }
+        }, null);
+
+        return hasTypeVariable ? processingEnv.getTypeUtils().erasure(type) : type;
+    }
+
     private String convert(TypeMirror type) {
         if (type.getKind().isPrimitive()) {
             return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).toString();
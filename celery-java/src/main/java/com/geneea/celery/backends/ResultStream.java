@@ -0,0 +1,173 @@
+package com.geneea.celery.backends;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <i>Internal, used by the backends supporting streamed results.</i>
+ *
+ * <p>
+ *     Iterator over a result that arrives in chunks. The backend adds the chunks as they come and the client takes the
+ *     items, waiting for the next chunk if needed. The backend's thread adding the chunks never waits for the client.
+ *     Each chunk comes with its acknowledgement instead: the first {@code capacity} chunks buffered are acknowledged
+ *     right away, the ones beyond only once the client takes them. A backend consuming with a prefetch limit thus
+ *     leaves the rest of the result in the broker until the client catches up.
+ * </p>
+ *
+ * @param <E> type of the items
+ */
+public class ResultStream<E> implements Iterator<E> {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+    private final Semaphore room;
+    private Iterator<E> current = Collections.emptyIterator();
+    private boolean ended = false;
+    private final AtomicInteger heldBack = new AtomicInteger();
+    private volatile long lastTakenNanos = System.nanoTime();
+
+    /**
+     * @param capacity how many chunks to buffer at most
+     */
+    public ResultStream(int capacity) {
+        this.room = new Semaphore(capacity);
+    }
+
+    /**
+     * @param items the next chunk
+     * @param ack acknowledges the chunk to the broker; run right away if the buffer has room, otherwise once the client
+     *            takes the chunk
+     */
+    public void offer(List<E> items, Runnable ack) {
+        if (room.tryAcquire()) {
+            chunks.add(new Chunk<>(items, null));
+            ack.run();
+        } else {
+            heldBack.incrementAndGet();
+            chunks.add(new Chunk<>(items, () -> {
+                heldBack.decrementAndGet();
+                ack.run();
+            }));
+        }
+    }
+
+    /**
+     * Acknowledge the chunks held back, for a stream the client has stopped reading, so that the rest of the result
+     * doesn't stay in the broker.
+     */
+    public void acknowledgeAll() {
+        for (Object chunk : chunks) {
+            if (chunk instanceof Chunk) {
+                ((Chunk<?>) chunk).acknowledge();
+            }
+        }
+    }
+
+    /**
+     * @return whether some chunks are buffered unacknowledged
+     */
+    public boolean isHoldingBack() {
+        return heldBack.get() > 0;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the client last took a chunk, or when the stream was created
+     */
+    public long getLastTakenNanos() {
+        return lastTakenNanos;
+    }
+
+    /**
+     * Mark the end of the result.
+     */
+    public void end() {
+        chunks.add(END);
+    }
+
+    /**
+     * End the result with a failure, the client gets it once it reads the items that came before.
+     *
+     * @param failure why the task failed
+     */
+    public void fail(Throwable failure) {
+        chunks.add(failure);
+    }
+
+    /**
+     * @return whether there are more items; may wait for the next chunk
+     * @throws UncheckedExecutionException if the task failed while producing the items
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (ended) {
+                return false;
+            }
+            Object chunk;
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next chunk of the result", e);
+            }
+            if (chunk == END) {
+                ended = true;
+            } else if (chunk instanceof Throwable) {
+                ended = true;
+                throw new UncheckedExecutionException((Throwable) chunk);
+            } else {
+                Chunk<E> taken = (Chunk<E>) chunk;
+                lastTakenNanos = System.nanoTime();
+                if (taken.held) {
+                    taken.acknowledge();
+                } else {
+                    room.release();
+                }
+                current = taken.items.iterator();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private static final class Chunk<T> {
+        private final List<T> items;
+        private final boolean held;
+        private final AtomicReference<Runnable> ack;
+
+        Chunk(List<T> items, @Nullable Runnable ack) {
+            this.items = items;
+            this.held = ack != null;
+            this.ack = new AtomicReference<>(ack);
+        }
+
+        /**
+         * Acknowledge a chunk held back, only once.
+         */
+        void acknowledge() {
+            Runnable pending = ack.getAndSet(null);
+            if (pending != null) {
+                pending.run();
+            }
+        }
+    }
+}
@@ -17,5 +17,15 @@ public class TaskResult {
     public enum Status {
         SUCCESS,
         FAILURE,
+        /**
+         * The task wasn't run, e.g. because it expired. The result holds the {@code TaskRevokedError} as the
+         * {@link #FAILURE} does.
+         */
+        REVOKED,
+        /**
+         * A part of a streamed result, the result is a list of the next items. Python clients treat it as a custom
+         * state and go on waiting for the {@link #SUCCESS}.
+         */
+        CHUNK,
     }
 }
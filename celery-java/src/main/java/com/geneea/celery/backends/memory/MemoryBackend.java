@@ -0,0 +1,85 @@
+package com.geneea.celery.backends.memory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.geneea.celery.WorkerException;
+import com.geneea.celery.spi.Backend;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backend completing the clients' futures directly with the objects the tasks return, for clients and workers in the
+ * same JVM. All the clients and workers using the same {@code memory://name} URI share one backend.
+ */
+public class MemoryBackend implements Backend, Backend.ResultsProvider {
+
+    private static final ConcurrentMap<String, MemoryBackend> BACKENDS = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, ResultSlot> slots = new ConcurrentHashMap<>();
+
+    private MemoryBackend() {
+    }
+
+    /**
+     * @param name name of the backend, the authority part of the {@code memory://} URI
+     * @return the backend of that name
+     */
+    static MemoryBackend named(String name) {
+        return BACKENDS.computeIfAbsent(name, (n) -> new MemoryBackend());
+    }
+
+    @Override
+    public ResultsProvider resultsProviderFor(String clientId) {
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Object> getResult(String taskId) {
+        return touch(taskId).future;
+    }
+
+    @Override
+    public void reportResult(String taskId, String queue, String correlationId, Object result) {
+        if (queue != null) {
+            touch(taskId).future.set(result);
+        }
+    }
+
+    @Override
+    public void reportException(String taskId, String queue, String correlationId, Throwable exception) {
+        if (queue != null) {
+            touch(taskId).future.setException(
+                    new WorkerException(exception.getClass().getSimpleName(), exception.getMessage()));
+        }
+    }
+
+    @Override
+    public void reportRevoked(String taskId, String queue, String correlationId, String reason) {
+        if (queue != null) {
+            touch(taskId).future.setException(new WorkerException("TaskRevokedError", reason));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * The result may come before the client asks for it. Whichever side comes first creates the slot, the other one
+     * removes it.
+     */
+    private ResultSlot touch(String taskId) {
+        ResultSlot slot = slots.computeIfAbsent(taskId, (id) -> new ResultSlot());
+        if (slot.touched.getAndSet(true)) {
+            slots.remove(taskId, slot);
+        }
+        return slot;
+    }
+
+    private static class ResultSlot {
+        final SettableFuture<Object> future = SettableFuture.create();
+        final AtomicBoolean touched = new AtomicBoolean();
+    }
+}
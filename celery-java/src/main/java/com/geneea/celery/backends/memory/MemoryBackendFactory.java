@@ -0,0 +1,27 @@
+package com.geneea.celery.backends.memory;
+
+import com.google.common.collect.ImmutableSet;
+import org.kohsuke.MetaInfServices;
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BackendFactory;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates backends for {@code memory://name} URIs, see {@link MemoryBackend}.
+ */
+@MetaInfServices(BackendFactory.class)
+public class MemoryBackendFactory implements BackendFactory {
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("memory");
+    }
+
+    @Override
+    public Backend createBackend(URI uri, ExecutorService executor) {
+        return MemoryBackend.named(uri.getAuthority() == null ? "" : uri.getAuthority());
+    }
+}
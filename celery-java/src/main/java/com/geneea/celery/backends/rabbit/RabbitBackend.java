@@ -1,15 +1,23 @@
 package com.geneea.celery.backends.rabbit;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import lombok.Builder;
 import com.geneea.celery.backends.TaskResult;
+import com.geneea.celery.serializers.CelerySerializers;
 import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Serializer;
+import com.geneea.celery.util.Compression;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -19,53 +27,169 @@ import java.util.Map;
  *     This one sends the tasks to RabbitMQ routing key specified by the reply-to property. The client should register
  *     a temporary queue with its UUID so the overhead of creating a queue happens once per client.
  * </p>
+ * <p>
+ *     The results are published holding the channel's monitor so that the channel can be shared with a
+ *     {@link com.geneea.celery.CeleryWorker} running tasks concurrently.
+ * </p>
+ * <p>
+ *     Workers running many short tasks can have the results batched: they are serialized right away but published
+ *     from a background thread, coalescing the results reported within the flush latency into one burst. The worker
+ *     acknowledges a task once its results are published, see {@link #reported()}.
+ * </p>
+ * <p>
+ *     Large results can be kept in a {@link BlobStore}, the clients then need the same store.
+ * </p>
  */
 public class RabbitBackend implements Backend {
 
+    static final int DEFAULT_BATCH = 100;
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    static final int DEFAULT_BLOB_THRESHOLD = 1024 * 1024;
+
     private final Channel channel;
-    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final ObjectWriter resultWriter;
+    @Nullable private final ResultBatcher batcher;
+    // The results each worker thread has handed to the batcher since it last asked, see reported().
+    private final ThreadLocal<CompletableFuture<Void>> reporting = new ThreadLocal<>();
+    @Nullable private final Compression compression;
+    private final int compressionThreshold;
+    // All the results share the properties except for the correlation ID and the compression, nothing depends on the
+    // reply queue.
+    private final AMQP.BasicProperties resultProperties;
+    private final AMQP.BasicProperties compressedProperties;
+    @Nullable private final BlobStore blobStore;
+    private final int blobThreshold;
 
+    /**
+     * Create a backend publishing each result as it is reported.
+     *
+     * @param channel channel to publish to and consume from
+     */
     public RabbitBackend(Channel channel) {
+        this(channel, 1, 0, null, 0);
+    }
+
+    /**
+     * Create a backend publishing the results in batches.
+     *
+     * @param channel channel to publish to and consume from
+     * @param maxBatch how many results to publish at once at most
+     * @param flushMillis how long a reported result may wait before it's published
+     */
+    public RabbitBackend(Channel channel, int maxBatch, long flushMillis) {
+        this(channel, maxBatch, flushMillis, null, 0);
+    }
+
+    /**
+     * @param channel channel to publish to and consume from
+     * @param maxBatch how many results to publish at once at most
+     * @param flushMillis how long a reported result may wait before it's published, 0 to publish it right away
+     * @param compression how to compress the results, {@code null} not to compress them
+     * @param compressionThreshold compress only the results of at least this many bytes
+     */
+    public RabbitBackend(Channel channel, int maxBatch, long flushMillis,
+                         @Nullable Compression compression, int compressionThreshold) {
+        this(channel, maxBatch, flushMillis, CelerySerializers.forName("json"), compression, compressionThreshold);
+    }
+
+    /**
+     * @param channel channel to publish to and consume from
+     * @param maxBatch how many results to publish at once at most
+     * @param flushMillis how long a reported result may wait before it's published, 0 to publish it right away
+     * @param serializer how to serialize the results
+     * @param compression how to compress the results, {@code null} not to compress them
+     * @param compressionThreshold compress only the results of at least this many bytes
+     */
+    public RabbitBackend(Channel channel, int maxBatch, long flushMillis, Serializer serializer,
+                         @Nullable Compression compression, int compressionThreshold) {
+        this(channel, maxBatch, flushMillis, serializer, compression, compressionThreshold, null, null);
+    }
+
+    /**
+     * Create a backend with any of the options. Use {@code builder()} to call it.
+     *
+     * @param channel channel to publish to and consume from
+     * @param maxBatch how many results to publish at once at most (default {@value #DEFAULT_BATCH})
+     * @param flushMillis how long a reported result may wait before it's published; by default, the results are
+     *                    published right away
+     * @param serializer how to serialize the results, JSON by default
+     * @param compression how to compress the results; not compressed by default
+     * @param compressionThreshold compress only the results of at least this many bytes (default
+     *                             {@value #DEFAULT_COMPRESSION_THRESHOLD})
+     * @param blobStore where to keep the large results; all the results go through the broker by default
+     * @param blobThreshold keep in the blob store the results of at least this many bytes, after compression
+     *                      (default {@value #DEFAULT_BLOB_THRESHOLD})
+     */
+    @Builder
+    private RabbitBackend(Channel channel,
+                          @Nullable Integer maxBatch,
+                          @Nullable Long flushMillis,
+                          @Nullable Serializer serializer,
+                          @Nullable Compression compression,
+                          @Nullable Integer compressionThreshold,
+                          @Nullable BlobStore blobStore,
+                          @Nullable Integer blobThreshold) {
+        Serializer s = serializer == null ? CelerySerializers.forName("json") : serializer;
         this.channel = channel;
+        this.resultWriter = s.getMapper().writerFor(TaskResult.class);
+        this.batcher = flushMillis != null && flushMillis > 0
+                ? new ResultBatcher(channel, maxBatch == null ? DEFAULT_BATCH : maxBatch, flushMillis)
+                : null;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold == null
+                ? DEFAULT_COMPRESSION_THRESHOLD
+                : compressionThreshold;
+        this.blobStore = blobStore;
+        this.blobThreshold = blobThreshold == null ? DEFAULT_BLOB_THRESHOLD : blobThreshold;
+        this.resultProperties = new AMQP.BasicProperties.Builder()
+                .priority(0)
+                .deliveryMode(1)
+                .contentType(s.getContentType())
+                .contentEncoding(s.getContentEncoding())
+                .build();
+        this.compressedProperties = compression == null ? null : resultProperties.builder()
+                .headers(ImmutableMap.of(Compression.HEADER, compression.getContentType()))
+                .build();
     }
 
     @Override
     public ResultsProvider resultsProviderFor(String clientId) throws IOException {
         channel.queueDeclare(clientId, false, false, true,
                 ImmutableMap.of("x-expires", 24 * 3600 * 1000));
-        RabbitResultConsumer consumer = new RabbitResultConsumer(channel);
-        channel.basicConsume(clientId, consumer);
+        RabbitResultConsumer consumer = new RabbitResultConsumer(channel, blobStore);
+        // Per consumer, so that the limit applies to this one only; it's how the consumer pauses a stream.
+        channel.basicQos(RabbitResultConsumer.PREFETCH, false);
+        channel.basicConsume(clientId, false, consumer);
         return consumer;
     }
 
     public void reportResult(String taskId, String queue, String correlationId, Object result)
             throws IOException {
 
-        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
-                .correlationId(correlationId)
-                .priority(0)
-                .deliveryMode(1)
-                .contentType("application/json")
-                .contentEncoding("utf-8")
-                .build();
-
         TaskResult res = new TaskResult();
         res.result = result;
         res.taskId = taskId;
         res.status = TaskResult.Status.SUCCESS;
 
-        channel.basicPublish("", queue, properties, jsonMapper.writeValueAsBytes(res));
+        publish(queue, correlationId, res);
     }
 
-    public void reportException(String taskId, String replyTo, String correlationId, Throwable e) throws IOException {
-        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
-                .correlationId(correlationId)
-                .priority(0)
-                .deliveryMode(1)
-                .contentType("application/json")
-                .contentEncoding("utf-8")
-                .build();
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @Override
+    public void reportChunk(String taskId, String queue, String correlationId, List<?> items) throws IOException {
+        TaskResult res = new TaskResult();
+        res.result = items;
+        res.taskId = taskId;
+        res.status = TaskResult.Status.CHUNK;
 
+        publish(queue, correlationId, res);
+    }
+
+    public void reportException(String taskId, String replyTo, String correlationId, Throwable e) throws IOException {
         Map<String, String> excInfo = new HashMap<>();
         excInfo.put("exc_type", e.getClass().getSimpleName());
         excInfo.put("exc_message", e.getMessage());
@@ -75,10 +199,71 @@ public class RabbitBackend implements Backend {
         res.taskId = taskId;
         res.status = TaskResult.Status.FAILURE;
 
-        channel.basicPublish("", replyTo, properties, jsonMapper.writeValueAsBytes(res));
+        publish(replyTo, correlationId, res);
+    }
+
+    @Override
+    public void reportRevoked(String taskId, String replyTo, String correlationId, String reason) throws IOException {
+        Map<String, String> excInfo = new HashMap<>();
+        excInfo.put("exc_type", "TaskRevokedError");
+        excInfo.put("exc_message", reason);
+
+        TaskResult res = new TaskResult();
+        res.result = excInfo;
+        res.taskId = taskId;
+        res.status = TaskResult.Status.REVOKED;
+
+        publish(replyTo, correlationId, res);
+    }
+
+    private void publish(String queue, String correlationId, TaskResult res) throws IOException {
+        AMQP.BasicProperties properties = resultProperties;
+        byte[] body = resultWriter.writeValueAsBytes(res);
+        if (compression != null && body.length >= compressionThreshold) {
+            body = compression.compress(body);
+            properties = compressedProperties;
+        }
+        if (blobStore != null && body.length >= blobThreshold) {
+            Map<String, Object> headers = new HashMap<>();
+            if (properties.getHeaders() != null) {
+                headers.putAll(properties.getHeaders());
+            }
+            headers.put(BlobStore.HEADER, blobStore.put(body));
+            properties = properties.builder().headers(headers).build();
+            body = new byte[0];
+        }
+        if (correlationId != null) {
+            properties = properties.builder().correlationId(correlationId).build();
+        }
+
+        if (batcher != null) {
+            CompletableFuture<Void> published = batcher.add(queue, properties, body);
+            CompletableFuture<Void> before = reporting.get();
+            if (before != null && !(before.isDone() && !before.isCompletedExceptionally())) {
+                published = CompletableFuture.allOf(before, published);
+            }
+            reporting.set(published);
+            return;
+        }
+        synchronized (channel) {
+            channel.basicPublish("", queue, properties, body);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> reported() {
+        CompletableFuture<Void> published = reporting.get();
+        if (published == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        reporting.remove();
+        return published;
     }
 
     public void close() throws IOException {
+        if (batcher != null) {
+            batcher.close();
+        }
         channel.abort();
     }
 }
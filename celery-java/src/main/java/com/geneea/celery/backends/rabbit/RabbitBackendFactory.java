@@ -3,10 +3,14 @@ package com.geneea.celery.backends.rabbit;
 import com.google.common.collect.ImmutableSet;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URIBuilder;
 import org.kohsuke.MetaInfServices;
+import com.geneea.celery.blobstores.CeleryBlobStores;
+import com.geneea.celery.serializers.CelerySerializers;
 import com.geneea.celery.spi.Backend;
 import com.geneea.celery.spi.BackendFactory;
+import com.geneea.celery.util.Compression;
 
 import java.io.IOException;
 import java.net.URI;
@@ -17,8 +21,29 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * Creates backends for {@code rpc://} URIs. Besides the standard RabbitMQ URI parts, the following query parameters
+ * are understood:
+ * <ul>
+ *     <li>{@code result_flush_ms=N} - publish the results in batches, each result waiting at most {@code N}
+ *     milliseconds for others to join it (by default, each result is published right away)</li>
+ *     <li>{@code result_batch=N} - publish at most {@code N} results in a batch (default
+ *     {@value RabbitBackend#DEFAULT_BATCH})</li>
+ *     <li>{@code result_serializer=NAME} - serialize the results with the given serializer ({@code json} by default,
+ *     see {@link CelerySerializers}); the clients read any of them</li>
+ *     <li>{@code result_compression=NAME} - compress the results, see {@link Compression} for the names</li>
+ *     <li>{@code result_compression_threshold=N} - compress only the results of at least {@code N} bytes (default
+ *     {@value RabbitBackend#DEFAULT_COMPRESSION_THRESHOLD})</li>
+ *     <li>{@code result_blob_store=URI} - keep the large results in a blob store (e.g.
+ *     {@code file:///shared/celery-blobs}, URL-encoded), only their keys go through the broker; the clients need the
+ *     same parameter to read them</li>
+ *     <li>{@code result_blob_threshold=N} - keep in the blob store the results of at least {@code N} bytes (default
+ *     {@value RabbitBackend#DEFAULT_BLOB_THRESHOLD})</li>
+ * </ul>
+ */
 @MetaInfServices(BackendFactory.class)
 public class RabbitBackendFactory implements BackendFactory {
+
     @Override
     public Set<String> getProtocols() {
         return ImmutableSet.of("rpc");
@@ -46,7 +71,36 @@ public class RabbitBackendFactory implements BackendFactory {
             throw new IOException(e);
         }
 
+        RabbitBackend.RabbitBackendBuilder backend = RabbitBackend.builder();
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            switch (param.getName()) {
+                case "result_flush_ms":
+                    backend.flushMillis(Long.parseLong(param.getValue()));
+                    break;
+                case "result_batch":
+                    backend.maxBatch(Integer.parseInt(param.getValue()));
+                    break;
+                case "result_serializer":
+                    backend.serializer(CelerySerializers.forName(param.getValue()));
+                    break;
+                case "result_compression":
+                    backend.compression(Compression.forName(param.getValue()));
+                    break;
+                case "result_compression_threshold":
+                    backend.compressionThreshold(Integer.parseInt(param.getValue()));
+                    break;
+                case "result_blob_store":
+                    backend.blobStore(CeleryBlobStores.create(param.getValue()));
+                    break;
+                case "result_blob_threshold":
+                    backend.blobThreshold(Integer.parseInt(param.getValue()));
+                    break;
+                default:
+                    // The rest is up to the RabbitMQ client.
+            }
+        }
+
         Connection connection = factory.newConnection(executor);
-        return new RabbitBackend(connection.createChannel());
+        return backend.channel(connection.createChannel()).build();
     }
 }
@@ -1,62 +1,243 @@
 package com.geneea.celery.backends.rabbit;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.geneea.celery.WorkerException;
+import com.geneea.celery.backends.ResultStream;
 import com.geneea.celery.backends.TaskResult;
+import com.geneea.celery.serializers.CelerySerializers;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.util.Compression;
+import com.geneea.celery.util.ResultRegistry;
+import com.geneea.celery.util.TimingWheel;
 
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 class RabbitResultConsumer extends DefaultConsumer implements RabbitBackend.ResultsProvider {
 
-    private final LoadingCache<String, SettableFuture<Object>> tasks =
-            CacheBuilder
-                    .newBuilder()
-                    .expireAfterWrite(2, TimeUnit.HOURS)
-                    .build(new CacheLoader<String, SettableFuture<Object>>() {
-                @Override
-                public SettableFuture<Object> load(@Nonnull String key) {
-                    return SettableFuture.create();
-                }
-            });
-    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private static final Logger LOG = Logger.getLogger(RabbitResultConsumer.class.getName());
+
+    // How many chunks of a streamed result to buffer for the client, and how long to wait for the next chunk before
+    // the worker is taken for dead, or for the client to take one before it's taken for gone.
+    static final int STREAM_CAPACITY = 256;
+    static final long STREAM_IDLE_MILLIS = TimeUnit.HOURS.toMillis(2);
+    // How many results the broker sends unacknowledged, and so how many chunks beyond the capacity a client falling
+    // behind can have buffered before the broker holds the rest back.
+    static final int PREFETCH = 64;
+
+    private static final TimingWheel STREAM_EXPIRY =
+            new TimingWheel("celery-stream-expiry", 1, TimeUnit.SECONDS, 512);
+
+    private final ResultRegistry tasks = new ResultRegistry(2, TimeUnit.HOURS);
+    private final ConcurrentMap<String, OpenStream> streams = new ConcurrentHashMap<>();
+    private final int streamCapacity;
+    private final long streamIdleNanos;
+
+    @Nullable private final BlobStore blobStore;
 
     RabbitResultConsumer(Channel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param channel channel to consume from
+     * @param blobStore where the workers keep the large results, {@code null} if they don't
+     */
+    RabbitResultConsumer(Channel channel, @Nullable BlobStore blobStore) {
+        this(channel, blobStore, STREAM_CAPACITY, STREAM_IDLE_MILLIS);
+    }
+
+    /**
+     * @param channel channel to consume from
+     * @param blobStore where the workers keep the large results, {@code null} if they don't
+     * @param streamCapacity how many chunks of a streamed result to buffer for the client before leaving the rest in
+     *                       the broker
+     * @param streamIdleMillis how long to wait for the next chunk of a streamed result, or for the client to take one
+     */
+    RabbitResultConsumer(Channel channel, @Nullable BlobStore blobStore, int streamCapacity, long streamIdleMillis) {
         super(channel);
+        this.blobStore = blobStore;
+        this.streamCapacity = streamCapacity;
+        this.streamIdleNanos = TimeUnit.MILLISECONDS.toNanos(streamIdleMillis);
     }
 
     @Override
     public ListenableFuture<Object> getResult(String taskId) {
-        return tasks.getUnchecked(taskId);
+        return tasks.register(taskId);
     }
 
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
             throws IOException {
 
-        TaskResult payload = jsonMapper.readValue(body, TaskResult.class);
+        boolean handedOver = false;
+        try {
+            handedOver = handleResult(envelope, properties, body);
+        } finally {
+            if (!handedOver) {
+                acknowledge(envelope);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the result is a chunk handed over to its stream, which acknowledges it
+     */
+    private boolean handleResult(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+        Object claimCheck = headers == null ? null : headers.get(BlobStore.HEADER);
+        TaskResult payload = readResult(
+                properties == null ? null : properties.getContentType(),
+                headers == null ? null : headers.get(Compression.HEADER),
+                claimCheck,
+                body);
 
-        SettableFuture<Object> future = tasks.getUnchecked(payload.taskId);
-        boolean setAccepted;
-        if (payload.status == TaskResult.Status.SUCCESS) {
-            setAccepted = future.set(payload.result);
+        boolean waitedFor;
+        boolean handedOver = false;
+        if (payload.status == TaskResult.Status.CHUNK) {
+            @SuppressWarnings("unchecked")
+            List<Object> items = (List<Object>) payload.result;
+            waitedFor = addChunk(payload.taskId, items, () -> acknowledge(envelope));
+            handedOver = waitedFor;
+        } else if (payload.status == TaskResult.Status.SUCCESS) {
+            OpenStream open = streams.remove(payload.taskId);
+            if (open != null) {
+                open.stream.end();
+                waitedFor = true;
+            } else {
+                waitedFor = tasks.complete(payload.taskId, payload.result);
+            }
         } else {
             @SuppressWarnings("unchecked")
             Map<String, String> exc = (Map<String, String>) payload.result;
-            setAccepted = future.setException(
-                    new WorkerException(exc.get("exc_type"), exc.get("exc_message")));
+            WorkerException exception = new WorkerException(exc.get("exc_type"), exc.get("exc_message"));
+            OpenStream open = streams.remove(payload.taskId);
+            if (open != null) {
+                open.stream.fail(exception);
+                waitedFor = true;
+            } else {
+                waitedFor = tasks.fail(payload.taskId, exception);
+            }
+        }
+        if (!waitedFor) {
+            LOG.fine(() -> "Dropped the result of a task no one waits for: " + payload.taskId);
+        }
+        // Only now that the result is handed over or dropped; if reading it failed, the blob stays.
+        if (claimCheck != null) {
+            String key = claimCheck.toString();
+            try {
+                blobStore.delete(key);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't delete the blob " + key, e);
+            }
+        }
+        return handedOver;
+    }
+
+    /**
+     * Acknowledge a result, from the connection's thread or from the client's one taking a chunk held back.
+     */
+    private void acknowledge(Envelope envelope) {
+        try {
+            synchronized (getChannel()) {
+                getChannel().basicAck(envelope.getDeliveryTag(), false);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Couldn't acknowledge a result", e);
+        }
+    }
+
+    private TaskResult readResult(@Nullable String contentType, @Nullable Object compression,
+                                  @Nullable Object claimCheck, byte[] body) throws IOException {
+        ObjectMapper mapper;
+        try {
+            mapper = CelerySerializers.forContentType(contentType).getMapper();
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (claimCheck == null) {
+            return mapper.readValue(Compression.decompress(compression, body), TaskResult.class);
+        }
+        if (blobStore == null) {
+            throw new IOException("The result is kept in a blob store but the backend has none");
+        }
+
+        return mapper.readValue(
+                Compression.decompressing(compression,
+                        new ByteBufferBackedInputStream(blobStore.get(claimCheck.toString()))),
+                TaskResult.class);
+    }
+
+    /**
+     * The first chunk completes the task's future with the stream, the following ones go to the stream. This runs in
+     * the connection's thread, which mustn't wait for the client: a stream the client doesn't keep up with holds the
+     * acknowledgements of its chunks back instead, so that the broker stops sending until the client catches up.
+     */
+    private boolean addChunk(String taskId, List<Object> items, Runnable ack) {
+        OpenStream open = streams.get(taskId);
+        if (open == null) {
+            open = new OpenStream(taskId);
+            if (!tasks.complete(taskId, open.stream)) {
+                return false;
+            }
+            streams.put(taskId, open);
+            open.expireIn(streamIdleNanos);
+        }
+
+        open.lastChunkNanos = System.nanoTime();
+        open.stream.offer(items, ack);
+        return true;
+    }
+
+    /**
+     * A stream waiting for its next chunk. If none comes and the client takes none for too long, the worker is taken
+     * for dead and the stream fails, so that neither the client nor the map wait for it forever. A client that stops
+     * reading is taken for gone likewise: the chunks held back for it are acknowledged, even after the stream's end, so
+     * that they don't hold up the other results.
+     */
+    private final class OpenStream implements Runnable {
+        private final String taskId;
+        private final ResultStream<Object> stream = new ResultStream<>(streamCapacity);
+        private volatile long lastChunkNanos = System.nanoTime();
+
+        OpenStream(String taskId) {
+            this.taskId = taskId;
+        }
+
+        void expireIn(long nanos) {
+            STREAM_EXPIRY.schedule(this, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            boolean open = streams.get(taskId) == this;
+            if (!open && !stream.isHoldingBack()) {
+                return;
+            }
+            long idle = System.nanoTime() - Math.max(lastChunkNanos, stream.getLastTakenNanos());
+            if (idle < streamIdleNanos) {
+                expireIn(streamIdleNanos - idle);
+                return;
+            }
+            if (open && streams.remove(taskId, this)) {
+                LOG.warning(() -> "No more of the streamed result of " + taskId + " came, dropping it");
+                stream.fail(new TimeoutException("The rest of the result of the task " + taskId + " didn't come"));
+            }
+            stream.acknowledgeAll();
         }
-        assert setAccepted;
     }
 }
@@ -0,0 +1,157 @@
+package com.geneea.celery.backends.rabbit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the results from a single thread. The first result waits at most the flush latency for others to join it
+ * and then they all go out back-to-back, holding the channel's monitor once for the whole batch. Each result has a
+ * future completed once it's published, so that the worker acknowledges the task only then.
+ */
+class ResultBatcher implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(RabbitBackend.class.getName());
+
+    private final Channel channel;
+    private final int maxBatch;
+    private final long flushNanos;
+    private final BlockingQueue<Result> pending = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param channel channel to publish to
+     * @param maxBatch how many results to publish at once at most
+     * @param flushMillis how long a result may wait for others to be published with
+     */
+    ResultBatcher(Channel channel, int maxBatch, long flushMillis) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("The batch size must be positive, got " + maxBatch);
+        }
+        this.channel = channel;
+        this.maxBatch = maxBatch;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.thread = new Thread(this::run, "celery-rabbit-results");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return future completed once the result is published, failed if it couldn't be
+     */
+    CompletableFuture<Void> add(String queue, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if (closed) {
+            throw new IOException("The backend is closed");
+        }
+        Result result = new Result(queue, properties, body);
+        pending.add(result);
+        if (closed) {
+            // Closed in the meantime, the thread may have published the rest already.
+            List<Result> left = new ArrayList<>();
+            pending.drainTo(left);
+            for (Result r : left) {
+                r.published.completeExceptionally(new IOException("The backend is closed"));
+            }
+        }
+        return result.published;
+    }
+
+    private void run() {
+        List<Result> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                Result first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + flushNanos;
+                while (batch.size() < maxBatch) {
+                    pending.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Result next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush(batch);
+            batch.clear();
+        }
+
+        // Whatever was reported before closing still goes out.
+        pending.drainTo(batch);
+        flush(batch);
+    }
+
+    private void flush(List<Result> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Exception[] failures = new Exception[batch.size()];
+        synchronized (channel) {
+            for (int i = 0; i < batch.size(); i++) {
+                Result result = batch.get(i);
+                try {
+                    channel.basicPublish("", result.queue, result.properties, result.body);
+                } catch (IOException | RuntimeException e) {
+                    LOG.log(Level.SEVERE, "Failed to publish a result to " + result.queue, e);
+                    failures[i] = e;
+                }
+            }
+        }
+        // The workers acknowledge the tasks on completion, that mustn't happen holding the monitor.
+        for (int i = 0; i < batch.size(); i++) {
+            if (failures[i] == null) {
+                batch.get(i).published.complete(null);
+            } else {
+                batch.get(i).published.completeExceptionally(failures[i]);
+            }
+        }
+    }
+
+    /**
+     * Publish the results reported so far and stop the thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Result {
+        final String queue;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final CompletableFuture<Void> published = new CompletableFuture<>();
+
+        Result(String queue, AMQP.BasicProperties properties, byte[] body) {
+            this.queue = queue;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.geneea.celery.backends.redis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.geneea.celery.backends.TaskResult;
+import com.geneea.celery.spi.Backend;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ *     Backend storing the results the same way as Python Celery's Redis backend: each result is stored under the key
+ *     {@code celery-task-meta-<task ID>} with an expiration and published to the channel of the same name.
+ * </p>
+ * <p>
+ *     The clients subscribe to the channels of their tasks, see {@link RedisResultConsumer}.
+ * </p>
+ */
+public class RedisBackend implements Backend {
+
+    static final String KEY_PREFIX = "celery-task-meta-";
+
+    private final JedisPool pool;
+    private final int resultExpiresSeconds;
+    private final Executor executor;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    /**
+     * @param pool connections to Redis
+     * @param resultExpiresSeconds how long the results are kept
+     * @param executor for checking results stored before the client subscribed
+     */
+    public RedisBackend(JedisPool pool, int resultExpiresSeconds, Executor executor) {
+        this.pool = pool;
+        this.resultExpiresSeconds = resultExpiresSeconds;
+        this.executor = executor;
+    }
+
+    @Override
+    public ResultsProvider resultsProviderFor(String clientId) throws IOException {
+        return new RedisResultConsumer(pool, clientId, executor);
+    }
+
+    @Override
+    public void reportResult(String taskId, String queue, String correlationId, Object result) throws IOException {
+        TaskResult res = new TaskResult();
+        res.result = result;
+        res.taskId = taskId;
+        res.status = TaskResult.Status.SUCCESS;
+
+        store(taskId, res);
+    }
+
+    @Override
+    public void reportException(String taskId, String queue, String correlationId, Throwable e) throws IOException {
+        Map<String, String> excInfo = new HashMap<>();
+        excInfo.put("exc_type", e.getClass().getSimpleName());
+        excInfo.put("exc_message", e.getMessage());
+
+        TaskResult res = new TaskResult();
+        res.result = excInfo;
+        res.taskId = taskId;
+        res.status = TaskResult.Status.FAILURE;
+
+        store(taskId, res);
+    }
+
+    @Override
+    public void reportRevoked(String taskId, String queue, String correlationId, String reason) throws IOException {
+        Map<String, String> excInfo = new HashMap<>();
+        excInfo.put("exc_type", "TaskRevokedError");
+        excInfo.put("exc_message", reason);
+
+        TaskResult res = new TaskResult();
+        res.result = excInfo;
+        res.taskId = taskId;
+        res.status = TaskResult.Status.REVOKED;
+
+        store(taskId, res);
+    }
+
+    private void store(String taskId, TaskResult res) throws IOException {
+        String key = KEY_PREFIX + taskId;
+        String value = jsonMapper.writeValueAsString(res);
+
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.setex(key, resultExpiresSeconds, value);
+            pipeline.publish(key, value);
+            pipeline.sync();
+        } catch (JedisException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
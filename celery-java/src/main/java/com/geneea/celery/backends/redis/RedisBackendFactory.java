@@ -0,0 +1,40 @@
+package com.geneea.celery.backends.redis;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.kohsuke.MetaInfServices;
+import com.geneea.celery.spi.Backend;
+import com.geneea.celery.spi.BackendFactory;
+import redis.clients.jedis.JedisPool;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates backends for {@code redis://} and {@code rediss://} URIs. The query parameter {@code result_expires=N} sets
+ * for how many seconds the results are kept (default one day, as in Python Celery).
+ */
+@MetaInfServices(BackendFactory.class)
+public class RedisBackendFactory implements BackendFactory {
+
+    private static final int DEFAULT_RESULT_EXPIRES = (int) TimeUnit.DAYS.toSeconds(1);
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("redis", "rediss");
+    }
+
+    @Override
+    public Backend createBackend(URI uri, ExecutorService executor) {
+        int resultExpires = DEFAULT_RESULT_EXPIRES;
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            if (param.getName().equals("result_expires")) {
+                resultExpires = Integer.parseInt(param.getValue());
+            }
+        }
+        return new RedisBackend(new JedisPool(uri), resultExpires, executor);
+    }
+}
@@ -0,0 +1,147 @@
+package com.geneea.celery.backends.redis;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.geneea.celery.WorkerException;
+import com.geneea.celery.backends.TaskResult;
+import com.geneea.celery.spi.Backend;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the results of a client's tasks through Redis pub/sub. A single connection is subscribed to the channels of
+ * all the tasks waiting for their results. It stays subscribed to a channel of the client itself so that the
+ * subscription doesn't end when no task is waiting.
+ * <p>
+ * A result stored before the channel got subscribed is picked up from its key once Redis confirms the subscription.
+ */
+class RedisResultConsumer extends JedisPubSub implements Backend.ResultsProvider {
+
+    private static final Logger LOG = Logger.getLogger(RedisResultConsumer.class.getName());
+    private static final long SUBSCRIBE_TIMEOUT_SECONDS = 10;
+
+    private final JedisPool pool;
+    private final Executor executor;
+    private final ConcurrentMap<String, SettableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private final ObjectMapper jsonMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL, true);
+
+    RedisResultConsumer(JedisPool pool, String clientId, Executor executor) throws IOException {
+        this.pool = pool;
+        this.executor = executor;
+
+        Thread thread = new Thread(() -> listen(clientId), "celery-redis-results-" + clientId);
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            if (!subscribed.await(SUBSCRIBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Couldn't subscribe to the Redis results");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while subscribing to the Redis results", e);
+        }
+    }
+
+    private void listen(String clientId) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.subscribe(this, RedisBackend.KEY_PREFIX + "client-" + clientId);
+        } catch (JedisException e) {
+            LOG.log(Level.SEVERE, "Lost the subscription to the Redis results", e);
+            IOException failure = new IOException("Lost the subscription to the Redis results", e);
+            pending.values().forEach((future) -> future.setException(failure));
+            pending.clear();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Object> getResult(String taskId) {
+        SettableFuture<Object> future = SettableFuture.create();
+        SettableFuture<Object> existing = pending.putIfAbsent(taskId, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        String key = RedisBackend.KEY_PREFIX + taskId;
+        try {
+            synchronized (this) {
+                subscribe(key);
+            }
+        } catch (JedisException e) {
+            pending.remove(taskId);
+            future.setException(new IOException(e));
+        }
+        return future;
+    }
+
+    @Override
+    public void onSubscribe(String channel, int subscribedChannels) {
+        if (subscribed.getCount() > 0) {
+            subscribed.countDown();
+            return;
+        }
+
+        // Anything published from now on reaches us, check whether the result was stored before.
+        executor.execute(() -> {
+            try (Jedis jedis = pool.getResource()) {
+                String value = jedis.get(channel);
+                if (value != null) {
+                    complete(channel, value);
+                }
+            } catch (JedisException | IOException e) {
+                LOG.log(Level.WARNING, "Couldn't check the result in " + channel, e);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        try {
+            complete(channel, message);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Malformed result in " + channel, e);
+        }
+    }
+
+    private void complete(String key, String value) throws IOException {
+        TaskResult result = jsonMapper.readValue(value, TaskResult.class);
+        if (result.status == null || result.status == TaskResult.Status.CHUNK) {
+            // Intermediate states, like STARTED, don't complete the future.
+            return;
+        }
+
+        SettableFuture<Object> future = pending.remove(key.substring(RedisBackend.KEY_PREFIX.length()));
+        if (future == null) {
+            return;
+        }
+        synchronized (this) {
+            unsubscribe(key);
+        }
+
+        if (result.status == TaskResult.Status.SUCCESS) {
+            future.set(result.result);
+        } else {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> exc = (Map<String, Object>) result.result;
+            future.setException(new WorkerException(
+                    String.valueOf(exc.get("exc_type")), String.valueOf(exc.get("exc_message"))));
+        }
+    }
+}
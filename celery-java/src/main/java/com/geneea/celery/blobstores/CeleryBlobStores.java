@@ -0,0 +1,44 @@
+package com.geneea.celery.blobstores;
+
+import com.google.common.collect.ImmutableSet;
+import com.geneea.celery.UnsupportedProtocolException;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.BlobStoreFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.ServiceLoader;
+
+/**
+ * Internal utility to get the right {@link BlobStore} instance from a URI.
+ */
+public class CeleryBlobStores {
+
+    /**
+     * Create a new blob store.
+     *
+     * @param uri where the blobs are kept, e.g. {@code file:///shared/celery-blobs}
+     * @return new blob store instance
+     */
+    public static BlobStore create(String uri) {
+
+        URI parsedUri = URI.create(uri);
+        ImmutableSet.Builder<String> knownProtocols = ImmutableSet.builder();
+
+        for (BlobStoreFactory factory: ServiceLoader.load(BlobStoreFactory.class)) {
+            Collection<String> factoryProtocols = factory.getProtocols();
+            knownProtocols.addAll(factoryProtocols);
+
+            if (factoryProtocols.contains(parsedUri.getScheme())) {
+                try {
+                    return factory.createBlobStore(parsedUri);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        throw new UnsupportedProtocolException(parsedUri.getScheme(), knownProtocols.build());
+    }
+}
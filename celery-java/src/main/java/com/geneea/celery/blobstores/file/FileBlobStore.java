@@ -0,0 +1,64 @@
+package com.geneea.celery.blobstores.file;
+
+import com.geneea.celery.spi.BlobStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps each blob in a file of a directory, which the clients and workers share (e.g. over NFS). The files are read
+ * into the heap as a whole; memory mapping is left to {@link MappedBlobStore}, as it isn't safe on network
+ * filesystems.
+ */
+public class FileBlobStore implements BlobStore {
+
+    // The keys come in messages, they must not point outside the directory.
+    private static final Pattern KEY = Pattern.compile("[0-9a-zA-Z_-]+");
+
+    private final Path directory;
+
+    /**
+     * @param directory where to keep the blobs, created if missing
+     * @throws IOException if the directory can't be created
+     */
+    public FileBlobStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        String key = UUID.randomUUID().toString();
+        write(path(key), data);
+        return key;
+    }
+
+    @Override
+    public ByteBuffer get(String key) throws IOException {
+        return read(path(key));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(path(key));
+    }
+
+    void write(Path file, byte[] data) throws IOException {
+        Files.write(file, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    ByteBuffer read(Path file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file));
+    }
+
+    private Path path(String key) throws IOException {
+        if (!KEY.matcher(key).matches()) {
+            throw new IOException("Invalid blob key " + key);
+        }
+        return directory.resolve(key);
+    }
+}
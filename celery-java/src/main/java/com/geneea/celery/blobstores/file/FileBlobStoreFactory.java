@@ -0,0 +1,35 @@
+package com.geneea.celery.blobstores.file;
+
+import com.google.common.collect.ImmutableSet;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.BlobStoreFactory;
+import org.kohsuke.MetaInfServices;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Set;
+
+/**
+ * Creates blob stores for {@code file:///path} (a {@link FileBlobStore}) and {@code mmap:///path} (a
+ * {@link MappedBlobStore}) URIs.
+ */
+@MetaInfServices(BlobStoreFactory.class)
+public class FileBlobStoreFactory implements BlobStoreFactory {
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("file", "mmap");
+    }
+
+    @Override
+    public BlobStore createBlobStore(URI uri) throws IOException {
+        if (uri.getPath() == null || uri.getPath().isEmpty()) {
+            throw new IllegalArgumentException("The blob store URI needs a directory, got " + uri);
+        }
+        if ("mmap".equals(uri.getScheme())) {
+            return new MappedBlobStore(Paths.get(uri.getPath()));
+        }
+        return new FileBlobStore(Paths.get(uri.getPath()));
+    }
+}
@@ -0,0 +1,41 @@
+package com.geneea.celery.blobstores.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps each blob in a file of a local directory, shared by the clients and workers on the same host (ideally on a
+ * {@code tmpfs} such as {@code /dev/shm}). The files are written and read through memory mappings, so a body is
+ * parsed straight from the page cache without being copied to the heap.
+ */
+public class MappedBlobStore extends FileBlobStore {
+
+    /**
+     * @param directory where to keep the blobs, created if missing
+     * @throws IOException if the directory can't be created
+     */
+    public MappedBlobStore(Path directory) throws IOException {
+        super(directory);
+    }
+
+    @Override
+    void write(Path file, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, data.length);
+            buffer.put(data);
+        }
+    }
+
+    @Override
+    ByteBuffer read(Path file) throws IOException {
+        // The mapping stays valid after the channel is closed and the file deleted.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.geneea.celery.brokers.memory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded multi-producer multi-consumer queue. The items are kept in a {@link ConcurrentLinkedQueue} and the bound
+ * is enforced by a counter the producers reserve the space in with compare-and-set, so neither side takes a lock.
+ * Producers waiting for space and consumers waiting for items park and the other side wakes them up.
+ *
+ * @param <E> type of the items
+ */
+class BoundedQueue<E> {
+
+    // A wake-up can go to a waiter that has just left without parking; the others then wake up after this time.
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ConcurrentLinkedQueue<E> items = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+
+    private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+    private final Queue<Thread> waitingConsumers = new ConcurrentLinkedQueue<>();
+
+    BoundedQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param item item to add
+     * @return {@code false} if the queue is full
+     */
+    boolean offer(E item) {
+        int s;
+        do {
+            s = size.get();
+            if (s >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(s, s + 1));
+
+        items.offer(item);
+        wakeUp(waitingConsumers);
+        return true;
+    }
+
+    /**
+     * Add the item, waiting for space if the queue is full.
+     *
+     * @param item item to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void put(E item) throws InterruptedException {
+        while (!offer(item)) {
+            await(waitingProducers, () -> size.get() < capacity);
+        }
+    }
+
+    /**
+     * @return the head of the queue or {@code null} if the queue is empty
+     */
+    E poll() {
+        E item = items.poll();
+        if (item != null) {
+            size.decrementAndGet();
+            wakeUp(waitingProducers);
+        }
+        return item;
+    }
+
+    /**
+     * Remove the head of the queue, waiting for an item if the queue is empty.
+     *
+     * @return the head of the queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    E take() throws InterruptedException {
+        E item;
+        while ((item = poll()) == null) {
+            await(waitingConsumers, () -> !items.isEmpty());
+        }
+        return item;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private void await(Queue<Thread> waiters, BooleanSupplier ready) throws InterruptedException {
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        try {
+            // Check again once registered, the other side might have missed us.
+            if (!ready.getAsBoolean()) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+        } finally {
+            waiters.remove(current);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static void wakeUp(Queue<Thread> waiters) {
+        Thread waiter = waiters.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.geneea.celery.brokers.memory;
+
+import com.geneea.celery.spi.Broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Broker passing the messages to workers in the same JVM through bounded in-memory queues, with no serialization of
+ * the task arguments. The arguments are shared with the task, so the client must not modify them after submitting.
+ * <p>
+ * All the clients and workers using the same {@code memory://name} URI share one broker. Senders block while the queue
+ * is full. Messages in the queues are lost when the JVM exits.
+ */
+public class MemoryBroker implements Broker {
+
+    private static final ConcurrentMap<String, MemoryBroker> BROKERS = new ConcurrentHashMap<>();
+
+    private final int capacity;
+    private final ConcurrentMap<String, BoundedQueue<MemoryMessage>> queues = new ConcurrentHashMap<>();
+
+    private MemoryBroker(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param name name of the broker, the authority part of the {@code memory://} URI
+     * @param capacity how many messages each queue holds; used only if the broker doesn't exist yet
+     * @return the broker of that name
+     */
+    static MemoryBroker named(String name, int capacity) {
+        return BROKERS.computeIfAbsent(name, (n) -> new MemoryBroker(capacity));
+    }
+
+    @Override
+    public void declareQueue(String name) {
+        queue(name);
+    }
+
+    /**
+     * The messages carry all the features but the ETA. The arguments are handed over as objects, so the client never
+     * has a body to compress or keep in a blob store.
+     */
+    @Override
+    public boolean supports(Feature feature) {
+        return feature != Feature.ETA;
+    }
+
+    @Override
+    public MemoryMessage newMessage() {
+        return new MemoryMessage(this);
+    }
+
+    /**
+     * Remove a message from the queue, waiting for one if the queue is empty.
+     *
+     * @param queue queue name
+     * @return the oldest message in the queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public MemoryMessage take(String queue) throws InterruptedException {
+        return queue(queue).take();
+    }
+
+    /**
+     * @param queue queue name
+     * @return number of messages in the queue
+     */
+    public int size(String queue) {
+        return queue(queue).size();
+    }
+
+    BoundedQueue<MemoryMessage> queue(String name) {
+        return queues.computeIfAbsent(name, (n) -> new BoundedQueue<>(capacity));
+    }
+}
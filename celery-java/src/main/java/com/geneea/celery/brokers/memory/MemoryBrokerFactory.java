@@ -0,0 +1,38 @@
+package com.geneea.celery.brokers.memory;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.kohsuke.MetaInfServices;
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.BrokerFactory;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates brokers for {@code memory://name} URIs, see {@link MemoryBroker}. The query parameter {@code capacity=N} sets
+ * how many messages a queue holds (default {@value #DEFAULT_CAPACITY}).
+ */
+@MetaInfServices(BrokerFactory.class)
+public class MemoryBrokerFactory implements BrokerFactory {
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("memory");
+    }
+
+    @Override
+    public Broker createBroker(URI uri, ExecutorService executor) {
+        int capacity = DEFAULT_CAPACITY;
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            if (param.getName().equals("capacity")) {
+                capacity = Integer.parseInt(param.getValue());
+            }
+        }
+        return MemoryBroker.named(uri.getAuthority() == null ? "" : uri.getAuthority(), capacity);
+    }
+}
@@ -0,0 +1,116 @@
+package com.geneea.celery.brokers.memory;
+
+import com.geneea.celery.spi.Message;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message sent through a {@link MemoryBroker}. It is handed over to the worker as it is, including the task
+ * arguments when the client offers them as objects.
+ */
+@Getter
+public class MemoryMessage implements Message, Message.Headers {
+
+    @Getter(AccessLevel.NONE)
+    private final MemoryBroker broker;
+
+    private byte[] body;
+    private Object[] args;
+    private String contentEncoding;
+    private String contentType;
+
+    private String id;
+    private String argsRepr;
+    private String origin;
+    private String replyTo;
+    private String taskName;
+    private long sentAt;
+    private String expires;
+    private List<Double> timeLimit;
+
+    MemoryMessage(MemoryBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    @Override
+    public boolean setArgs(Object[] args) {
+        this.args = args;
+        return true;
+    }
+
+    @Override
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return this;
+    }
+
+    @Override
+    public void send(String queue) throws IOException {
+        try {
+            broker.queue(queue).put(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for space in queue " + queue);
+        }
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public void setArgsRepr(String argsRepr) {
+        this.argsRepr = argsRepr;
+    }
+
+    @Override
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    @Override
+    public void setReplyTo(String clientId) {
+        this.replyTo = clientId;
+    }
+
+    @Override
+    public void setTaskName(String task) {
+        this.taskName = task;
+    }
+
+    @Override
+    public void setSentAt(long epochMillis) {
+        this.sentAt = epochMillis;
+    }
+
+    @Override
+    public void setExpires(String expires) {
+        this.expires = expires;
+    }
+
+    @Override
+    public void setTimeLimit(@Nullable Double soft, @Nullable Double hard) {
+        this.timeLimit = Arrays.asList(hard, soft);
+    }
+}
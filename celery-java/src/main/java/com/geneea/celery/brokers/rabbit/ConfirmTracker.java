@@ -0,0 +1,132 @@
+package com.geneea.celery.brokers.rabbit;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tracks messages published on a channel in the confirm mode and completes their futures once the broker acks or
+ * nacks them.
+ * <p>
+ * The outstanding delivery tags are kept sorted so that a {@code multiple} ack can complete all the tags up to the
+ * acked one. At most {@code maxUnconfirmed} messages can be in flight - publishers block in {@link #acquire()} until
+ * the broker confirms some of the older messages.
+ */
+class ConfirmTracker implements ConfirmListener, ShutdownListener {
+
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> unconfirmed = new ConcurrentSkipListMap<>();
+    private final Semaphore window;
+
+    ConfirmTracker(int maxUnconfirmed) {
+        this.window = new Semaphore(maxUnconfirmed);
+    }
+
+    /**
+     * Wait for a free slot in the window of unconfirmed messages. Must be called before publishing each message, and
+     * before taking the channel's lock so that a full window doesn't hold up the other users of the channel.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquire() throws InterruptedIOException {
+        acquire(1);
+    }
+
+    /**
+     * Wait for a free slot in the window and take as many more of the free ones as wanted, without waiting for them.
+     *
+     * @param wanted how many messages are to be published
+     * @return how many slots were taken, at least one; the unused ones must be given back by {@link #release(int)}
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    int acquire(int wanted) throws InterruptedIOException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+        }
+        int acquired = 1;
+        while (acquired < wanted && window.tryAcquire()) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    /**
+     * @param slots slots taken by {@link #acquire(int)} that weren't used to publish
+     */
+    void release(int slots) {
+        if (slots > 0) {
+            window.release(slots);
+        }
+    }
+
+
+    /**
+     * @param deliveryTag the publish sequence number the message is going to be published with
+     * @return future completing when the broker confirms the message
+     */
+    CompletableFuture<Void> track(long deliveryTag) {
+        CompletableFuture<Void> confirmation = new CompletableFuture<>();
+        unconfirmed.put(deliveryTag, confirmation);
+        return confirmation;
+    }
+
+    /**
+     * Stop tracking a message that couldn't be published.
+     *
+     * @param deliveryTag as passed to {@link #track(long)}
+     * @param error the publishing error
+     */
+    void fail(long deliveryTag, Throwable error) {
+        confirm(deliveryTag, false, error);
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, null);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, new IOException("The broker rejected the message " + deliveryTag));
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        confirm(Long.MAX_VALUE, true, new IOException("The channel was closed before confirming the message", cause));
+    }
+
+    private void confirm(long deliveryTag, boolean multiple, Throwable error) {
+        if (!multiple) {
+            complete(unconfirmed.remove(deliveryTag), error);
+            return;
+        }
+
+        Map.Entry<Long, CompletableFuture<Void>> first;
+        while ((first = unconfirmed.firstEntry()) != null && first.getKey() <= deliveryTag) {
+            if (unconfirmed.remove(first.getKey(), first.getValue())) {
+                complete(first.getValue(), error);
+            }
+        }
+    }
+
+    private void complete(CompletableFuture<Void> confirmation, Throwable error) {
+        if (confirmation == null) {
+            return;
+        }
+        window.release();
+        if (error == null) {
+            confirmation.complete(null);
+        } else {
+            confirmation.completeExceptionally(error);
+        }
+    }
+}
@@ -1,25 +1,99 @@
 package com.geneea.celery.brokers.rabbit;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.geneea.celery.spi.BlobStore;
 import com.geneea.celery.spi.Broker;
 import com.geneea.celery.spi.Message;
+import com.geneea.celery.spi.Metrics;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Publishes messages through a pool of channels. AMQP channels must not be used for publishing from several threads
+ * at once so each channel has its own lock. A thread always publishes through the same channel (picked by its ID),
+ * so the messages sent by one thread keep their order and threads using different channels don't contend.
+ */
 class RabbitBroker implements Broker {
-    private final Channel channel;
+    private final PublishChannel[] channels;
 
     public RabbitBroker(Channel channel) {
-        this.channel = channel;
+        this(ImmutableList.of(channel));
+    }
+
+    public RabbitBroker(List<Channel> channels) {
+        this.channels = new PublishChannel[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            this.channels[i] = new PublishChannel(channels.get(i), null);
+        }
+    }
+
+    /**
+     * Create a broker publishing in the confirm mode. Each message is tracked until the broker confirms it, see
+     * {@link Message#sendAsync(String)}.
+     *
+     * @param channel channel to publish on
+     * @param maxUnconfirmed how many messages may wait for confirmation before publishers block
+     * @throws IOException if the channel couldn't be switched to the confirm mode
+     */
+    public RabbitBroker(Channel channel, int maxUnconfirmed) throws IOException {
+        this(ImmutableList.of(channel), maxUnconfirmed);
+    }
+
+    /**
+     * Create a broker publishing in the confirm mode through a pool of channels.
+     *
+     * @param channels channels to publish on
+     * @param maxUnconfirmed how many messages may wait for confirmation on each channel before publishers block
+     * @throws IOException if the channels couldn't be switched to the confirm mode
+     */
+    public RabbitBroker(List<Channel> channels, int maxUnconfirmed) throws IOException {
+        this.channels = new PublishChannel[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            ConfirmTracker confirmTracker = new ConfirmTracker(maxUnconfirmed);
+            Channel channel = channels.get(i);
+            channel.addConfirmListener(confirmTracker);
+            channel.addShutdownListener(confirmTracker);
+            channel.confirmSelect();
+            this.channels[i] = new PublishChannel(channel, confirmTracker);
+        }
     }
 
     @Override
     public void declareQueue(String name) throws IOException {
-        channel.queueDeclare(name, true, false, false, null);
+        declareQueue(name, 0);
+    }
+
+    @Override
+    public void declareQueue(String name, int maxPriority) throws IOException {
+        PublishChannel pc = currentChannel();
+        synchronized (pc) {
+            pc.channel.queueDeclare(name, true, false, false, queueArguments(maxPriority));
+        }
+    }
+
+    private static Map<String, Object> queueArguments(int maxPriority) {
+        if (maxPriority < 0 || maxPriority > 255) {
+            throw new IllegalArgumentException("The maximum priority must be between 0 and 255, got " + maxPriority);
+        }
+        return maxPriority == 0 ? null : ImmutableMap.of("x-max-priority", maxPriority);
+    }
+
+    @Override
+    public boolean supports(Feature feature) {
+        return true;
     }
 
     @Override
@@ -27,6 +101,89 @@ class RabbitBroker implements Broker {
         return new RabbitMessage();
     }
 
+    @Override
+    public void sendAll(String queue, List<Message> messages, boolean confirm) throws IOException {
+        PublishChannel pc = currentChannel();
+
+        if (pc.confirmTracker != null) {
+            List<CompletableFuture<Void>> confirmations = new ArrayList<>(messages.size());
+            // The window is waited for outside the channel's lock, the messages go out in as large parts as it allows.
+            while (confirmations.size() < messages.size()) {
+                int slots = pc.confirmTracker.acquire(messages.size() - confirmations.size());
+                try {
+                    synchronized (pc) {
+                        while (slots > 0) {
+                            RabbitMessage message = (RabbitMessage) messages.get(confirmations.size());
+                            // A failed publish gives its slot back by itself.
+                            slots--;
+                            confirmations.add(message.publish(pc, queue));
+                        }
+                    }
+                } finally {
+                    pc.confirmTracker.release(slots);
+                }
+            }
+            if (confirm) {
+                await(CompletableFuture.allOf(confirmations.toArray(new CompletableFuture<?>[0])));
+            }
+            return;
+        }
+
+        synchronized (pc) {
+            if (confirm && !pc.confirmSelected) {
+                pc.channel.confirmSelect();
+                pc.confirmSelected = true;
+            }
+
+            for (Message message : messages) {
+                ((RabbitMessage) message).publish(pc, queue);
+            }
+
+            if (confirm) {
+                try {
+                    pc.channel.waitForConfirmsOrDie();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+                }
+            }
+        }
+    }
+
+    private PublishChannel currentChannel() {
+        if (channels.length == 1) {
+            return channels[0];
+        }
+        return channels[(int) (Thread.currentThread().getId() % channels.length)];
+    }
+
+    private static void await(CompletableFuture<?> confirmation) throws IOException {
+        try {
+            confirmation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A channel of the pool. Its monitor guards all the publishing.
+     */
+    private static class PublishChannel {
+        private final Channel channel;
+        private final ConfirmTracker confirmTracker;
+        private boolean confirmSelected;
+
+        PublishChannel(Channel channel, ConfirmTracker confirmTracker) {
+            this.channel = channel;
+            this.confirmTracker = confirmTracker;
+            this.confirmSelected = confirmTracker != null;
+        }
+    }
+
     class RabbitMessage implements Message {
         private byte[] body;
         private final AMQP.BasicProperties.Builder props = new AMQP.BasicProperties.Builder()
@@ -49,6 +206,11 @@ class RabbitBroker implements Broker {
             props.contentType(contentType);
         }
 
+        @Override
+        public void setPriority(int priority) {
+            props.priority(priority);
+        }
+
         @Override
         public Headers getHeaders() {
             return headers;
@@ -56,8 +218,43 @@ class RabbitBroker implements Broker {
 
         @Override
         public void send(String queue) throws IOException {
+            sendAsync(queue);
+        }
+
+        @Override
+        public CompletableFuture<Void> sendAsync(String queue) throws IOException {
+            PublishChannel pc = currentChannel();
+            if (pc.confirmTracker != null) {
+                pc.confirmTracker.acquire();
+            }
+            synchronized (pc) {
+                return publish(pc, queue);
+            }
+        }
+
+        /**
+         * Must be called with the lock of {@code pc} held and, in the confirm mode, a slot of the window taken; the
+         * slot is given back if the publishing fails.
+         *
+         * @return future completed on the broker confirmation, already completed if not in the confirm mode
+         */
+        private CompletableFuture<Void> publish(PublishChannel pc, String queue) throws IOException {
             AMQP.BasicProperties messageProperties = props.headers(headers.map).build();
-            channel.basicPublish("", queue, messageProperties, body);
+
+            if (pc.confirmTracker == null) {
+                pc.channel.basicPublish("", queue, messageProperties, body);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            long deliveryTag = pc.channel.getNextPublishSeqNo();
+            CompletableFuture<Void> confirmation = pc.confirmTracker.track(deliveryTag);
+            try {
+                pc.channel.basicPublish("", queue, messageProperties, body);
+            } catch (IOException | RuntimeException e) {
+                pc.confirmTracker.fail(deliveryTag, e);
+                throw e;
+            }
+            return confirmation;
         }
 
         class RabbitMessageHeaders implements Message.Headers {
@@ -101,6 +298,36 @@ class RabbitBroker implements Broker {
             public void setTaskName(String task) {
                 map.put("task", task);
             }
+
+            @Override
+            public void setCompression(String contentType) {
+                map.put("compression", contentType);
+            }
+
+            @Override
+            public void setClaimCheck(String key) {
+                map.put(BlobStore.HEADER, key);
+            }
+
+            @Override
+            public void setEta(String eta) {
+                map.put("eta", eta);
+            }
+
+            @Override
+            public void setExpires(String expires) {
+                map.put("expires", expires);
+            }
+
+            @Override
+            public void setTimeLimit(@Nullable Double soft, @Nullable Double hard) {
+                map.put("timelimit", Arrays.asList(hard, soft));
+            }
+
+            @Override
+            public void setSentAt(long epochMillis) {
+                map.put(Metrics.SENT_AT_HEADER, epochMillis);
+            }
         }
     }
 }
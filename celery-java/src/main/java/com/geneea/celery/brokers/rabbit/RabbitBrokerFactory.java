@@ -1,8 +1,11 @@
 package com.geneea.celery.brokers.rabbit;
 
 import com.google.common.collect.ImmutableSet;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
 import org.kohsuke.MetaInfServices;
 import com.geneea.celery.spi.Broker;
 import com.geneea.celery.spi.BrokerFactory;
@@ -12,12 +15,29 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * Creates brokers for {@code amqp://} and {@code amqps://} URIs. Besides the standard RabbitMQ URI parts, the following
+ * query parameters are understood:
+ * <ul>
+ *     <li>{@code confirm_publish=true} - publish in the confirm mode, see
+ *     {@link com.geneea.celery.spi.Message#sendAsync(String)}</li>
+ *     <li>{@code max_unconfirmed=N} - in the confirm mode, block publishers when {@code N} messages wait for
+ *     confirmation on a channel (default {@value #DEFAULT_MAX_UNCONFIRMED})</li>
+ *     <li>{@code channels=N} - publish through a pool of {@code N} channels (default 1) so that concurrent
+ *     submitters don't serialize on a single channel</li>
+ * </ul>
+ */
 @MetaInfServices(BrokerFactory.class)
 public class RabbitBrokerFactory implements BrokerFactory {
+
+    private static final int DEFAULT_MAX_UNCONFIRMED = 10000;
+
     @Override
     public Set<String> getProtocols() {
         return ImmutableSet.of("amqp", "amqps");
@@ -32,7 +52,42 @@ public class RabbitBrokerFactory implements BrokerFactory {
             throw new IOException(e);
         }
 
+        boolean confirmPublish = false;
+        int maxUnconfirmed = DEFAULT_MAX_UNCONFIRMED;
+        int channelCount = 1;
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            switch (param.getName()) {
+                case "confirm_publish":
+                    confirmPublish = Boolean.parseBoolean(param.getValue());
+                    break;
+                case "max_unconfirmed":
+                    maxUnconfirmed = Integer.parseInt(param.getValue());
+                    break;
+                case "channels":
+                    channelCount = Integer.parseInt(param.getValue());
+                    break;
+                default:
+                    // The rest is up to the RabbitMQ client.
+            }
+        }
+
+        if (channelCount < 1) {
+            throw new IllegalArgumentException("The number of channels must be positive, got " + channelCount);
+        }
+        if (maxUnconfirmed < 1) {
+            throw new IllegalArgumentException(
+                    "The number of unconfirmed messages must be positive, got " + maxUnconfirmed);
+        }
+
         Connection connection = factory.newConnection(executor);
-        return new RabbitBroker(connection.createChannel());
+        List<Channel> channels = new ArrayList<>(channelCount);
+        for (int i = 0; i < channelCount; i++) {
+            channels.add(connection.createChannel());
+        }
+
+        if (confirmPublish) {
+            return new RabbitBroker(channels, maxUnconfirmed);
+        }
+        return new RabbitBroker(channels);
     }
 }
@@ -0,0 +1,31 @@
+package com.geneea.celery.brokers.redis;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DTO representing a message as kombu's Redis transport stores it in the queue list.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class KombuMessage {
+    /** Base64 encoded message body. */
+    public String body;
+    @JsonProperty("content-encoding") public String contentEncoding;
+    @JsonProperty("content-type") public String contentType;
+    public Map<String, Object> headers = new HashMap<>();
+    public Properties properties = new Properties();
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Properties {
+        @JsonProperty("correlation_id") public String correlationId;
+        @JsonProperty("reply_to") public String replyTo;
+        @JsonProperty("delivery_mode") public int deliveryMode = 2;
+        @JsonProperty("delivery_info") public Map<String, String> deliveryInfo = new HashMap<>();
+        public int priority = 0;
+        @JsonProperty("body_encoding") public String bodyEncoding = "base64";
+        @JsonProperty("delivery_tag") public String deliveryTag;
+    }
+}
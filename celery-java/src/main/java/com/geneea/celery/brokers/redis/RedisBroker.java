@@ -0,0 +1,108 @@
+package com.geneea.celery.brokers.redis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.Message;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Broker using Redis lists as queues, compatible with kombu's Redis transport: the messages are pushed with
+ * {@code LPUSH} to the list named by the queue and consumed with {@code BRPOP}. The pushes are pipelined, see
+ * {@link RedisPublisher}.
+ * <p>
+ * A message is removed from the list once a worker takes it, so it is lost if the worker dies while running the task.
+ */
+public class RedisBroker implements Broker, Closeable {
+
+    private final JedisPool pool;
+    private final RedisPublisher publisher;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    RedisBroker(JedisPool pool) {
+        this.pool = pool;
+        this.publisher = new RedisPublisher(pool);
+    }
+
+    @Override
+    public void declareQueue(String name) {
+        // Redis creates the list with the first push.
+    }
+
+    /**
+     * The messages carry all the features but the ETA, a Redis list can't hold a message back.
+     */
+    @Override
+    public boolean supports(Feature feature) {
+        return feature != Feature.ETA;
+    }
+
+    @Override
+    public Message newMessage() {
+        return new RedisMessage(this, jsonMapper);
+    }
+
+    @Override
+    public void sendAll(String queue, List<Message> messages, boolean confirm) throws IOException {
+        List<CompletableFuture<Void>> pushes = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            pushes.add(message.sendAsync(queue));
+        }
+        if (confirm) {
+            try {
+                CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[0])).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending to Redis");
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    CompletableFuture<Void> publish(String queue, String message) {
+        return publisher.publish(queue, message);
+    }
+
+    /**
+     * Remove a message from the queue, waiting for one if the queue is empty.
+     *
+     * @param queue queue name
+     * @param timeoutSeconds how long to wait
+     * @return the oldest message in the queue, {@code null} if there was none within the timeout
+     * @throws IOException in case of connection problem or a malformed message
+     */
+    public KombuMessage take(String queue, int timeoutSeconds) throws IOException {
+        List<String> popped;
+        try (Jedis jedis = pool.getResource()) {
+            popped = jedis.brpop(timeoutSeconds, queue);
+        } catch (JedisException e) {
+            throw new IOException(e);
+        }
+        if (popped == null || popped.isEmpty()) {
+            return null;
+        }
+        // BRPOP returns the list name and the value.
+        return jsonMapper.readValue(popped.get(1), KombuMessage.class);
+    }
+
+    /**
+     * Stop the publishing thread and close the connections. The messages not pushed yet fail to send.
+     */
+    @Override
+    public void close() {
+        publisher.close();
+        pool.close();
+    }
+}
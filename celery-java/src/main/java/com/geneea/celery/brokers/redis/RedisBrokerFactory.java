@@ -0,0 +1,29 @@
+package com.geneea.celery.brokers.redis;
+
+import com.google.common.collect.ImmutableSet;
+import org.kohsuke.MetaInfServices;
+import com.geneea.celery.spi.Broker;
+import com.geneea.celery.spi.BrokerFactory;
+import redis.clients.jedis.JedisPool;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates brokers for {@code redis://} and {@code rediss://} URIs in the form Python Celery uses, e.g.
+ * {@code redis://:password@localhost:6379/0}.
+ */
+@MetaInfServices(BrokerFactory.class)
+public class RedisBrokerFactory implements BrokerFactory {
+
+    @Override
+    public Set<String> getProtocols() {
+        return ImmutableSet.of("redis", "rediss");
+    }
+
+    @Override
+    public Broker createBroker(URI uri, ExecutorService executor) {
+        return new RedisBroker(new JedisPool(uri));
+    }
+}
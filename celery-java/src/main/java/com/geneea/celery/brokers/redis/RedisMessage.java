@@ -0,0 +1,141 @@
+package com.geneea.celery.brokers.redis;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.geneea.celery.spi.BlobStore;
+import com.geneea.celery.spi.Message;
+import com.geneea.celery.spi.Metrics;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A message in the format of kombu's Redis transport, so that Python workers can consume it too.
+ */
+class RedisMessage implements Message, Message.Headers {
+
+    private final RedisBroker broker;
+    private final ObjectMapper jsonMapper;
+    private final KombuMessage kombuMessage = new KombuMessage();
+
+    RedisMessage(RedisBroker broker, ObjectMapper jsonMapper) {
+        this.broker = broker;
+        this.jsonMapper = jsonMapper;
+
+        kombuMessage.headers.put("timelimit", Arrays.asList(null, null));
+        kombuMessage.headers.put("retries", 0);
+        kombuMessage.headers.put("parent_id", null);
+        kombuMessage.headers.put("kwargsrepr", "{}");
+        kombuMessage.headers.put("expires", null);
+        kombuMessage.headers.put("eta", null);
+        kombuMessage.headers.put("lang", "py"); // sic
+        kombuMessage.headers.put("group", null);
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        kombuMessage.body = Base64.getEncoder().encodeToString(body);
+    }
+
+    @Override
+    public void setContentEncoding(String contentEncoding) {
+        kombuMessage.contentEncoding = contentEncoding;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        kombuMessage.contentType = contentType;
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return this;
+    }
+
+    @Override
+    public void send(String queue) throws IOException {
+        CompletableFuture<Void> sent = sendAsync(queue);
+        try {
+            sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending to Redis");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String queue) throws IOException {
+        return broker.publish(queue, toJson(queue));
+    }
+
+    /**
+     * @param queue queue the message is sent to
+     * @return the message as stored in the Redis list
+     */
+    String toJson(String queue) throws JsonProcessingException {
+        kombuMessage.properties.deliveryInfo.put("exchange", "");
+        kombuMessage.properties.deliveryInfo.put("routing_key", queue);
+        kombuMessage.properties.deliveryTag = UUID.randomUUID().toString();
+        return jsonMapper.writeValueAsString(kombuMessage);
+    }
+
+    @Override
+    public void setId(String id) {
+        kombuMessage.properties.correlationId = id;
+        kombuMessage.headers.put("root_id", id);
+        kombuMessage.headers.put("id", id);
+    }
+
+    @Override
+    public void setArgsRepr(String argsRepr) {
+        kombuMessage.headers.put("argsrepr", argsRepr);
+    }
+
+    @Override
+    public void setOrigin(String origin) {
+        kombuMessage.headers.put("origin", origin);
+    }
+
+    @Override
+    public void setReplyTo(String clientId) {
+        kombuMessage.properties.replyTo = clientId;
+    }
+
+    @Override
+    public void setTaskName(String task) {
+        kombuMessage.headers.put("task", task);
+    }
+
+    @Override
+    public void setCompression(String contentType) {
+        kombuMessage.headers.put("compression", contentType);
+    }
+
+    @Override
+    public void setClaimCheck(String key) {
+        kombuMessage.headers.put(BlobStore.HEADER, key);
+    }
+
+    @Override
+    public void setSentAt(long epochMillis) {
+        kombuMessage.headers.put(Metrics.SENT_AT_HEADER, epochMillis);
+    }
+
+    @Override
+    public void setExpires(String expires) {
+        kombuMessage.headers.put("expires", expires);
+    }
+
+    @Override
+    public void setTimeLimit(@Nullable Double soft, @Nullable Double hard) {
+        kombuMessage.headers.put("timelimit", Arrays.asList(hard, soft));
+    }
+}
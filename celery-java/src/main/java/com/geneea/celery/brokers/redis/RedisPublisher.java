@@ -0,0 +1,132 @@
+package com.geneea.celery.brokers.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes messages to the Redis lists from a single thread. Whatever the senders queue up while a round trip is in
+ * progress goes out in the next one as a pipeline, so concurrent senders share the round trips instead of each waiting
+ * for its own.
+ * <p>
+ * Closing the publisher stops the thread; the pushes it hasn't sent by then fail, and so do the ones published later.
+ */
+class RedisPublisher implements Closeable {
+
+    private static final int MAX_PIPELINE = 1000;
+
+    private final JedisPool pool;
+    private final BlockingQueue<Push> pending = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    RedisPublisher(JedisPool pool) {
+        this.pool = pool;
+        this.thread = new Thread(this::run, "celery-redis-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param key list to push to
+     * @param value value to push
+     * @return future completed once Redis has stored the value
+     */
+    CompletableFuture<Void> publish(String key, String value) {
+        Push push = new Push(key, value);
+        if (closed) {
+            push.done.completeExceptionally(closedException());
+            return push.done;
+        }
+        pending.add(push);
+        if (closed) {
+            // Closed in the meantime, the thread may not be there to take it.
+            failPending();
+        }
+        return push.done;
+    }
+
+    private void run() {
+        List<Push> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Push first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch, MAX_PIPELINE - 1);
+            flush(batch);
+            batch.clear();
+        }
+        failPending();
+    }
+
+    void flush(List<Push> batch) {
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Push push : batch) {
+                pipeline.lpush(push.key, push.value);
+            }
+            pipeline.sync();
+        } catch (RuntimeException e) {
+            for (Push push : batch) {
+                push.done.completeExceptionally(new IOException(e));
+            }
+            return;
+        }
+        for (Push push : batch) {
+            push.done.complete(null);
+        }
+    }
+
+    private void failPending() {
+        List<Push> left = new ArrayList<>();
+        pending.drainTo(left);
+        for (Push push : left) {
+            push.done.completeExceptionally(closedException());
+        }
+    }
+
+    private static IOException closedException() {
+        return new IOException("The Redis broker is closed");
+    }
+
+    /**
+     * Stop the thread, waiting for the round trip in progress, if any, to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPending();
+    }
+
+    static class Push {
+        final String key;
+        final String value;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Push(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.geneea.celery.metrics;
+
+import com.geneea.celery.spi.Metrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * <p>
+ *     Records the metrics to a <a href="https://micrometer.io">Micrometer</a> registry:
+ * </p>
+ * <ul>
+ *     <li>{@code celery.client.submit} - timer of the submissions</li>
+ *     <li>{@code celery.client.published} - counter of the published tasks</li>
+ *     <li>{@code celery.client.result} - timer of the round-trip from submitting a task to getting its result</li>
+ *     <li>{@code celery.worker.queue.wait} - timer of how long the tasks waited in the queue, tagged by {@code task}
+ *     </li>
+ *     <li>{@code celery.worker.task} - histogram of the task execution times, tagged by {@code task} and
+ *     {@code outcome} ({@code success} or {@code failure})</li>
+ *     <li>{@code celery.worker.ack} - timer of the acknowledgements</li>
+ *     <li>{@code celery.worker.in_flight} and {@code celery.worker.prefetch} - gauges of each worker</li>
+ * </ul>
+ * <p>
+ *     The meters of each task are looked up once, recording then doesn't allocate. The messages of the tasks the worker
+ *     doesn't know are all tagged {@code task=unknown}, so they can't grow the number of meters without bound.
+ * </p>
+ * <p>
+ *     This needs the optional {@code io.micrometer:micrometer-core} dependency.
+ * </p>
+ */
+public class MicrometerMetrics implements Metrics {
+
+    private final MeterRegistry registry;
+    private final Timer submit;
+    private final Counter published;
+    private final Timer result;
+    private final Timer ack;
+    private final ConcurrentMap<String, Timer> queueWait = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> succeeded = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> failed = new ConcurrentHashMap<>();
+    private final AtomicInteger workers = new AtomicInteger();
+
+    /**
+     * @param registry where to record the metrics
+     */
+    public MicrometerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.submit = Timer.builder("celery.client.submit")
+                .description("Submissions of tasks, including serialization and publishing")
+                .register(registry);
+        this.published = Counter.builder("celery.client.published")
+                .description("Published tasks")
+                .register(registry);
+        this.result = Timer.builder("celery.client.result")
+                .description("Round-trip from submitting a task to getting its result")
+                .register(registry);
+        this.ack = Timer.builder("celery.worker.ack")
+                .description("Acknowledgements of the task messages")
+                .register(registry);
+    }
+
+    @Override
+    public void submitted(int count, long nanos) {
+        submit.record(nanos, TimeUnit.NANOSECONDS);
+        published.increment(count);
+    }
+
+    @Override
+    public void resultReceived(long nanos) {
+        result.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void received(String taskName, long queueWaitMillis) {
+        Timer timer = queueWait.get(taskName);
+        if (timer == null) {
+            timer = queueWait.computeIfAbsent(taskName, (name) -> Timer.builder("celery.worker.queue.wait")
+                    .description("Time the tasks waited in the queue")
+                    .tag("task", name)
+                    .register(registry));
+        }
+        // The clocks of the client and the worker may be a bit off.
+        timer.record(Math.max(0, queueWaitMillis), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void executed(String taskName, long nanos, boolean failure) {
+        ConcurrentMap<String, Timer> timers = failure ? failed : succeeded;
+        Timer timer = timers.get(taskName);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(taskName, (name) -> Timer.builder("celery.worker.task")
+                    .description("Execution of the tasks")
+                    .tag("task", name)
+                    .tag("outcome", failure ? "failure" : "success")
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void acked(long nanos) {
+        ack.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void workerStarted(IntSupplier inFlight, IntSupplier prefetch) {
+        // Each worker (e.g. each of the solo consumers) has gauges of its own, told apart by the tag. The suppliers
+        // are lambdas no one else holds, so the gauges must keep them.
+        String worker = Integer.toString(workers.getAndIncrement());
+        Gauge.builder("celery.worker.in_flight", inFlight, IntSupplier::getAsInt)
+                .description("Tasks received and not yet finished")
+                .tag("worker", worker)
+                .strongReference(true)
+                .register(registry);
+        Gauge.builder("celery.worker.prefetch", prefetch, IntSupplier::getAsInt)
+                .description("Messages the broker sends in advance")
+                .tag("worker", worker)
+                .strongReference(true)
+                .register(registry);
+    }
+}
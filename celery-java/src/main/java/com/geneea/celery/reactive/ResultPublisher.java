@@ -0,0 +1,145 @@
+package com.geneea.celery.reactive;
+
+import com.google.common.collect.ImmutableList;
+import com.geneea.celery.Celery;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Publishes the results of submitted tasks as they arrive, in the order they arrive. No thread waits for them, the
+ *     results are handed over to the subscriber by the thread that delivers them (honoring the subscriber's demand).
+ * </p>
+ * <p>
+ *     Each result is published once it is done, so its {@link Celery.AsyncResult#get()} returns or throws right away.
+ *     A failed task doesn't end the stream and the tasks returning {@code null} are published as well, which plain
+ *     values couldn't be. The stream completes after all the results.
+ * </p>
+ * <p>
+ *     This needs the optional {@code org.reactivestreams:reactive-streams} dependency.
+ * </p>
+ *
+ * @param <T> type of the task results
+ */
+public final class ResultPublisher<T> implements Publisher<Celery.AsyncResult<T>> {
+
+    private final List<Celery.AsyncResult<T>> results;
+
+    private ResultPublisher(List<Celery.AsyncResult<T>> results) {
+        this.results = results;
+    }
+
+    /**
+     * @param results results of submitted tasks
+     * @param <T> type of the task results
+     * @return publisher of the results, every subscriber gets all of them
+     */
+    public static <T> ResultPublisher<T> of(Iterable<? extends Celery.AsyncResult<T>> results) {
+        return new ResultPublisher<>(ImmutableList.copyOf(results));
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Celery.AsyncResult<T>> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        ResultSubscription subscription = new ResultSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        for (Celery.AsyncResult<T> result : results) {
+            result.whenComplete((value, failure) -> subscription.arrived(result));
+        }
+        subscription.drain();
+    }
+
+    /**
+     * Serializes the signals to the subscriber: whichever thread gets into {@link #drain()} first emits for the
+     * others as well.
+     */
+    private class ResultSubscription implements Subscription {
+        private final Subscriber<? super Celery.AsyncResult<T>> subscriber;
+        private final Queue<Celery.AsyncResult<T>> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest;
+        private int emitted = 0;
+
+        ResultSubscription(Subscriber<? super Celery.AsyncResult<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void arrived(Celery.AsyncResult<T> result) {
+            if (!cancelled) {
+                ready.add(result);
+                drain();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("The number of requested results must be positive, got "
+                        + n);
+            } else {
+                requested.accumulateAndGet(n, (current, add) -> {
+                    long sum = current + add;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    ready.clear();
+                    return;
+                }
+                if (badRequest != null) {
+                    cancelled = true;
+                    subscriber.onError(badRequest);
+                    return;
+                }
+
+                long demand = requested.get();
+                long sent = 0;
+                Celery.AsyncResult<T> result;
+                while (sent < demand && !cancelled && (result = ready.poll()) != null) {
+                    subscriber.onNext(result);
+                    sent++;
+                    emitted++;
+                }
+                if (sent > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-sent);
+                }
+
+                if (!cancelled && emitted == results.size()) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                    return;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.geneea.celery.serializers;
+
+import com.google.common.collect.ImmutableMap;
+import com.geneea.celery.spi.Serializer;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Internal utility to get the right {@link Serializer} by its name or by the content type of a message.
+ */
+public class CelerySerializers {
+
+    /**
+     * Content type of the messages that don't say theirs.
+     */
+    public static final String DEFAULT_CONTENT_TYPE = "application/json";
+
+    /**
+     * @param name name of the serializer ({@code json}, {@code msgpack} or one of your own)
+     * @return the serializer
+     * @throws IllegalArgumentException if there is no such serializer or its library isn't on the classpath
+     */
+    public static Serializer forName(String name) {
+        Serializer serializer = Loaded.BY_NAME.get(name);
+        if (serializer == null) {
+            throw new IllegalArgumentException(
+                    String.format("Unknown serializer %s, known are %s", name, Loaded.BY_NAME.keySet()));
+        }
+        // Fail right away rather than on the first message.
+        serializer.getMapper();
+        return serializer;
+    }
+
+    /**
+     * @param contentType content type of a message, JSON if {@code null}
+     * @return the serializer of the message body
+     * @throws IllegalArgumentException if there is no serializer for the content type
+     */
+    public static Serializer forContentType(@Nullable String contentType) {
+        Serializer serializer = Loaded.BY_CONTENT_TYPE.get(contentType == null ? DEFAULT_CONTENT_TYPE : contentType);
+        if (serializer == null) {
+            throw new IllegalArgumentException(String.format("No serializer for content type %s, known are %s",
+                    contentType, Loaded.BY_CONTENT_TYPE.keySet()));
+        }
+        return serializer;
+    }
+
+    // The serializers are looked up for every message, so they are loaded only once.
+    private static class Loaded {
+        static final Map<String, Serializer> BY_NAME;
+        static final Map<String, Serializer> BY_CONTENT_TYPE;
+
+        static {
+            Map<String, Serializer> byName = new LinkedHashMap<>();
+            Map<String, Serializer> byContentType = new LinkedHashMap<>();
+            for (Serializer serializer : ServiceLoader.load(Serializer.class)) {
+                byName.putIfAbsent(serializer.getName(), serializer);
+                byContentType.putIfAbsent(serializer.getContentType(), serializer);
+            }
+            BY_NAME = ImmutableMap.copyOf(byName);
+            BY_CONTENT_TYPE = ImmutableMap.copyOf(byContentType);
+        }
+    }
+}
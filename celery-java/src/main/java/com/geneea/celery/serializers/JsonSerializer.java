@@ -0,0 +1,34 @@
+package com.geneea.celery.serializers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.geneea.celery.spi.Serializer;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * JSON bodies, the default of both the Java and Python Celery.
+ */
+@MetaInfServices(Serializer.class)
+public class JsonSerializer implements Serializer {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/json";
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return "utf-8";
+    }
+
+    @Override
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+}
@@ -0,0 +1,49 @@
+package com.geneea.celery.serializers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.geneea.celery.spi.Serializer;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * <a href="https://msgpack.org">MessagePack</a> bodies, understood by Python Celery as the {@code msgpack}
+ * serializer. The bodies are smaller than JSON and faster to read, binary data in particular is kept as it is rather
+ * than Base64 encoded.
+ * <p>
+ *     This needs the optional {@code org.msgpack:jackson-dataformat-msgpack} dependency.
+ * </p>
+ */
+@MetaInfServices(Serializer.class)
+public class MsgpackSerializer implements Serializer {
+
+    @Override
+    public String getName() {
+        return "msgpack";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/x-msgpack";
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return "binary";
+    }
+
+    @Override
+    public ObjectMapper getMapper() {
+        try {
+            return Holder.MAPPER;
+        } catch (NoClassDefFoundError e) {
+            throw new IllegalArgumentException(
+                    "The msgpack serializer needs the org.msgpack:jackson-dataformat-msgpack library on the classpath",
+                    e);
+        }
+    }
+
+    // The optional library is loaded only once this class is.
+    private static class Holder {
+        static final ObjectMapper MAPPER =
+                new ObjectMapper(new org.msgpack.jackson.dataformat.MessagePackFactory());
+    }
+}
@@ -4,6 +4,9 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <i>Internal, used by {@link com.geneea.celery.Celery} and implemented by backend providers.</i>
@@ -34,6 +37,37 @@ public interface Backend extends Closeable {
      */
     void reportResult(String taskId, String queue, String correlationId, Object result) throws IOException;
 
+    /**
+     * Whether the backend can deliver results in chunks, see {@link #reportChunk(String, String, String, List)}. If
+     * not, the worker collects the whole result before reporting it. The default implementation returns
+     * {@code false}.
+     *
+     * @return {@code true} if the backend supports {@link #reportChunk(String, String, String, List)}
+     */
+    default boolean supportsStreaming() {
+        return false;
+    }
+
+    /**
+     * Report a chunk of the result of a task that returned an {@link java.util.Iterator} or a
+     * {@link java.util.stream.Stream}. The chunks are followed by {@link #reportResult(String, String, String, Object)}
+     * with the total number of items, or by {@link #reportException(String, String, String, Throwable)} if the task
+     * fails while producing them. The client receives the first chunk as an {@link java.util.Iterator} going through
+     * all of them.
+     *
+     * @param taskId unique task ID as received
+     * @param queue which queue to report the result to (usually the client ID)
+     * @param correlationId correlation ID as received
+     * <p>
+     * The worker calls it only if {@link #supportsStreaming()} returns {@code true}; the default implementation,
+     * for the backends that don't, ignores the items.
+     *
+     * @param items the next items of the result (need to be JSON serializable)
+     * @throws IOException in case of connection problem
+     */
+    default void reportChunk(String taskId, String queue, String correlationId, List<?> items) throws IOException {
+    }
+
     /**
      * Report erroneous result of computation back to the client.
      *
@@ -45,11 +79,41 @@ public interface Backend extends Closeable {
      */
     void reportException(String taskId, String queue, String correlationId, Throwable exception) throws IOException;
 
+    /**
+     * Report that the task wasn't run. The client gets a {@code TaskRevokedError} failure, as from Python workers.
+     * The default implementation reports a {@link CancellationException}.
+     *
+     * @param taskId unique task ID as received
+     * @param queue which queue to report the result to (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param reason why the task wasn't run, e.g. {@code expired}
+     * @throws IOException in case of connection problem
+     */
+    default void reportRevoked(String taskId, String queue, String correlationId, String reason) throws IOException {
+        reportException(taskId, queue, correlationId, new CancellationException(reason));
+    }
+
+    /**
+     * The worker calls this once it has reported the outcome of a task, and acknowledges the task's delivery only once
+     * the returned future completes. Backends publishing the results in the background complete it once the results
+     * are out. The default implementation returns a completed future, the report methods deliver the results before
+     * they return.
+     *
+     * @return future completed once the results reported by the calling thread since the previous call are delivered,
+     *         failed if some of them couldn't be
+     */
+    default CompletableFuture<Void> reported() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * A way to get notified about completion of the tasks.
      */
     interface ResultsProvider {
         /**
+         * The client asks for the result before it sends the task, the providers don't need to keep results no one
+         * has asked for. If sending the task fails, the client cancels the returned future.
+         *
          * @param taskId unique ID of the task, as used in {@link Message.Headers#setId(String)}
          * @return the computation result that completes when the result is retrieved from the queue
          */
@@ -0,0 +1,40 @@
+package com.geneea.celery.spi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of large message bodies (a claim check). A body above a threshold is put into the store and only its key
+ * travels through the broker, in the {@value #HEADER} header, with an empty body. The receiving side takes the body
+ * from the store and deletes it once the message won't be delivered again.
+ * <p>
+ *     The store doesn't expire the bodies of messages that never got received.
+ * </p>
+ */
+public interface BlobStore {
+
+    /**
+     * Name of the message header holding the key of a body kept in the store.
+     */
+    String HEADER = "claim_check";
+
+    /**
+     * @param data body to keep
+     * @return key of the body, unique in the store
+     * @throws IOException if the body couldn't be stored
+     */
+    String put(byte[] data) throws IOException;
+
+    /**
+     * @param key key returned by {@link #put(byte[])}
+     * @return the body; it may be memory-mapped and is valid even after {@link #delete(String)}
+     * @throws IOException if there is no such body or it can't be read
+     */
+    ByteBuffer get(String key) throws IOException;
+
+    /**
+     * @param key key returned by {@link #put(byte[])}
+     * @throws IOException if the body couldn't be deleted
+     */
+    void delete(String key) throws IOException;
+}
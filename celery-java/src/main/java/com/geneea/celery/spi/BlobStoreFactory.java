@@ -0,0 +1,27 @@
+package com.geneea.celery.spi;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Pluggable interface for blob stores. Implement it as an entry point if you provide your own {@link BlobStore}.
+ */
+public interface BlobStoreFactory {
+
+    /**
+     * @return protocols this factory supports
+     */
+    Set<String> getProtocols();
+
+    /**
+     * Instantiate a blob store. The {@link URI} scheme will be one of the set you provided via
+     * {@link #getProtocols()}.
+     *
+     * @param uri where the blobs are kept
+     * @return new blob store instance
+     *
+     * @throws IOException if the store can't be reached
+     */
+    BlobStore createBlobStore(URI uri) throws IOException;
+}
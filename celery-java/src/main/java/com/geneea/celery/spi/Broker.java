@@ -1,6 +1,7 @@
 package com.geneea.celery.spi;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * <i>Internal, used by {@link com.geneea.celery.Celery} and implemented by broker providers.</i>
@@ -20,8 +21,65 @@ public interface Broker {
      */
     void declareQueue(String name) throws IOException;
 
+    /**
+     * Declare a queue delivering the messages of higher priority first, see {@link Message#setPriority(int)}. The
+     * queue must be declared the same way by all its clients and workers. The default implementation declares a plain
+     * queue, for brokers without priorities.
+     *
+     * @param name queue name
+     * @param maxPriority the highest priority of the messages, 0 for a plain queue
+     * @throws IOException in case of a connection problem, or if the queue exists with a different maximum priority
+     */
+    default void declareQueue(String name, int maxPriority) throws IOException {
+        declareQueue(name);
+    }
+
+    /**
+     * What the messages of a broker can carry beyond the task itself. The client checks the features it needs when it
+     * creates the broker (for the client's options) or submits a task (for the task's options), and refuses to go on
+     * without them rather than have the messages quietly lose them.
+     */
+    enum Feature {
+        /** Compressed bodies, see {@link Message.Headers#setCompression(String)}. */
+        COMPRESSION,
+        /** Bodies kept in a blob store, see {@link Message.Headers#setClaimCheck(String)}. */
+        CLAIM_CHECK,
+        /** Delayed tasks, see {@link Message.Headers#setEta(String)}. */
+        ETA,
+        /** Expiring tasks, see {@link Message.Headers#setExpires(String)}. */
+        EXPIRES,
+        /** Time limits set by the client, see {@link Message.Headers#setTimeLimit(Double, Double)}. */
+        TIME_LIMIT
+    }
+
+    /**
+     * The default implementation supports none of the features, the messages ignore them.
+     *
+     * @param feature what the client needs
+     * @return whether the messages carry the feature to the workers
+     */
+    default boolean supports(Feature feature) {
+        return false;
+    }
+
     /**
      * @return message that can be constructed and later sent
      */
     Message newMessage();
+
+    /**
+     * Send several messages into the same queue at once. Brokers may publish them back-to-back, avoiding the
+     * per-message overhead of {@link Message#send(String)}. The default implementation sends them one by one.
+     *
+     * @param queue into which queue to send the messages
+     * @param messages messages created by {@link #newMessage()}, ready to be sent
+     * @param confirm whether to wait until the broker confirms it has taken over all the messages; brokers without
+     *                confirmations ignore it
+     * @throws IOException in case of connection problem or if the broker rejects some of the messages
+     */
+    default void sendAll(String queue, List<Message> messages, boolean confirm) throws IOException {
+        for (Message message : messages) {
+            message.send(queue);
+        }
+    }
 }
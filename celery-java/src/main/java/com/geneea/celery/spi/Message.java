@@ -1,7 +1,8 @@
 package com.geneea.celery.spi;
 
-
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A message (most often a unit of work) to be sent to the queue.
@@ -13,6 +14,18 @@ public interface Message {
      */
     void setBody(byte[] body);
 
+    /**
+     * Offer the task arguments as objects. Brokers delivering the messages within the JVM can hand them over to the
+     * worker as they are; if this returns {@code true}, the body is not needed and isn't set. The default
+     * implementation returns {@code false}.
+     *
+     * @param args positional arguments of the task
+     * @return whether the message carries the arguments without a body
+     */
+    default boolean setArgs(Object[] args) {
+        return false;
+    }
+
     /**
      * @param contentEncoding encoding of the body
      */
@@ -23,6 +36,15 @@ public interface Message {
      */
     void setContentType(String contentType);
 
+    /**
+     * The broker delivers the messages of higher priority first, if the queue was declared with priorities (see
+     * {@link Broker#declareQueue(String, int)}). The default implementation ignores the priority.
+     *
+     * @param priority priority of the message, from 0 (the default) up to the queue's maximum
+     */
+    default void setPriority(int priority) {
+    }
+
     /**
      * @return message headers builder
      */
@@ -36,6 +58,20 @@ public interface Message {
      */
     void send(String queue) throws IOException;
 
+    /**
+     * Send the message without waiting for the broker to take it over. Brokers supporting publisher confirms
+     * complete the returned future once the broker confirms the message and fail it if the broker rejects it. The
+     * default implementation sends the message synchronously and returns a completed future.
+     *
+     * @param queue into which queue to send the message
+     * @return future completed when the broker has taken over the message
+     * @throws IOException in case of connection problem
+     */
+    default CompletableFuture<Void> sendAsync(String queue) throws IOException {
+        send(queue);
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Message headers to be set
      */
@@ -65,5 +101,59 @@ public interface Message {
          * @param task name of the task to be executed (worker looks for a function/class by this name)
          */
         void setTaskName(String task);
+
+        /**
+         * Mark the body as compressed. The default implementation ignores it, the client doesn't compress the bodies
+         * for brokers without {@link Broker.Feature#COMPRESSION}.
+         *
+         * @param contentType content type of the compression, see {@link com.geneea.celery.util.Compression}
+         */
+        default void setCompression(String contentType) {
+        }
+
+        /**
+         * Mark the body as kept in a blob store. The default implementation ignores it, the client doesn't use a blob
+         * store with brokers without {@link Broker.Feature#CLAIM_CHECK}.
+         *
+         * @param key key of the body in the store, see {@link BlobStore}
+         */
+        default void setClaimCheck(String key) {
+        }
+
+        /**
+         * Don't run the task before the given time. The default implementation ignores it, the client refuses delayed
+         * tasks for brokers without {@link Broker.Feature#ETA}.
+         *
+         * @param eta the earliest time to run the task, see {@link com.geneea.celery.util.Timestamps}
+         */
+        default void setEta(String eta) {
+        }
+
+        /**
+         * Don't run the task after the given time, the workers then report it as revoked. The default implementation
+         * ignores it, the client refuses expiring tasks for brokers without {@link Broker.Feature#EXPIRES}.
+         *
+         * @param expires the latest time to run the task, see {@link com.geneea.celery.util.Timestamps}
+         */
+        default void setExpires(String expires) {
+        }
+
+        /**
+         * Limit how long the task may run, overriding the task's own limits. The default implementation ignores it,
+         * the client refuses the time limits for brokers without {@link Broker.Feature#TIME_LIMIT}.
+         *
+         * @param soft seconds after which the worker interrupts the task, {@code null} for the task's own limit
+         * @param hard seconds after which the worker gives the task up, {@code null} for the task's own limit
+         */
+        default void setTimeLimit(@Nullable Double soft, @Nullable Double hard) {
+        }
+
+        /**
+         * The default implementation does nothing, the workers then don't know how long the message waited.
+         *
+         * @param epochMillis when the client sent the message, see {@link Metrics#SENT_AT_HEADER}
+         */
+        default void setSentAt(long epochMillis) {
+        }
     }
 }
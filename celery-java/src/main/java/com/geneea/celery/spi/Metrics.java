@@ -0,0 +1,82 @@
+package com.geneea.celery.spi;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Pluggable interface for recording the client's and worker's metrics, see
+ * {@link com.geneea.celery.metrics.MicrometerMetrics}. The methods are called on the hot path, once or twice per task,
+ * so they take only primitives and task names and must not block. All of them do nothing by default.
+ */
+public interface Metrics {
+
+    /**
+     * Name of the message header holding the wall-clock time the client sent the message at, in milliseconds since
+     * the epoch. The workers measure the queue wait by it.
+     */
+    String SENT_AT_HEADER = "sent_at";
+
+    /**
+     * Task name the workers record the messages of unknown tasks under, so that the names the clients make up don't
+     * each start a new series.
+     */
+    String UNKNOWN_TASK = "unknown";
+
+    /**
+     * Metrics that record nothing.
+     */
+    Metrics NONE = new Metrics() {
+    };
+
+    /**
+     * The client has submitted tasks, a single one or a batch.
+     *
+     * @param count how many messages were published
+     * @param nanos how long the submission took, including serialization and publishing
+     */
+    default void submitted(int count, long nanos) {
+    }
+
+    /**
+     * The client has got a task result (or failure).
+     *
+     * @param nanos how long it took since the task was submitted
+     */
+    default void resultReceived(long nanos) {
+    }
+
+    /**
+     * The worker has received a task.
+     *
+     * @param taskName full task name, {@link #UNKNOWN_TASK} if the worker doesn't know the task
+     * @param queueWaitMillis how long the message waited since the client sent it, by the wall clock
+     */
+    default void received(String taskName, long queueWaitMillis) {
+    }
+
+    /**
+     * The worker has run a task.
+     *
+     * @param taskName full task name, {@link #UNKNOWN_TASK} if the worker doesn't know the task
+     * @param nanos how long the task ran, including decoding the arguments and reporting the result
+     * @param failed whether the task failed
+     */
+    default void executed(String taskName, long nanos, boolean failed) {
+    }
+
+    /**
+     * The worker has acknowledged (or rejected) a message.
+     *
+     * @param nanos how long the acknowledgement took, including the wait for the channel
+     */
+    default void acked(long nanos) {
+    }
+
+    /**
+     * A worker has started. Called once per worker.
+     *
+     * @param inFlight number of the tasks received and not yet finished
+     * @param prefetch how many messages the broker sends in advance
+     */
+    default void workerStarted(IntSupplier inFlight, IntSupplier prefetch) {
+    }
+}
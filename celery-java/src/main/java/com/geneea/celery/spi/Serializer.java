@@ -0,0 +1,35 @@
+package com.geneea.celery.spi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Pluggable interface for the formats of the message bodies. Implement it as an entry point if you provide your own
+ * format; the messages name their format by the content type.
+ * <p>
+ *     The bodies are read and written with Jackson's streaming API, so a format is backed by a Jackson data format
+ *     (a {@link com.fasterxml.jackson.core.JsonFactory} of its own).
+ * </p>
+ */
+public interface Serializer {
+
+    /**
+     * @return name of the serializer, the same as in Python Celery (e.g. {@code json})
+     */
+    String getName();
+
+    /**
+     * @return MIME type of the bodies
+     */
+    String getContentType();
+
+    /**
+     * @return encoding of the bodies, {@code binary} for binary formats
+     */
+    String getContentEncoding();
+
+    /**
+     * @return mapper reading and writing the format
+     * @throws IllegalArgumentException if the format's library isn't on the classpath
+     */
+    ObjectMapper getMapper();
+}
@@ -0,0 +1,223 @@
+package com.geneea.celery.util;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <i>Internal, shared by the client, the worker and the backends.</i>
+ *
+ * <p>
+ *     Compression of the message bodies, marked the way Celery does it: the {@code compression} header holds the
+ *     content type of the compression. The codecs are
+ * </p>
+ * <ul>
+ *     <li>{@code zlib} ({@code application/x-gzip}) - the same as Python Celery's default compression</li>
+ *     <li>{@code lz4} ({@code application/x-lz4}) - LZ4 frames, needs the optional {@code org.lz4:lz4-java}
+ *     dependency; Python Celery doesn't know this one</li>
+ *     <li>{@code zstd} ({@code application/zstd}) - needs the optional {@code com.github.luben:zstd-jni}
+ *     dependency; the same as Python Celery's {@code zstd}</li>
+ * </ul>
+ */
+public abstract class Compression {
+
+    /**
+     * Name of the message header holding the content type of the compression.
+     */
+    public static final String HEADER = "compression";
+
+    private final String name;
+    private final String contentType;
+
+    private Compression(String name, String contentType) {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param name name ({@code zlib}, {@code lz4} or {@code zstd}) or content type of the compression
+     * @return the compression
+     * @throws IllegalArgumentException if the compression is unknown or its library isn't on the classpath
+     */
+    public static Compression forName(String name) {
+        switch (name) {
+            case "zlib":
+            case "gzip":
+            case "application/x-gzip":
+                return Zlib.INSTANCE;
+            case "lz4":
+            case "application/x-lz4":
+                return optional(name, "net.jpountz.lz4.LZ4FrameOutputStream", "org.lz4:lz4-java",
+                        () -> Lz4.INSTANCE);
+            case "zstd":
+            case "application/zstd":
+            case "application/x-zstd":
+                return optional(name, "com.github.luben.zstd.ZstdOutputStream", "com.github.luben:zstd-jni",
+                        () -> Zstd.INSTANCE);
+            default:
+                throw new IllegalArgumentException("Unknown compression " + name);
+        }
+    }
+
+    /**
+     * Decompress a body if the message says it is compressed.
+     *
+     * @param contentType the {@code compression} header of the message, may be {@code null}
+     * @param body the message body
+     * @return the decompressed body, or the same body if it isn't compressed
+     * @throws IOException if the body can't be decompressed
+     */
+    public static byte[] decompress(@Nullable Object contentType, byte[] body) throws IOException {
+        if (contentType == null) {
+            return body;
+        }
+        Compression compression;
+        try {
+            compression = forName(contentType.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return compression.decompress(body);
+    }
+
+    /**
+     * Decompress a body read as a stream if the message says it is compressed.
+     *
+     * @param contentType the {@code compression} header of the message, may be {@code null}
+     * @param body the message body
+     * @return stream of the decompressed body, or the same stream if it isn't compressed
+     * @throws IOException if the compression is unknown
+     */
+    public static InputStream decompressing(@Nullable Object contentType, InputStream body) throws IOException {
+        if (contentType == null) {
+            return body;
+        }
+        try {
+            return forName(contentType.toString()).decompressing(body);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static Compression optional(String name, String className, String dependency,
+                                        Supplier<Compression> compression) {
+        try {
+            Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(
+                    "The " + name + " compression needs the " + dependency + " library on the classpath");
+        }
+        return compression.get();
+    }
+
+    /**
+     * @return short name of the compression
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return content type of the compression, the value of the {@code compression} header
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param data data to compress
+     * @return compressed data
+     * @throws IOException if the compression fails
+     */
+    public byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream compressing = compressing(out)) {
+            compressing.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data compressed data
+     * @return decompressed data
+     * @throws IOException if the data is corrupted
+     */
+    public byte[] decompress(byte[] data) throws IOException {
+        // Not ByteStreams.toByteArray(), the LZ4 stream fails on available() before the first read.
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream decompressing = decompressing(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = decompressing.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    abstract OutputStream compressing(OutputStream out) throws IOException;
+
+    abstract InputStream decompressing(InputStream in) throws IOException;
+
+    private static class Zlib extends Compression {
+        static final Zlib INSTANCE = new Zlib();
+
+        Zlib() {
+            super("zlib", "application/x-gzip");
+        }
+
+        @Override
+        OutputStream compressing(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        InputStream decompressing(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    }
+
+    // The optional libraries are loaded only once these classes are.
+
+    private static class Lz4 extends Compression {
+        static final Lz4 INSTANCE = new Lz4();
+
+        Lz4() {
+            super("lz4", "application/x-lz4");
+        }
+
+        @Override
+        OutputStream compressing(OutputStream out) throws IOException {
+            return new net.jpountz.lz4.LZ4FrameOutputStream(out);
+        }
+
+        @Override
+        InputStream decompressing(InputStream in) throws IOException {
+            return new net.jpountz.lz4.LZ4FrameInputStream(in);
+        }
+    }
+
+    private static class Zstd extends Compression {
+        static final Zstd INSTANCE = new Zstd();
+
+        Zstd() {
+            super("zstd", "application/zstd");
+        }
+
+        @Override
+        OutputStream compressing(OutputStream out) throws IOException {
+            return new com.github.luben.zstd.ZstdOutputStream(out);
+        }
+
+        @Override
+        InputStream decompressing(InputStream in) throws IOException {
+            return new com.github.luben.zstd.ZstdInputStream(in);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.geneea.celery.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <i>Internal, shared by the client and the worker.</i>
+ *
+ * <p>
+ *     A queue split into several physical queues, the shards, named {@code <queue>.0} to {@code <queue>.<count - 1>}.
+ *     A single queue is served by a single core of the broker, the shards spread the load over more of them.
+ * </p>
+ * <p>
+ *     The tasks with a shard key go to the shard the key hashes to, so they stay in order as long as each shard is
+ *     consumed by a single worker running one task at a time. The hash is consistent: when the number of shards grows
+ *     from {@code n} to {@code n + 1}, only {@code 1 / (n + 1)} of the keys move. The tasks without a key are sent to
+ *     the shards in turn.
+ * </p>
+ */
+public class QueueShards {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final List<String> queues;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param queue name of the sharded queue
+     * @param count number of shards; a single one is the queue itself, not sharded
+     */
+    public QueueShards(String queue, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("The number of shards must be positive, got " + count);
+        }
+        if (count == 1) {
+            this.queues = ImmutableList.of(queue);
+        } else {
+            ImmutableList.Builder<String> queues = ImmutableList.builder();
+            for (int i = 0; i < count; i++) {
+                queues.add(name(queue, i));
+            }
+            this.queues = queues.build();
+        }
+    }
+
+    /**
+     * @param queue name of the sharded queue
+     * @param shard index of the shard
+     * @return name of the physical queue of the shard
+     */
+    public static String name(String queue, int shard) {
+        return queue + "." + shard;
+    }
+
+    /**
+     * @return names of the physical queues
+     */
+    public List<String> getQueues() {
+        return queues;
+    }
+
+    /**
+     * @param key shard key of the task, {@code null} if it has none
+     * @return the physical queue to send the task to
+     */
+    public String forKey(@Nullable String key) {
+        if (queues.size() == 1) {
+            return queues.get(0);
+        }
+        int shard = key == null
+                ? Math.floorMod(next.getAndIncrement(), queues.size())
+                : Hashing.consistentHash(HASH.hashString(key, StandardCharsets.UTF_8), queues.size());
+        return queues.get(shard);
+    }
+}
@@ -0,0 +1,177 @@
+package com.geneea.celery.util;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <i>Internal, used by the backends.</i>
+ *
+ * <p>
+ *     Futures of the results the client waits for. A future is registered before its task is sent and leaves the
+ *     registry as soon as it completes, is cancelled or expires. The expired futures fail with a
+ *     {@link TimeoutException}. Results of tasks that aren't registered are dropped.
+ * </p>
+ * <p>
+ *     Task IDs in the canonical UUID form, as the clients generate them, are kept as two longs rather than strings.
+ * </p>
+ */
+public class ResultRegistry {
+
+    private static final TimingWheel EXPIRY = new TimingWheel("celery-result-expiry", 1, TimeUnit.SECONDS, 512);
+
+    private final ConcurrentMap<Object, Pending> pending = new ConcurrentHashMap<>();
+    private final long expireAfterNanos;
+
+    /**
+     * @param expireAfter how long to wait for a result at most
+     * @param unit unit of {@code expireAfter}
+     */
+    public ResultRegistry(long expireAfter, TimeUnit unit) {
+        this.expireAfterNanos = unit.toNanos(expireAfter);
+    }
+
+    /**
+     * @param taskId unique ID of the task
+     * @return the future of the task result; the same one if the task is already registered
+     */
+    public ListenableFuture<Object> register(String taskId) {
+        Object key = key(taskId);
+        Pending future = pending.get(key);
+        if (future != null) {
+            return future;
+        }
+
+        future = new Pending(taskId, key);
+        Pending previous = pending.putIfAbsent(key, future);
+        if (previous != null) {
+            return previous;
+        }
+        future.timeout = EXPIRY.schedule(future, expireAfterNanos, TimeUnit.NANOSECONDS);
+        if (future.isDone()) {
+            future.timeout.cancel();
+        }
+        return future;
+    }
+
+    /**
+     * @param taskId unique ID of the task
+     * @param result the task result
+     * @return {@code false} if no one waits for the result
+     */
+    public boolean complete(String taskId, Object result) {
+        Pending future = pending.remove(key(taskId));
+        return future != null && future.set(result);
+    }
+
+    /**
+     * @param taskId unique ID of the task
+     * @param exception why the task failed
+     * @return {@code false} if no one waits for the result
+     */
+    public boolean fail(String taskId, Throwable exception) {
+        Pending future = pending.remove(key(taskId));
+        return future != null && future.setException(exception);
+    }
+
+    /**
+     * @return number of results waited for
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    static Object key(String taskId) {
+        if (taskId.length() != 36 || taskId.charAt(8) != '-' || taskId.charAt(13) != '-'
+                || taskId.charAt(18) != '-' || taskId.charAt(23) != '-') {
+            return taskId;
+        }
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 36; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                continue;
+            }
+            int digit = Character.digit(taskId.charAt(i), 16);
+            // Upper case digits would make the same UUID a different string, keep those as they are.
+            if (digit < 0 || Character.isUpperCase(taskId.charAt(i))) {
+                return taskId;
+            }
+            if (i < 18) {
+                msb = (msb << 4) | digit;
+            } else {
+                lsb = (lsb << 4) | digit;
+            }
+        }
+        return new UuidKey(msb, lsb);
+    }
+
+    private static final class UuidKey {
+        private final long msb;
+        private final long lsb;
+
+        UuidKey(long msb, long lsb) {
+            this.msb = msb;
+            this.lsb = lsb;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UuidKey)) {
+                return false;
+            }
+            UuidKey other = (UuidKey) o;
+            return msb == other.msb && lsb == other.lsb;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = msb ^ lsb;
+            return (int) (hash >> 32) ^ (int) hash;
+        }
+    }
+
+    private final class Pending extends AbstractFuture<Object> implements Runnable {
+        private final String taskId;
+        private final Object key;
+        private volatile TimingWheel.Timeout timeout;
+
+        Pending(String taskId, Object key) {
+            this.taskId = taskId;
+            this.key = key;
+        }
+
+        @Override
+        protected boolean set(Object value) {
+            return super.set(value);
+        }
+
+        @Override
+        protected boolean setException(Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        /**
+         * Expire the future.
+         */
+        @Override
+        public void run() {
+            if (pending.remove(key, this)) {
+                setException(new TimeoutException("No result of the task " + taskId + " arrived in time"));
+            }
+        }
+
+        @Override
+        protected void afterDone() {
+            pending.remove(key, this);
+            TimingWheel.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+}
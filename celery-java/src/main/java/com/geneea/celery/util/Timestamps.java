@@ -0,0 +1,47 @@
+package com.geneea.celery.util;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * <i>Internal, shared by the client and the worker.</i>
+ *
+ * <p>
+ *     Points in time in the message headers ({@code eta}, {@code expires}), written the way Python's
+ *     {@code datetime.isoformat()} writes them, e.g. {@code 2024-05-01T10:00:00.123456+00:00}.
+ * </p>
+ */
+public final class Timestamps {
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSxxx").withZone(ZoneOffset.UTC);
+
+    private Timestamps() {
+    }
+
+    /**
+     * @param time point in time
+     * @return the time in UTC, in the ISO 8601 format
+     */
+    public static String format(Instant time) {
+        return FORMAT.format(time);
+    }
+
+    /**
+     * @param value header value in the ISO 8601 format; a time without offset is in UTC, as Celery takes it
+     * @return the point in time
+     * @throws DateTimeParseException if the value isn't a time
+     */
+    public static Instant parse(Object value) {
+        String text = value.toString();
+        try {
+            return OffsetDateTime.parse(text).toInstant();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,1085 @@
+package com.geneea.celery
+
+import com.google.common.util.concurrent.MoreExecutors
+import com.google.common.util.concurrent.Uninterruptibles
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.Envelope
+import com.geneea.celery.backends.rabbit.RabbitBackend
+import com.geneea.celery.blobstores.file.MappedBlobStore
+import com.geneea.celery.serializers.CelerySerializers
+import com.geneea.celery.spi.Backend
+import com.geneea.celery.spi.Metrics
+import com.geneea.celery.util.Compression
+import com.geneea.celery.util.Timestamps
+import spock.lang.Requires
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.IntBinaryOperator
+import java.util.stream.IntStream
+import java.util.stream.Stream
+
+class CeleryWorkerTest extends Specification {
+
+    def Channel channel
+    def Backend backend
+
+    def setup() {
+        channel = Mock(Channel.class)
+        backend = Mock(Backend.class)
+        backend.reported() >> CompletableFuture.completedFuture(null)
+        WorkerTestTask.latch = new CountDownLatch(0)
+    }
+
+    static AMQP.BasicProperties props(String taskId, String task) {
+        return new AMQP.BasicProperties.Builder()
+                .contentEncoding("utf-8")
+                .contentType("application/json")
+                .replyTo("client")
+                .correlationId(taskId)
+                .headers([id: taskId, task: task])
+                .build()
+    }
+
+    static byte[] body(String args) {
+        return ('[' + args + ', {}, {"callbacks": null, "chain": null, "chord": null, "errbacks": null}]').bytes
+    }
+
+    def "Worker should run the task and report its result"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should bind the arguments to generic parameter types in any encoding"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentEncoding(encoding)
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#describe"])
+                .build()
+        def args = '[{"žluť": [1, 2, 3]}, "ignored"]'
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties,
+                ('[' + args + ', {}, {}]').getBytes(encoding))
+
+        then:
+        1 * backend.reportResult("id1", null, null, "žluť=6")
+
+        then:
+        1 * channel.basicAck(7, false)
+
+        where:
+        encoding << ["utf-8", "UTF-16", "iso-8859-2"]
+    }
+
+    def "Worker should reject a malformed message"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#sum"), body.bytes)
+
+        then:
+        1 * backend.reportException("id1", "client", "id1", _)
+
+        then:
+        1 * channel.basicNack(7, false, false)
+
+        where:
+        body << ['{"args": [1, 2]}', '[[1, 2', '[["a", "b"], {}, {}]']
+    }
+
+    def "Worker should return a task it couldn't report to the queue once"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, redelivered, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3) >> { throw new IOException("backend down") }
+
+        then:
+        1 * channel.basicNack(7, false, !redelivered)
+        0 * channel.basicAck(*_)
+
+        where:
+        redelivered << [false, true]
+    }
+
+    def "Worker should acknowledge a task only once its batched result is published"() {
+        def worker = new CeleryWorker(channel, new RabbitBackend(channel, 100, 200))
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+
+        then:
+        0 * channel.basicAck(*_)
+
+        when:
+        worker.join()
+
+        then:
+        1 * channel.basicPublish("", "client", _, _)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should return a task whose batched result couldn't be published to the queue"() {
+        def worker = new CeleryWorker(channel, new RabbitBackend(channel, 100, 10))
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+
+        then:
+        1 * channel.basicPublish("", "client", _, _) >> { throw new IOException("channel closed") }
+
+        then:
+        1 * channel.basicNack(7, false, true)
+        0 * channel.basicAck(*_)
+    }
+
+    def "Worker should stream an iterator or a stream in chunks"() {
+        def worker = new CeleryWorker(channel, backend)
+        backend.supportsStreaming() >> true
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#" + method), body("[2500]"))
+
+        then:
+        1 * backend.reportChunk("id1", "client", "id1", { it.size() == 1000 && it[0] == 0 })
+        1 * backend.reportChunk("id1", "client", "id1", { it.size() == 1000 && it[0] == 1000 })
+        1 * backend.reportChunk("id1", "client", "id1", { it.size() == 500 && it[499] == 2499 })
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 2500)
+
+        then:
+        1 * channel.basicAck(7, false)
+
+        where:
+        method << ["countTo", "streamTo"]
+    }
+
+    def "Worker should send an empty stream as one empty chunk"() {
+        def worker = new CeleryWorker(channel, backend)
+        backend.supportsStreaming() >> true
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#countTo"), body("[0]"))
+
+        then:
+        1 * backend.reportChunk("id1", "client", "id1", [])
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 0)
+    }
+
+    def "Worker should collect the stream if the backend can't stream"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#countTo"), body("[3]"))
+
+        then:
+        0 * backend.reportChunk(*_)
+        1 * backend.reportResult("id1", "client", "id1", [0, 1, 2])
+    }
+
+    def "Worker should report a failure while streaming"() {
+        def worker = new CeleryWorker(channel, backend)
+        backend.supportsStreaming() >> true
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#failAfter"), body("[1500]"))
+
+        then:
+        1 * backend.reportChunk("id1", "client", "id1", { it.size() == 1000 })
+        1 * backend.reportException("id1", "client", "id1", { it instanceof IllegalStateException })
+        0 * backend.reportResult(*_)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should report an error or a checked exception thrown while streaming"() {
+        def worker = new CeleryWorker(channel, backend)
+        backend.supportsStreaming() >> true
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#throwAfter"), body("[5, \"$error\"]"))
+
+        then:
+        1 * backend.reportException("id1", "client", "id1", { it.class.simpleName == error })
+        0 * backend.reportResult(*_)
+
+        then:
+        1 * channel.basicAck(7, false)
+
+        where:
+        error << ["IOException", "AssertionError"]
+    }
+
+    def "Worker should decompress the body"() {
+        def worker = new CeleryWorker(channel, backend)
+        def compression = Compression.forName(name)
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentEncoding("utf-8")
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#sum",
+                          compression: compression.contentType])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties,
+                compression.compress(body("[1, 2]")))
+
+        then:
+        1 * backend.reportResult("id1", null, null, 3)
+
+        where:
+        name << ["zlib", "lz4", "zstd"]
+    }
+
+    def "Worker should read the body in its content type"() {
+        def worker = new CeleryWorker(channel, backend)
+        def serializer = CelerySerializers.forName("msgpack")
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentType(serializer.contentType)
+                .contentEncoding(serializer.contentEncoding)
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#sum"])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties,
+                serializer.mapper.writeValueAsBytes([[1, 2], [:], [callbacks: null]]))
+
+        then:
+        1 * backend.reportResult("id1", null, null, 3)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should read a body kept in the blob store and delete it"() {
+        def directory = Files.createTempDirectory("celery-blobs")
+        def store = new MappedBlobStore(directory)
+        def worker = new CeleryWorker(channel, backend, MoreExecutors.directExecutor(), 0, store)
+        def compression = Compression.forName("zlib")
+        def key = store.put(compression.compress(body("[1, 2]")))
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentEncoding("utf-8")
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#sum",
+                          compression: compression.contentType, claim_check: key])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, new byte[0])
+
+        then:
+        1 * backend.reportResult("id1", null, null, 3)
+        !Files.exists(directory.resolve(key))
+
+        cleanup:
+        directory.toFile().deleteDir()
+    }
+
+    def "Worker should keep a body in the blob store until the delivery won't come again"() {
+        def directory = Files.createTempDirectory("celery-blobs")
+        def store = new MappedBlobStore(directory)
+        def worker = new CeleryWorker(channel, backend, MoreExecutors.directExecutor(), 0, store)
+        def key = store.put(body("[1, 2]"))
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sum")
+        properties = properties.builder().headers(properties.headers + [claim_check: key]).build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, new byte[0])
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3) >> { throw new IOException("backend down") }
+        1 * channel.basicNack(7, false, true)
+        Files.exists(directory.resolve(key))
+
+        when: "the same message is delivered again"
+        worker.handleDelivery("tag", new Envelope(8, true, "", "celery"), properties, new byte[0])
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3)
+        1 * channel.basicAck(8, false)
+        !Files.exists(directory.resolve(key))
+
+        cleanup:
+        directory.toFile().deleteDir()
+    }
+
+    def "Worker should delete the body of a message it drops"() {
+        def directory = Files.createTempDirectory("celery-blobs")
+        def store = new MappedBlobStore(directory)
+        def worker = new CeleryWorker(channel, backend, MoreExecutors.directExecutor(), 0, store)
+        def key = store.put(body("[1, 2]"))
+        def properties = props("id1", task)
+        properties = properties.builder().headers(properties.headers + [claim_check: key] + headers).build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, new byte[0])
+
+        then:
+        1 * channel.basicAck(7, false)
+        !Files.exists(directory.resolve(key))
+
+        cleanup:
+        directory.toFile().deleteDir()
+
+        where:
+        task                                   | headers
+        "com.geneea.celery.WorkerTestTask#sum" | [expires: Timestamps.format(Instant.now().minusSeconds(1))]
+        "com.geneea.celery.NoSuchTask#sum"     | [:]
+    }
+
+    def "Worker should keep the body of a task moved to the delay queue"() {
+        def directory = Files.createTempDirectory("celery-blobs")
+        def store = new MappedBlobStore(directory)
+        def worker = new CeleryWorker(channel, backend, MoreExecutors.directExecutor(), 0, store)
+        worker.spillDelayed(1000)
+        def key = store.put(body("[1, 2]"))
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sum")
+        properties = properties.builder().headers(properties.headers + [claim_check: key,
+                eta: Timestamps.format(Instant.now().plusSeconds(3600))]).build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, new byte[0])
+
+        then:
+        1 * channel.basicPublish("", "celery.delay", properties, _)
+        1 * channel.basicAck(7, false)
+        Files.exists(directory.resolve(key))
+
+        cleanup:
+        directory.toFile().deleteDir()
+    }
+
+    def "Worker should reject a body of an unknown content type"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentType("application/x-python-serialize")
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#sum"])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, body("[1, 2]"))
+
+        then:
+        1 * backend.reportException("id1", null, null, _)
+
+        then:
+        1 * channel.basicNack(7, false, false)
+    }
+
+    def "Worker should reject a body it can't decompress"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = new AMQP.BasicProperties.Builder()
+                .headers([id: "id1", task: "com.geneea.celery.WorkerTestTask#sum", compression: "application/x-gzip"])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, body("[1, 2]"))
+
+        then:
+        1 * backend.reportException("id1", null, null, _)
+
+        then:
+        1 * channel.basicNack(7, false, false)
+    }
+
+    def "Worker should report unknown task and acknowledge it"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                props("id1", task), body("[]"))
+
+        then:
+        1 * backend.reportException("id1", "client", "id1", { it instanceof DispatchException })
+
+        then:
+        1 * channel.basicAck(7, false)
+
+        where:
+        task << ["com.geneea.celery.Unknown#sum", "com.geneea.celery.WorkerTestTask#unknown", "no-hash"]
+    }
+
+    def "Worker should look an unknown task up only once"() {
+        def worker = new CeleryWorker(channel, backend)
+        worker.instrument(Mock(Metrics.class), 0)
+        def properties = props("id1", "com.geneea.celery.Unknown#sum")
+        properties = properties.builder()
+                .headers(properties.headers + [sent_at: System.currentTimeMillis()])
+                .build()
+        def reported = []
+
+        when:
+        (1..2).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"), properties, body("[]"))
+        }
+
+        then:
+        2 * backend.reportException("id1", "client", "id1", _) >> { taskId, replyTo, correlationId, e -> reported << e }
+        reported[0] instanceof DispatchException
+        reported[0].is(reported[1])
+    }
+
+    def "Worker should record the metrics of the tasks"() {
+        def worker = new CeleryWorker(channel, backend)
+        def metrics = Mock(Metrics.class)
+        def props = new AMQP.BasicProperties.Builder()
+                .contentEncoding("utf-8")
+                .contentType("application/json")
+                .replyTo("client")
+                .correlationId("id1")
+                .headers([id: "id1", task: task, sent_at: System.currentTimeMillis() - 5000])
+                .build()
+
+        when:
+        worker.instrument(metrics, 0)
+
+        then:
+        1 * metrics.workerStarted({ it.getAsInt() == 0 }, _)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), props, body("[1, 2]"))
+
+        then:
+        1 * metrics.received(tag, { it >= 5000 && it < 60000 })
+        1 * metrics.executed(tag, { it > 0 }, failed)
+        1 * metrics.acked({ it >= 0 })
+
+        where:
+        task                                       | tag                                    | failed
+        "com.geneea.celery.WorkerTestTask#sum"     | "com.geneea.celery.WorkerTestTask#sum" | false
+        "com.geneea.celery.WorkerTestTask#unknown" | "unknown"                              | true
+    }
+
+    def "Worker should consume the given shards of a queue"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+
+        when:
+        CeleryWorker.builder().connection(connection).queue("q").shards(4).shardIds([1, 3]).build()
+
+        then:
+        1 * channel.queueDeclare("q.1", true, false, false, null)
+        1 * channel.queueDeclare("q.3", true, false, false, null)
+        1 * channel.basicConsume("q.1", false, "", true, false, null, _ as CeleryWorker)
+        1 * channel.basicConsume("q.3", false, "", true, false, null, _ as CeleryWorker)
+        0 * channel.basicConsume(*_)
+    }
+
+    def "Worker should refuse a shard the queue doesn't have"() {
+        def connection = Mock(Connection.class)
+
+        when:
+        CeleryWorker.builder().connection(connection).queue("q").shards(shards).shardIds([shardId]).build()
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "Shard $shardId doesn't exist, the queue q has shards 0 to ${(shards ?: 1) - 1}"
+        0 * connection.createChannel()
+
+        where:
+        shards | shardId
+        4      | 4
+        4      | -1
+        null   | 1
+    }
+
+    def "Adaptive prefetch should sample the broker refill, not the deliveries already buffered"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def builder = CeleryWorker.builder().connection(connection).minPrefetch(2).maxPrefetch(100)
+        def worker = (executor == null ? builder : builder.executor(executor)).build()
+        WorkerTestTask.latch = new CountDownLatch(1)
+
+        when: "the first task holds the window full, the refill comes 50 ms after its ack"
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#hang"), body("[]"))
+        worker.handleDelivery("tag", new Envelope(2, false, "", "celery"),
+                props("id2", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        WorkerTestTask.latch.countDown()
+        worker.join()
+        sleep(50)
+        worker.handleDelivery("tag", new Envelope(3, false, "", "celery"),
+                props("id3", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+
+        then:
+        3 * channel.basicAck(_, false)
+        worker.prefetch.refillLatencyNanos >= 0.2 * TimeUnit.MILLISECONDS.toNanos(50)
+
+        cleanup:
+        worker.close()
+
+        where:
+        executor << [null, Executors.newCachedThreadPool()]
+    }
+
+    def "Solo worker should leave the deliveries not started yet to the broker once closed"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = CeleryWorker.builder().connection(connection).build()
+        WorkerTestTask.latch = new CountDownLatch(2)
+
+        when: "the worker is closed while the first task runs"
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                props("id1", "com.geneea.celery.WorkerTestTask#waitForOthers"), body("[]"))
+        (2..3).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    props("id$it", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        }
+        while (WorkerTestTask.latch.count == 2) {
+            sleep(1)
+        }
+        worker.close()
+        WorkerTestTask.latch.countDown()
+        worker.join()
+
+        then:
+        1 * channel.basicAck(1, false)
+        0 * channel.basicAck(*_)
+        0 * channel.basicNack(*_)
+        worker.inFlightCount == 0
+    }
+
+    def "Worker should declare a priority queue"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+
+        when:
+        CeleryWorker.builder().connection(connection).queue("q").maxPriority(10).build()
+
+        then:
+        1 * channel.queueDeclare("q", true, false, false, ["x-max-priority": 10])
+    }
+
+    def "Tasks of higher priority should overtake the prefetched ones"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newFixedThreadPool(2), 1)
+        worker.prioritize()
+        WorkerTestTask.latch = new CountDownLatch(2)
+        def order = []
+
+        when:
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                props("blocker", "com.geneea.celery.WorkerTestTask#waitForOthers"), body("[]"))
+        [[2, 0], [3, 0], [4, 9], [5, 5]].each { tag, priority ->
+            def properties = props("id$tag", "com.geneea.celery.WorkerTestTask#sum").builder().priority(priority).build()
+            worker.handleDelivery("tag", new Envelope(tag, false, "", "celery"), properties, body("[1, 2]"))
+        }
+        WorkerTestTask.latch.countDown()
+        worker.join()
+
+        then:
+        4 * backend.reportResult(_, "client", _, 3) >> { taskId, replyTo, correlationId, result -> order << taskId }
+        order == ["id4", "id5", "id2", "id3"]
+    }
+
+    def "Tasks of higher priority should overtake the prefetched ones in a solo worker"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = CeleryWorker.builder().connection(connection).maxPriority(10).build()
+        WorkerTestTask.latch = new CountDownLatch(2)
+        def order = []
+
+        when: "the solo thread is busy while the others are delivered"
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                props("blocker", "com.geneea.celery.WorkerTestTask#waitForOthers"), body("[]"))
+        while (WorkerTestTask.latch.count == 2) {
+            sleep(1)
+        }
+        [[2, 0], [3, 0], [4, 9], [5, 5]].each { tag, priority ->
+            def properties = props("id$tag", "com.geneea.celery.WorkerTestTask#sum").builder().priority(priority).build()
+            worker.handleDelivery("tag", new Envelope(tag, false, "", "celery"), properties, body("[1, 2]"))
+        }
+        WorkerTestTask.latch.countDown()
+        worker.join()
+
+        then:
+        5 * channel.basicAck(_, false) >> { tag, multiple -> order << tag }
+        order == [1L, 4L, 5L, 2L, 3L]
+
+        cleanup:
+        worker.close()
+    }
+
+    static AMQP.BasicProperties delayed(String taskId, Instant eta) {
+        def properties = props(taskId, "com.geneea.celery.WorkerTestTask#sum")
+        return properties.builder().headers(properties.headers + [eta: Timestamps.format(eta)]).build()
+    }
+
+    def "Worker should hold a task until its ETA and acknowledge it once run"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                delayed("id1", Instant.now().plusMillis(300)), body("[1, 2]"))
+
+        then:
+        0 * backend.reportResult(*_)
+        0 * channel.basicAck(*_)
+
+        when:
+        sleep(1000)
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should run a task whose ETA has passed right away"() {
+        def worker = new CeleryWorker(channel, backend)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"),
+                delayed("id1", Instant.now().minusSeconds(10)), body("[1, 2]"))
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3)
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should raise the prefetch while it holds tasks, from a thread of its own"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = CeleryWorker.builder().connection(connection).concurrency(2).build()
+        def sent = []
+        channel.basicQos(_, true) >> { int count, boolean global -> sent << [count, Thread.currentThread().name] }
+
+        when:
+        (1..10).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    delayed("id$it", Instant.now().plusMillis(300)), body("[1, 2]"))
+        }
+        sleep(200)
+
+        then:
+        sent.last()[0] == 14
+
+        when:
+        sleep(1000)
+
+        then:
+        sent.last()[0] == 4
+        sent.every { it[1].startsWith("celery-prefetch") }
+        10 * channel.basicAck(_, false)
+
+        cleanup:
+        worker.close()
+    }
+
+    def "Adaptive prefetch should not take the held tasks for a full window"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = CeleryWorker.builder().connection(connection).minPrefetch(2).maxPrefetch(100).build()
+
+        when: "the window is 2 + 1 held, the ack of the second delivery doesn't make the broker send another one"
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                delayed("id1", Instant.now().plusSeconds(3600)), body("[1, 2]"))
+        worker.handleDelivery("tag", new Envelope(2, false, "", "celery"),
+                props("id2", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+        sleep(50)
+        worker.handleDelivery("tag", new Envelope(3, false, "", "celery"),
+                props("id3", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+
+        then:
+        2 * channel.basicAck(_, false)
+        worker.prefetch.refillLatencyNanos == 0
+
+        cleanup:
+        worker.close()
+    }
+
+    def "A due task should wait for the task of a worker running them one by one"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = solo ? CeleryWorker.builder().connection(connection).build() : new CeleryWorker(channel, backend)
+        WorkerTestTask.maxRunning.set(0)
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sleepAndCount")
+        properties = properties.builder()
+                .headers(properties.headers + [eta: Timestamps.format(Instant.now().plusMillis(20))])
+                .build()
+
+        when: "the task comes due while the others run"
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"), properties, body("[]"))
+        (2..4).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    props("id$it", "com.geneea.celery.WorkerTestTask#sleepAndCount"), body("[]"))
+        }
+        sleep(100)
+        worker.join()
+
+        then:
+        4 * channel.basicAck(_, false)
+        WorkerTestTask.maxRunning.get() == 1
+
+        cleanup:
+        worker.close()
+
+        where:
+        solo << [false, true]
+    }
+
+    def "Worker should move a task due past the horizon to the delay queue"() {
+        def worker = new CeleryWorker(channel, backend)
+        worker.spillDelayed(60000)
+        def properties = delayed("id1", Instant.now().plusSeconds(3600))
+        def body = body("[1, 2]")
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, body)
+
+        then:
+        1 * channel.queueDeclare("celery.delay", true, false, false, [
+                "x-message-ttl": 60000L, "x-dead-letter-exchange": "", "x-dead-letter-routing-key": "celery"])
+
+        then:
+        1 * channel.basicPublish("", "celery.delay", properties, body)
+
+        then:
+        1 * channel.basicAck(7, false)
+        0 * backend.reportResult(*_)
+    }
+
+    def "Worker should drop an expired task without decoding it"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sum")
+        properties = properties.builder()
+                .headers(properties.headers + [expires: Timestamps.format(Instant.now().minusSeconds(1))])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, "not even JSON".bytes)
+
+        then:
+        1 * backend.reportRevoked("id1", "client", "id1", "expired")
+        0 * backend.reportException(*_)
+
+        then:
+        1 * channel.basicAck(7, false)
+    }
+
+    def "Worker should run a task that hasn't expired yet"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sum")
+        properties = properties.builder()
+                .headers(properties.headers + [expires: Timestamps.format(Instant.now().plusSeconds(60))])
+                .build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, body("[1, 2]"))
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", 3)
+        0 * backend.reportRevoked(*_)
+    }
+
+    def "Worker should interrupt a task over its soft time limit"() {
+        def worker = new CeleryWorker(channel, backend)
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#sleepUnlessInterrupted")
+        properties = properties.builder().headers(properties.headers + [timelimit: [null, 0.1]]).build()
+
+        when:
+        worker.handleDelivery("tag", new Envelope(7, false, "", "celery"), properties, body("[]"))
+
+        then:
+        1 * backend.reportResult("id1", "client", "id1", true)
+        1 * channel.basicAck(7, false)
+        !Thread.currentThread().isInterrupted()
+    }
+
+    def "Worker should give up a task over its hard time limit and free its slot"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newCachedThreadPool(), 1)
+        def properties = props("id1", "com.geneea.celery.WorkerTestTask#hang")
+        properties = properties.builder().headers(properties.headers + [timelimit: [0.1, null]]).build()
+        WorkerTestTask.latch = new CountDownLatch(1)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"), properties, body("[]"))
+        worker.handleDelivery("tag", new Envelope(2, false, "", "celery"),
+                props("id2", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+
+        then:
+        1 * backend.reportException("id1", "client", "id1", _ as TimeLimitExceeded)
+        1 * channel.basicAck(1, false)
+        1 * backend.reportResult("id2", "client", "id2", 3)
+        1 * channel.basicAck(2, false)
+
+        when:
+        WorkerTestTask.latch.countDown()
+        sleep(200)
+
+        then:
+        0 * backend.reportResult(*_)
+        0 * channel.basicAck(*_)
+    }
+
+    static AMQP.BasicProperties limited(String taskId, String task, double hardSeconds) {
+        def properties = props(taskId, task)
+        return properties.builder().headers(properties.headers + [timelimit: [hardSeconds, null]]).build()
+    }
+
+    def "Solo worker should run the next task in place of the thread of a task given up"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+        def worker = CeleryWorker.builder().connection(connection).build()
+        WorkerTestTask.latch = new CountDownLatch(1)
+
+        when:
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                limited("id1", "com.geneea.celery.WorkerTestTask#hang", 0.1), body("[]"))
+        worker.handleDelivery("tag", new Envelope(2, false, "", "celery"),
+                props("id2", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        worker.join()
+
+        then:
+        1 * channel.basicAck(1, false)
+        1 * channel.basicAck(2, false)
+        worker.ownExecutor.maximumPoolSize == 2
+
+        when: "the task given up returns"
+        WorkerTestTask.latch.countDown()
+        sleep(200)
+
+        then:
+        0 * channel.basicAck(*_)
+        worker.ownExecutor.maximumPoolSize == 1
+
+        cleanup:
+        worker.close()
+    }
+
+    def "Worker should let go at most as many threads of the tasks given up as it runs at once"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newCachedThreadPool(), 1)
+        WorkerTestTask.latch = new CountDownLatch(1)
+
+        when: "both tasks are given up"
+        (1..2).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    limited("id$it", "com.geneea.celery.WorkerTestTask#hang", 0.1), body("[]"))
+        }
+        sleep(500)
+
+        then:
+        2 * backend.reportException(_, "client", _, _ as TimeLimitExceeded)
+        1 * channel.basicAck(1, false)
+        1 * channel.basicAck(2, false)
+
+        when: "the second task given up keeps its slot"
+        worker.handleDelivery("tag", new Envelope(3, false, "", "celery"),
+                props("id3", "com.geneea.celery.WorkerTestTask#sum"), body("[1, 2]"))
+        sleep(200)
+
+        then:
+        0 * backend.reportResult(*_)
+
+        when:
+        WorkerTestTask.latch.countDown()
+        worker.join()
+
+        then:
+        1 * backend.reportResult("id3", "client", "id3", 3)
+        1 * channel.basicAck(3, false)
+    }
+
+    def "Worker should give up a task over its hard time limit while it produces its items"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newCachedThreadPool(), 1)
+        backend.supportsStreaming() >> true
+
+        when:
+        worker.handleDelivery("tag", new Envelope(1, false, "", "celery"),
+                limited("id1", "com.geneea.celery.WorkerTestTask#slowCountTo", 0.1), body("[10]"))
+        worker.join()
+        sleep(200)
+
+        then:
+        1 * backend.reportException("id1", "client", "id1", _ as TimeLimitExceeded)
+        1 * channel.basicAck(1, false)
+        0 * backend.reportChunk(*_)
+        0 * backend.reportResult(*_)
+    }
+
+    def "Worker with executor should run tasks concurrently and drain them on join"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newFixedThreadPool(4))
+        WorkerTestTask.latch = new CountDownLatch(4)
+
+        when:
+        (1..4).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    props("id$it", "com.geneea.celery.WorkerTestTask#waitForOthers"), body("[]"))
+        }
+        worker.join()
+
+        then:
+        4 * backend.reportResult(_, "client", _, true)
+        (1..4).each { 1 * channel.basicAck(it, false) }
+    }
+
+    def "Worker should cap the number of tasks running at once"() {
+        def worker = new CeleryWorker(channel, backend, Executors.newCachedThreadPool(), 2)
+        WorkerTestTask.maxRunning.set(0)
+
+        when:
+        (1..6).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    props("id$it", "com.geneea.celery.WorkerTestTask#sleepAndCount"), body("[]"))
+        }
+        worker.join()
+
+        then:
+        6 * channel.basicAck(_, false)
+        WorkerTestTask.maxRunning.get() == 2
+    }
+
+    @Requires({ VirtualThreads.isSupported() })
+    def "Worker should run tasks in virtual threads"() {
+        def worker = new CeleryWorker(channel, backend, VirtualThreads.newExecutor(), 100)
+        WorkerTestTask.latch = new CountDownLatch(50)
+
+        when:
+        (1..50).each {
+            worker.handleDelivery("tag", new Envelope(it, false, "", "celery"),
+                    props("id$it", "com.geneea.celery.WorkerTestTask#waitForOthers"), body("[]"))
+        }
+        worker.join()
+
+        then:
+        50 * backend.reportResult(_, "client", _, true)
+    }
+}
+
+class WorkerTestTask {
+    static CountDownLatch latch
+    static AtomicInteger running = new AtomicInteger()
+    static AtomicInteger maxRunning = new AtomicInteger()
+
+    int sum(int a, int b) {
+        return a + b
+    }
+
+    Object same(Object value) {
+        return value
+    }
+
+    String describe(Map<String, List<Integer>> values) {
+        return values.collect { k, v -> "$k=${v.sum()}" }.join(",")
+    }
+
+    Iterator<Integer> countTo(int n) {
+        return (0..<n).iterator()
+    }
+
+    Stream<Integer> streamTo(int n) {
+        return IntStream.range(0, n).boxed()
+    }
+
+    Iterator<Integer> slowCountTo(int n) {
+        return new Iterator<Integer>() {
+            int i = 0
+
+            boolean hasNext() {
+                return i < n
+            }
+
+            Integer next() {
+                Thread.sleep(50)
+                return i++
+            }
+        }
+    }
+
+    Iterator<Integer> failAfter(int n) {
+        def i = 0
+        return [hasNext: { true }, next: {
+            if (i == n) {
+                throw new IllegalStateException("Out of items")
+            }
+            return i++
+        }] as Iterator<Integer>
+    }
+
+    Iterator<Integer> throwAfter(int n, String error) {
+        return new Iterator<Integer>() {
+            int i = 0
+
+            boolean hasNext() {
+                return true
+            }
+
+            // Groovy throws checked exceptions without declaring them, as a sneaky Java iterator would.
+            Integer next() {
+                if (i == n) {
+                    throw error == "IOException" ? new IOException("Out of items") : new AssertionError("Out of items")
+                }
+                return i++
+            }
+        }
+    }
+
+    void sleepAndCount() {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), { a, b -> Math.max(a, b) } as IntBinaryOperator)
+        sleep(50)
+        running.decrementAndGet()
+    }
+
+    boolean sleepUnlessInterrupted() {
+        try {
+            Thread.sleep(5000)
+            return false
+        } catch (InterruptedException ignored) {
+            return true
+        }
+    }
+
+    void hang() {
+        Uninterruptibles.awaitUninterruptibly(latch)
+    }
+
+    boolean waitForOthers() {
+        latch.countDown()
+        return latch.await(5, java.util.concurrent.TimeUnit.SECONDS)
+    }
+}
+
+class WorkerTestTaskLoader implements CeleryTaskLoader {
+    @Override
+    Object loadTask() {
+        return new WorkerTestTask()
+    }
+}
@@ -2,12 +2,22 @@ package com.geneea.celery
 
 import com.google.common.util.concurrent.SettableFuture
 import groovy.json.JsonSlurper
+import com.geneea.celery.serializers.CelerySerializers
 import com.geneea.celery.spi.Backend
 import com.geneea.celery.spi.Broker
 import com.geneea.celery.spi.Message
+import com.geneea.celery.spi.Metrics
+import com.geneea.celery.util.Compression
+import com.geneea.celery.util.Timestamps
 import spock.genesis.Gen
 import spock.lang.Specification
 
+import java.nio.file.Files
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
 class ClientTest extends Specification {
 
     def Celery client
@@ -17,6 +27,7 @@ class ClientTest extends Specification {
 
     def setup() {
         MockBrokerFactory.queuesDeclared = []
+        MockBrokerFactory.unsupported = []
 
         message = Mock(Message.class)
         headers = Mock(Message.Headers.class)
@@ -43,6 +54,110 @@ class ClientTest extends Specification {
         1 * message.send("celery")
     }
 
+    def "Client should send the protocol v2 body"() {
+        when:
+        client.submit(TestingTask.class, "doWork", [null, [1, 2], "x"] as Object[])
+
+        then:
+        1 * message.setBody({
+            new JsonSlurper().parse(it, "utf-8") == [
+                    [null, [1, 2], "x"],
+                    [:],
+                    [callbacks: null, chain: null, chord: null, errbacks: null]] }
+        )
+    }
+
+    def "Client should compress the bodies above the threshold"() {
+        client = Celery.builder().brokerUri("mock://anything").compression("zlib").compressionThreshold(200).build()
+        def byte[] body
+
+        when:
+        client.submit(TestingTask.class, "doWork", [text] as Object[])
+
+        then:
+        1 * message.setBody({ body = it })
+        (compressed ? 1 : 0) * headers.setCompression("application/x-gzip")
+        new JsonSlurper().parse(compressed ? Compression.forName("zlib").decompress(body) : body, "utf-8")[0] == [text]
+
+        where:
+        text        | compressed
+        "short"     | false
+        "long" * 50 | true
+    }
+
+    def "Client should keep the bodies above the threshold in the blob store"() {
+        def directory = Files.createTempDirectory("celery-blobs")
+        client = Celery.builder().brokerUri("mock://anything")
+                .blobStoreUri(directory.toUri().toString()).blobThreshold(200).build()
+        def String key
+        def byte[] body
+
+        when:
+        client.submit(TestingTask.class, "doWork", [text] as Object[])
+
+        then:
+        (stored ? 1 : 0) * headers.setClaimCheck({ key = it })
+        1 * message.setBody({ body = it; true })
+        def json = stored ? Files.readAllBytes(directory.resolve(key)) : body
+        new JsonSlurper().parse(json, "utf-8")[0] == [text]
+        stored == (body.length == 0)
+
+        cleanup:
+        directory.toFile().deleteDir()
+
+        where:
+        text        | stored
+        "short"     | false
+        "long" * 50 | true
+    }
+
+    def "Client should serialize a task with the serializer chosen for it"() {
+        client = Celery.builder().brokerUri("mock://anything").serializer(defaultSerializer).build()
+        def options = SubmitOptions.builder().serializer(taskSerializer).build()
+        def byte[] body
+
+        when:
+        client.submit(TestingTask.class.name + "#doWork", [0.5, "x"] as Object[], options)
+
+        then:
+        1 * message.setContentType(contentType)
+        1 * message.setContentEncoding(contentEncoding)
+        1 * message.setBody({ body = it })
+        CelerySerializers.forContentType(contentType).mapper.readValue(body, List)[0] == [0.5, "x"]
+
+        where:
+        defaultSerializer | taskSerializer | contentType             | contentEncoding
+        null              | "msgpack"      | "application/x-msgpack" | "binary"
+        "msgpack"         | null           | "application/x-msgpack" | "binary"
+        "msgpack"         | "json"         | "application/json"      | "utf-8"
+    }
+
+    def "Client should refuse an unknown serializer"() {
+        when:
+        SubmitOptions.builder().serializer("pickle").build()
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "Client should stamp the messages and record the submissions"() {
+        def metrics = Mock(Metrics.class)
+        client = Celery.builder().brokerUri("mock://anything").metrics(metrics).build()
+        def before = System.currentTimeMillis()
+
+        when:
+        client.submit(TestingTask.class, "doWork", [] as Object[])
+
+        then:
+        1 * headers.setSentAt({ it >= before && it <= System.currentTimeMillis() })
+
+        then:
+        1 * message.send("celery")
+
+        then:
+        1 * metrics.submitted(1, { it > 0 })
+    }
+
     def "Client should set task properties"() {
         when:
         client.submit(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
@@ -74,6 +189,142 @@ class ClientTest extends Specification {
         queue << Gen.these("celery").then(Gen.string(80)).take(5)
     }
 
+    def "Client should declare the shards and send the tasks without a key to them in turn"() {
+        client = Celery.builder().brokerUri("mock://broker").shards(4).build()
+
+        when:
+        (1..8).each { client.submit(TestingTask.class, "doWork", [it] as Object[]) }
+
+        then:
+        MockBrokerFactory.queuesDeclared == ["celery.0", "celery.1", "celery.2", "celery.3"]
+        (0..3).each { 2 * message.send("celery.$it") }
+    }
+
+    def "Tasks with the same shard key should go to the same shard, in a batch as well"() {
+        client = Celery.builder().brokerUri("mock://broker").shards(4).build()
+        def options = SubmitOptions.builder().shardKey("customer-42").build()
+        def queues = []
+
+        when:
+        (1..3).each { client.submit("tasks.add", [it] as Object[], options) }
+        client.batch()
+                .add("tasks.add", [4] as Object[], options)
+                .add("tasks.add", [5] as Object[], options)
+                .submit()
+
+        then:
+        5 * message.send({ queues << it })
+        (queues as Set).size() == 1
+        queues[0].startsWith("celery.")
+    }
+
+    def "Client should set the priority of the task"() {
+        when:
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder().priority(7).build())
+        client.submit("tasks.add", [1, 2] as Object[])
+
+        then:
+        1 * message.setPriority(7)
+    }
+
+    def "Client should set the ETA of a delayed task"() {
+        def eta = Instant.parse("2030-01-02T03:04:05.678Z")
+
+        when:
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder().eta(eta).build())
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder().countdown(Duration.ofHours(1)).build())
+
+        then:
+        1 * headers.setEta("2030-01-02T03:04:05.678000+00:00")
+        1 * headers.setEta({ Math.abs(Duration.between(Instant.now(), Timestamps.parse(it)).seconds - 3600) < 5 })
+    }
+
+    def "Client should set the expiry of a task"() {
+        def expires = Instant.parse("2030-01-02T03:04:05Z")
+
+        when:
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder().expires(expires).build())
+        client.submit("tasks.add", [1, 2] as Object[])
+
+        then:
+        1 * headers.setExpires("2030-01-02T03:04:05.000000+00:00")
+    }
+
+    def "Client should set the time limits of a task"() {
+        when:
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder()
+                .softTimeLimit(Duration.ofMillis(1500)).timeLimit(Duration.ofSeconds(3)).build())
+        client.submit("tasks.add", [1, 2] as Object[], SubmitOptions.builder().timeLimit(Duration.ofSeconds(3)).build())
+        client.submit("tasks.add", [1, 2] as Object[])
+
+        then:
+        1 * headers.setTimeLimit(1.5d, 3d)
+        1 * headers.setTimeLimit(null, 3d)
+    }
+
+    def "Client should refuse the task options the broker doesn't support"() {
+        MockBrokerFactory.unsupported = [feature]
+
+        when:
+        client.submit("tasks.add", [1, 2] as Object[], options)
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "The broker doesn't support $name"
+        0 * message.send(_)
+        0 * message.sendAsync(_)
+
+        where:
+        feature                   | name         | options
+        Broker.Feature.ETA        | "eta"        | SubmitOptions.builder().countdown(Duration.ofHours(1)).build()
+        Broker.Feature.EXPIRES    | "expires"    | SubmitOptions.builder().expires(Instant.now()).build()
+        Broker.Feature.TIME_LIMIT | "time limit" | SubmitOptions.builder().timeLimit(Duration.ofSeconds(3)).build()
+    }
+
+    def "Client should refuse to compress or keep the bodies in a blob store if the broker doesn't support it"() {
+        MockBrokerFactory.unsupported = [feature]
+        client = builder(Celery.builder().brokerUri("mock://anything")).build()
+
+        when:
+        client.submit("tasks.add", [1, 2] as Object[])
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "The broker doesn't support $name"
+
+        where:
+        feature                    | name          | builder
+        Broker.Feature.COMPRESSION | "compression" | { it.compression("zlib") }
+        Broker.Feature.CLAIM_CHECK | "claim check" | { it.blobStoreUri(Files.createTempDirectory("b").toUri().toString()) }
+    }
+
+    def "Time limits should be positive"() {
+        when:
+        SubmitOptions.builder().timeLimit(Duration.ZERO).build()
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "Either the ETA or the countdown should be given"() {
+        when:
+        SubmitOptions.builder().eta(Instant.now()).countdown(Duration.ofSeconds(1)).build()
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "Priority out of range should be refused"() {
+        when:
+        SubmitOptions.builder().priority(priority).build()
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        priority << [-1, 256]
+    }
+
     def "Client shouldn't set reply-to if it doesn't have backend"() {
         when:
         client.submit(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
@@ -97,6 +348,19 @@ class ClientTest extends Specification {
         1 * message.headers.setTaskName("com.geneea.celery.TestingTask#doWork")
     }
 
+    def "Client should send a batch of tasks in one go"() {
+        def results
+
+        when:
+        results = client.submitAll("tasks.add", [[1, 2], [3, 4], [5, 6]].collect { it as Object[] })
+
+        then:
+        3 * message.send("celery")
+        3 * message.headers.setTaskName("tasks.add")
+        results.size() == 3
+        results.every { it.isDone() }
+    }
+
     def "Client should set task name"() {
         when:
         client.submit(taskName, [] as Object[])
@@ -187,6 +451,66 @@ class ClientWithBackendTest extends Specification {
         resultVal << Gen.string.take(1)
     }
 
+    def "Client should record the round-trip once the result arrives"() {
+        def metrics = Mock(Metrics.class)
+        client = Celery.builder().brokerUri("mock://x").backendUri("mock://something").metrics(metrics).build()
+        def result = SettableFuture.create()
+        resultsProvider.getResult(_) >> result
+
+        when:
+        client.submit(TestingTask.class, "doWork", [] as Object[])
+
+        then:
+        0 * metrics.resultReceived(_)
+
+        when:
+        result.set(42)
+
+        then:
+        1 * metrics.resultReceived({ it > 0 })
+    }
+
+    def "Result should complete its CompletableFuture and callbacks without a waiting thread"() {
+        def result = SettableFuture.create()
+        resultsProvider.getResult(_) >> result
+        def callbackValue
+
+        when:
+        def returned = client.submit(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
+        def completable = returned.toCompletableFuture()
+        returned.whenComplete({ value, failure -> callbackValue = value })
+
+        then:
+        !completable.done
+        returned.toCompletableFuture().is(completable)
+
+        when:
+        returned.get(10, TimeUnit.MILLISECONDS)
+
+        then:
+        thrown(TimeoutException)
+
+        when:
+        result.set("done")
+
+        then:
+        completable.get() == "done"
+        callbackValue == "done"
+        returned.get(10, TimeUnit.MILLISECONDS) == "done"
+    }
+
+    def "Cancelling the CompletableFuture should stop waiting for the result"() {
+        def result = SettableFuture.create()
+        resultsProvider.getResult(_) >> result
+
+        when:
+        client.submit(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
+                .toCompletableFuture().cancel(false)
+
+        then:
+        result.isCancelled()
+    }
+
     def "Client should ask the backend for correct task ID"() {
         def taskId
         when:
@@ -200,6 +524,21 @@ class ClientWithBackendTest extends Specification {
         1 * resultsProvider.getResult({ it == taskId })
     }
 
+    def "Client should wait for the result before sending the task and stop waiting if sending fails"() {
+        def result = SettableFuture.create()
+
+        when:
+        client.submit(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
+
+        then:
+        1 * resultsProvider.getResult(_) >> result
+
+        then:
+        1 * message.send(_) >> { throw new IOException("Connection lost") }
+        thrown(IOException)
+        result.isCancelled()
+    }
+
     def "Client should declare queue before sending its message"() {
         when:
         client = Celery.builder().brokerUri("mock://x").queue(queue).build()
@@ -0,0 +1,132 @@
+package com.geneea.celery
+
+import com.geneea.celery.brokers.memory.MemoryBroker
+import com.geneea.celery.brokers.CeleryBrokers
+import com.geneea.celery.spi.Metrics
+import spock.lang.Specification
+import spock.lang.Timeout
+
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+@Timeout(10)
+class MemoryWorkerTest extends Specification {
+
+    def uri = "memory://" + UUID.randomUUID()
+    def worker = MemoryWorker.builder().brokerUri(uri).concurrency(2).build()
+    def client = Celery.builder().brokerUri(uri).backendUri(uri).build()
+
+    def cleanup() {
+        worker.close()
+    }
+
+    def "Worker should run the task and return its result"() {
+        expect:
+        client.submit("com.geneea.celery.WorkerTestTask#sum", [1, 2] as Object[]).get() == 3
+    }
+
+    def "Arguments and results should be passed without serialization"() {
+        def arg = new Object()
+
+        expect:
+        client.submit("com.geneea.celery.WorkerTestTask#same", [arg] as Object[]).get().is(arg)
+    }
+
+    def "Arguments of other types should be converted"() {
+        expect:
+        client.submit("com.geneea.celery.WorkerTestTask#describe", [[a: [1L, 2L]]] as Object[]).get() == "a=3"
+        client.submit("com.geneea.celery.WorkerTestTask#sum", ["1", 2L] as Object[]).get() == 3
+    }
+
+    def "Errors should be reported to the client"() {
+        when:
+        client.submit(task, args as Object[]).get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+
+        where:
+        task                                   | args
+        "com.geneea.celery.WorkerTestTask#nope" | []
+        "com.geneea.celery.WorkerTestTask#sum"  | [[x: 1], 2]
+    }
+
+    def "Expired tasks should be reported as revoked"() {
+        when:
+        client.submit("com.geneea.celery.WorkerTestTask#sum", [1, 2] as Object[],
+                SubmitOptions.builder().expires(Instant.now().minusSeconds(1)).build()).get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message == "TaskRevokedError(expired)"
+
+        expect:
+        client.submit("com.geneea.celery.WorkerTestTask#sum", [1, 2] as Object[],
+                SubmitOptions.builder().expiresAfter(Duration.ofMinutes(1)).build()).get() == 3
+    }
+
+    def "A task over its time limit should fail right away"() {
+        WorkerTestTask.latch = new CountDownLatch(1)
+
+        when:
+        client.submit("com.geneea.celery.WorkerTestTask#hang", [] as Object[],
+                SubmitOptions.builder().timeLimit(Duration.ofMillis(100)).build()).get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause.message.startsWith("TimeLimitExceeded(")
+
+        cleanup:
+        WorkerTestTask.latch.countDown()
+    }
+
+    def "Many results should come back in any order"() {
+        when:
+        def results = client.submitAll("com.geneea.celery.WorkerTestTask#sum", (1..1000).collect { [it, 1] as Object[] })
+
+        then:
+        results.withIndex().every { r, i -> r.get() == i + 2 }
+    }
+
+    def "Worker should report its in-flight tasks to the metrics"() {
+        def metrics = Mock(Metrics)
+        def inFlight = null
+
+        when:
+        def instrumented = MemoryWorker.builder().brokerUri(uri).metrics(metrics).build()
+
+        then:
+        1 * metrics.workerStarted(_, { it.getAsInt() == 0 }) >> { inFlight = it[0] }
+        inFlight.getAsInt() == 0
+
+        when:
+        WorkerTestTask.latch = new CountDownLatch(1)
+        worker.close()
+        client.submit("com.geneea.celery.WorkerTestTask#hang", [] as Object[])
+        Thread.sleep(200)
+
+        then:
+        inFlight.getAsInt() == 1
+
+        cleanup:
+        WorkerTestTask.latch.countDown()
+        instrumented?.close()
+    }
+
+    def "Worker should leave the queue alone once closed"() {
+        def broker = (MemoryBroker) CeleryBrokers.createBroker(uri, null)
+
+        when:
+        worker.close()
+        client.submit("com.geneea.celery.WorkerTestTask#sum", [1, 2] as Object[])
+
+        then:
+        broker.size("celery") == 1
+        broker.take("celery").args == [1, 2] as Object[]
+    }
+}
@@ -11,6 +11,7 @@ import java.util.concurrent.TimeoutException
 
 public class MockBrokerFactory implements BrokerFactory {
     static List<String> queuesDeclared = []
+    static Set<Broker.Feature> unsupported = []
 
     /**
      * Workaround for the fact that Spock mocks can be created only from the Specification class.
@@ -31,6 +32,11 @@ public class MockBrokerFactory implements BrokerFactory {
                 queuesDeclared.add(name)
             }
 
+            @Override
+            boolean supports(Broker.Feature feature) {
+                return !unsupported.contains(feature)
+            }
+
             @Override
             Message newMessage() {
                 def message = messages[messageNum % messages.size()]
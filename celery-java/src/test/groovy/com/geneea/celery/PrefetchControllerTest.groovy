@@ -0,0 +1,148 @@
+package com.geneea.celery
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class PrefetchControllerTest extends Specification {
+
+    static final long MS = TimeUnit.MILLISECONDS.toNanos(1)
+
+    def start = System.nanoTime()
+
+    def simulate(PrefetchController controller, long serviceNanos, long refillNanos, int tasks) {
+        def t = start
+        // The broker fills the window, then each ack lets it send one more delivery.
+        controller.prefetch.times { controller.deliveryReceived(t, false) }
+        for (int i = 0; i < tasks; i++) {
+            t += serviceNanos
+            controller.taskCompleted(serviceNanos, t)
+            controller.acked(t)
+            t += refillNanos
+            controller.deliveryReceived(t, true)
+        }
+        return t
+    }
+
+    def "Prefetch should grow for short tasks"() {
+        given:
+        def controller = new PrefetchController(4, 4, 1000)
+
+        when:
+        def t = simulate(controller, MS / 10 as long, 2 * MS, 50)
+        def prefetch = controller.taskCompleted(MS / 10 as long, t + 2000 * MS)
+
+        then:
+        prefetch in 80..84
+        controller.prefetch == prefetch
+    }
+
+    def "Prefetch should stay at the minimum for long tasks"() {
+        given:
+        def controller = new PrefetchController(4, 4, 1000)
+
+        when:
+        def t = simulate(controller, 1000 * MS, 2 * MS, 10)
+
+        then:
+        controller.taskCompleted(1000 * MS, t + 2000 * MS) == -1
+        controller.prefetch == 4
+    }
+
+    def "Prefetch should respect the upper bound"() {
+        given:
+        def controller = new PrefetchController(4, 4, 20)
+
+        when:
+        def t = simulate(controller, MS / 10 as long, 2 * MS, 50)
+
+        then:
+        controller.taskCompleted(MS / 10 as long, t + 2000 * MS) == 20
+    }
+
+    def "Prefetch should not change more often than once a second"() {
+        given:
+        def controller = new PrefetchController(4, 4, 1000)
+        simulate(controller, MS / 10 as long, 2 * MS, 1)
+
+        expect:
+        controller.taskCompleted(MS, start + 100 * MS) == -1
+        controller.prefetch == 4
+    }
+
+    def "Only the first delivery after an ack freeing a full window should be a refill"() {
+        given:
+        def controller = new PrefetchController(1, 2, 100)
+
+        when: "the window isn't full, the broker doesn't wait for the ack"
+        controller.deliveryReceived(start, true)
+        controller.acked(start + MS)
+        controller.deliveryReceived(start + 5 * MS, true)
+
+        then:
+        controller.refillLatencyNanos == 0
+
+        when:
+        controller.deliveryReceived(start + 6 * MS, true)
+        controller.acked(start + 10 * MS)
+        controller.deliveryReceived(start + 20 * MS, true)
+        controller.deliveryReceived(start + 30 * MS, true)
+
+        then:
+        Math.abs(controller.refillLatencyNanos - 0.2 * 10 * MS) < 1
+    }
+
+    def "The held deliveries should widen the window"() {
+        given:
+        def controller = new PrefetchController(1, 2, 100)
+        controller.deliveryReceived(start, true)
+        controller.heldChanged(1)
+        controller.deliveryReceived(start + MS, true)
+
+        when: "one of the two unacknowledged deliveries is held, the window of 2 + 1 isn't full"
+        controller.acked(start + 2 * MS)
+        controller.deliveryReceived(start + 10 * MS, true)
+
+        then:
+        controller.refillLatencyNanos == 0
+
+        when: "once it's due, the two unacknowledged deliveries fill the window"
+        controller.heldChanged(-1)
+        controller.acked(start + 20 * MS)
+        controller.deliveryReceived(start + 30 * MS, true)
+
+        then:
+        Math.abs(controller.refillLatencyNanos - 0.2 * 10 * MS) < 1
+    }
+
+    def "A buffered delivery or a dry queue should not count as a refill"() {
+        given:
+        def controller = new PrefetchController(1, 1, 100)
+        controller.deliveryReceived(start, true)
+
+        when:
+        controller.acked(start + MS)
+        controller.deliveryReceived(start + MS + gap, idle)
+
+        then:
+        controller.refillLatencyNanos == 0
+
+        where:
+        idle  | gap
+        false | 2 * MS
+        true  | 5000 * MS
+    }
+
+    def "Controller should refuse invalid bounds"() {
+        when:
+        new PrefetchController(4, min, max)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        min | max
+        0   | 10
+        10  | 5
+    }
+}
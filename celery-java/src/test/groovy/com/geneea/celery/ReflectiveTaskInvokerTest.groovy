@@ -0,0 +1,55 @@
+package com.geneea.celery
+
+import spock.lang.Specification
+
+import java.lang.reflect.InvocationTargetException
+
+class ReflectiveTaskInvokerTest extends Specification {
+
+    def invoker = new ReflectiveTaskInvoker(new ReflectiveTask())
+
+    def "Invoker should call the method by name"() {
+        expect:
+        invoker.invoke("sum", [1, 2] as Object[]) == 3
+        invoker.getParameterTypes("sum") == [int, int] as java.lang.reflect.Type[]
+    }
+
+    def "Invoker should wrap exceptions thrown by the task"() {
+        when:
+        invoker.invoke("fail", [] as Object[])
+
+        then:
+        def e = thrown(InvocationTargetException)
+        e.cause instanceof IllegalStateException
+    }
+
+    def "Invoker should refuse unknown and overloaded methods"() {
+        expect:
+        invoker.getParameterTypes(method) == null
+
+        when:
+        invoker.invoke(method, [1] as Object[])
+
+        then:
+        thrown(DispatchException)
+
+        where:
+        method << ["unknown", "overloaded"]
+    }
+}
+
+class ReflectiveTask {
+    int sum(int a, int b) {
+        return a + b
+    }
+
+    void fail() {
+        throw new IllegalStateException()
+    }
+
+    void overloaded(int a) {
+    }
+
+    void overloaded(String a) {
+    }
+}
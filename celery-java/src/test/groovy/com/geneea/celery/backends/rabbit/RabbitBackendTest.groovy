@@ -1,13 +1,22 @@
 package com.geneea.celery.backends.rabbit
 
+import com.google.common.util.concurrent.UncheckedExecutionException
 import com.rabbitmq.client.BasicProperties
 import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Envelope
 import groovy.json.JsonSlurper
 import com.geneea.celery.WorkerException
+import com.geneea.celery.blobstores.file.FileBlobStore
+import com.geneea.celery.serializers.CelerySerializers
+import com.geneea.celery.util.Compression
 import spock.genesis.Gen
 import spock.lang.Specification
 
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 
 class RabbitBackendTest extends Specification {
@@ -23,7 +32,8 @@ class RabbitBackendTest extends Specification {
 
         then:
         1 * channel.queueDeclare(clientId, false, false, true, ["x-expires": 24 * 3600 * 1000])
-        1 * channel.basicConsume(clientId, { consumerArg = it })
+        1 * channel.basicQos(RabbitResultConsumer.PREFETCH, false)
+        1 * channel.basicConsume(clientId, false, { consumerArg = it })
         resultsProvider == consumerArg
 
         where:
@@ -55,6 +65,21 @@ class RabbitBackendTest extends Specification {
         data << [["x"], ["a": 1, "b": ["x"]], 12]
     }
 
+    def "Backend should report a revoked task"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel)
+        def result
+
+        when:
+        backend.reportRevoked("id1", "client", "id1", "expired")
+
+        then:
+        1 * channel.basicPublish("", "client", _, { result = new JsonSlurper().parse(it, "utf-8") })
+        result["status"] == "REVOKED"
+        result["task_id"] == "id1"
+        result["result"] == [exc_type: "TaskRevokedError", exc_message: "expired"]
+    }
+
     def "Backend should report exception"() {
         def Channel channel = Mock(Channel.class)
         def backend = new RabbitBackend(channel)
@@ -80,17 +105,191 @@ class RabbitBackendTest extends Specification {
         queue << Gen.string(20).take(3)
         data << [new IOException("Xdan"), new AssertionError("Bada"), new RuntimeException()]
     }
+
+    def "Backend should compress the results above the threshold for the consumer to read them"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 1, 0, Compression.forName("zlib"), 100)
+        def consumer = new RabbitResultConsumer(channel)
+        def result = consumer.getResult("id1")
+        def BasicProperties props
+        def byte[] body
+
+        when:
+        backend.reportResult("id1", "client", "id1", data)
+
+        then:
+        1 * channel.basicPublish("", "client", { props = it }, { body = it })
+        (props.headers?.compression?.toString() == "application/x-gzip") == compressed
+        props.correlationId == "id1"
+
+        when:
+        consumer.handleDelivery(null, RabbitResultConsumerTest.ENVELOPE, props, body)
+
+        then:
+        result.get() == data
+
+        where:
+        data        | compressed
+        "short"     | false
+        "long" * 50 | true
+    }
+
+    def "Backend should keep the large results in the blob store for the consumer to read them"() {
+        def Channel channel = Mock(Channel.class)
+        def directory = Files.createTempDirectory("celery-blobs")
+        def store = new FileBlobStore(directory)
+        def backend = RabbitBackend.builder().channel(channel).blobStore(store).blobThreshold(100).build()
+        def consumer = new RabbitResultConsumer(channel, store)
+        def result = consumer.getResult("id1")
+        def BasicProperties props
+        def byte[] body
+
+        when:
+        backend.reportResult("id1", "client", "id1", data)
+
+        then:
+        1 * channel.basicPublish("", "client", { props = it }, { body = it; true })
+        (props.headers?.claim_check != null) == stored
+        (body.length == 0) == stored
+
+        when:
+        consumer.handleDelivery(null, RabbitResultConsumerTest.ENVELOPE, props, body)
+
+        then:
+        result.get() == data
+        directory.toFile().list().length == 0
+
+        cleanup:
+        directory.toFile().deleteDir()
+
+        where:
+        data        | stored
+        "short"     | false
+        "long" * 50 | true
+    }
+
+    def "Backend should serialize the results for the consumer to read them"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 1, 0, CelerySerializers.forName("msgpack"), null, 0)
+        def consumer = new RabbitResultConsumer(channel)
+        def result = consumer.getResult("id1")
+        def BasicProperties props
+        def byte[] body
+
+        when:
+        backend.reportResult("id1", "client", "id1", [1, "two", [3: 4.5d]])
+
+        then:
+        1 * channel.basicPublish("", "client", { props = it }, { body = it })
+        props.contentType == "application/x-msgpack"
+        props.contentEncoding == "binary"
+
+        when:
+        consumer.handleDelivery(null, RabbitResultConsumerTest.ENVELOPE, props, body)
+
+        then:
+        result.get() == [1, "two", ["3": 4.5d]]
+    }
+
+    def "Batching backend should publish the results together once the batch is full"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 3, 60000)
+        def published = new CountDownLatch(3)
+        def props = []
+
+        when:
+        backend.reportResult("id1", "client", "id1", 1)
+        backend.reportException("id2", "client", "id2", new IOException("Xdan"))
+        backend.reportResult("id3", "other", null, 3)
+        published.await(5, TimeUnit.SECONDS)
+
+        then:
+        2 * channel.basicPublish("", "client", { props << it }, _) >> { published.countDown() }
+        1 * channel.basicPublish("", "other", { props << it }, _) >> { published.countDown() }
+        props*.correlationId == ["id1", "id2", null]
+        props.every { it.contentType == "application/json" && it.deliveryMode == 1 }
+    }
+
+    def "Batching backend should publish a lone result after the flush latency"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 100, 20)
+        def published = new CountDownLatch(1)
+        def result
+
+        when:
+        backend.reportResult("id1", "client", "id1", ["x"])
+        published.await(5, TimeUnit.SECONDS)
+
+        then:
+        1 * channel.basicPublish("", "client", _, { result = new JsonSlurper().parse(it, "utf-8") }) >> {
+            published.countDown()
+        }
+        result["task_id"] == "id1"
+        result["result"] == ["x"]
+    }
+
+    def "Batching backend should complete the reported results of a thread once they are published"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 100, 60000)
+        def first
+        def second
+
+        when:
+        backend.reportResult("id1", "client", "id1", 1)
+        backend.reportResult("id2", "client", "id2", 2)
+        first = backend.reported()
+        backend.reportResult("id3", "client", "id3", 3)
+        second = backend.reported()
+
+        then:
+        !first.done
+        !second.done
+        backend.reported().done
+
+        when:
+        backend.close()
+
+        then:
+        2 * channel.basicPublish("", "client", _, _)
+        1 * channel.basicPublish("", "client", _, _) >> { throw new IOException("channel closed") }
+        first.get(5, TimeUnit.SECONDS) == null
+
+        when:
+        second.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+    }
+
+    def "Batching backend should publish the pending results on close"() {
+        def Channel channel = Mock(Channel.class)
+        def backend = new RabbitBackend(channel, 100, 60000)
+
+        when:
+        backend.reportResult("id1", "client", "id1", 1)
+        backend.reportResult("id2", "client", "id2", 2)
+        backend.close()
+
+        then:
+        2 * channel.basicPublish("", "client", _, _)
+
+        then:
+        1 * channel.abort()
+    }
 }
 
 class RabbitResultConsumerTest extends Specification {
 
+    static final Envelope ENVELOPE = new Envelope(1, false, "", "client")
+
     def "Consumer should report result of a task"() {
         def Channel channel = Mock(Channel.class)
         def consumer = new RabbitResultConsumer(channel)
         def result = consumer.getResult(taskId)
 
         when:
-        consumer.handleDelivery(null, null, null, body.bytes)
+        consumer.handleDelivery(null, ENVELOPE, null, body.bytes)
 
         then:
         result.isDone() == done
@@ -105,6 +304,123 @@ class RabbitResultConsumerTest extends Specification {
         '{"children":[], "status": "SUCCESS", "result": 1, "traceback": null, "task_id": "1ac"}'    | null           | "1aa"       | false
     }
 
+    def "Consumer should hand the streamed result over as an iterator"() {
+        def Channel channel = Mock(Channel.class)
+        def consumer = new RabbitResultConsumer(channel)
+        def result = consumer.getResult("1aa")
+
+        when:
+        consumer.handleDelivery(null, ENVELOPE, null, chunk("1aa", "[1, 2]"))
+
+        then:
+        result.isDone()
+
+        when:
+        consumer.handleDelivery(null, ENVELOPE, null, chunk("1aa", "[3]"))
+        consumer.handleDelivery(null, ENVELOPE, null,
+                '{"status": "SUCCESS", "result": 3, "task_id": "1aa"}'.bytes)
+
+        then:
+        result.get().collect() == [1, 2, 3]
+    }
+
+    def "Streamed result should end with the error of the task"() {
+        def Channel channel = Mock(Channel.class)
+        def consumer = new RabbitResultConsumer(channel)
+        def result = consumer.getResult("1aa")
+        def items = []
+
+        when:
+        consumer.handleDelivery(null, ENVELOPE, null, chunk("1aa", "[1, 2]"))
+        consumer.handleDelivery(null, ENVELOPE, null,
+                '{"status": "FAILURE", "result": {"exc_type": "ExType", "exc_message": "Bad"}, "task_id": "1aa"}'.bytes)
+        result.get().each { items << it }
+
+        then:
+        def e = thrown(UncheckedExecutionException)
+        e.cause instanceof WorkerException
+        items == [1, 2]
+    }
+
+    def "Stream the client doesn't keep up with should leave the rest in the broker without blocking the consumer"() {
+        def Channel channel = Mock(Channel.class)
+        def consumer = new RabbitResultConsumer(channel, null, 2, 60000)
+        def result = consumer.getResult("1aa")
+
+        when:
+        (1..4).each { consumer.handleDelivery(null, envelope(it), null, chunk("1aa", "[$it]")) }
+        consumer.handleDelivery(null, envelope(5), null,
+                '{"status": "SUCCESS", "result": 4, "task_id": "1aa"}'.bytes)
+
+        then: "the chunks beyond the buffer wait for the client"
+        1 * channel.basicAck(1, false)
+        1 * channel.basicAck(2, false)
+        1 * channel.basicAck(5, false)
+        0 * channel.basicAck(*_)
+
+        when:
+        def items = result.get().collect()
+
+        then:
+        items == [1, 2, 3, 4]
+        1 * channel.basicAck(3, false)
+        1 * channel.basicAck(4, false)
+    }
+
+    def "Stream the client stops reading should let the chunks held back go"() {
+        def Channel channel = Mock(Channel.class)
+        def consumer = new RabbitResultConsumer(channel, null, 1, 100)
+        consumer.getResult("1aa")
+
+        when:
+        (1..2).each { consumer.handleDelivery(null, envelope(it), null, chunk("1aa", "[$it]")) }
+        consumer.handleDelivery(null, envelope(3), null,
+                '{"status": "SUCCESS", "result": 2, "task_id": "1aa"}'.bytes)
+
+        then:
+        1 * channel.basicAck(1, false)
+        1 * channel.basicAck(3, false)
+        0 * channel.basicAck(*_)
+
+        when:
+        sleep(2500)
+
+        then:
+        1 * channel.basicAck(2, false)
+    }
+
+    def "Stream should fail once its next chunk doesn't come for too long"() {
+        def Channel channel = Mock(Channel.class)
+        def consumer = new RabbitResultConsumer(channel, null, 16, 100)
+        def result = consumer.getResult("1aa")
+        def items = []
+
+        when:
+        consumer.handleDelivery(null, ENVELOPE, null, chunk("1aa", "[1, 2]"))
+        result.get().each { items << it }
+
+        then:
+        def e = thrown(UncheckedExecutionException)
+        e.cause instanceof TimeoutException
+        items == [1, 2]
+
+        when: "the rest coming late should be dropped"
+        consumer.handleDelivery(null, ENVELOPE, null, chunk("1aa", "[3]"))
+        consumer.handleDelivery(null, ENVELOPE, null,
+                '{"status": "SUCCESS", "result": 3, "task_id": "1aa"}'.bytes)
+
+        then:
+        noExceptionThrown()
+    }
+
+    static Envelope envelope(long tag) {
+        return new Envelope(tag, false, "", "client")
+    }
+
+    static byte[] chunk(String taskId, String items) {
+        return ('{"status": "CHUNK", "result": ' + items + ', "task_id": "' + taskId + '"}').bytes
+    }
+
     def "Consumer should report a received error"() {
         def Channel channel = Mock(Channel.class)
         def consumer = new RabbitResultConsumer(channel)
@@ -112,7 +428,7 @@ class RabbitResultConsumerTest extends Specification {
         def ex
 
         when:
-        consumer.handleDelivery(null, null, null, body.bytes)
+        consumer.handleDelivery(null, ENVELOPE, null, body.bytes)
 
         then:
         result.isDone()
@@ -0,0 +1,116 @@
+package com.geneea.celery.backends.redis
+
+import com.google.common.util.concurrent.MoreExecutors
+import groovy.json.JsonSlurper
+import com.geneea.celery.WorkerException
+import redis.clients.jedis.Jedis
+import redis.clients.jedis.JedisPool
+import redis.clients.jedis.JedisPubSub
+import redis.clients.jedis.Pipeline
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+
+class RedisBackendTest extends Specification {
+
+    def pool = Mock(JedisPool)
+    def jedis = Mock(Jedis)
+    def pipeline = Mock(Pipeline)
+
+    def setup() {
+        pool.getResource() >> jedis
+        jedis.pipelined() >> pipeline
+    }
+
+    def "Backend should store and publish the result"() {
+        def backend = new RedisBackend(pool, 60, MoreExecutors.directExecutor())
+        def stored
+        def published
+
+        when:
+        backend.reportResult("id1", "client", "id1", [a: 1])
+
+        then:
+        1 * pipeline.setex("celery-task-meta-id1", 60, { stored = new JsonSlurper().parseText(it) })
+        1 * pipeline.publish("celery-task-meta-id1", { published = new JsonSlurper().parseText(it) })
+        1 * pipeline.sync()
+        stored == published
+        stored.status == "SUCCESS"
+        stored.task_id == "id1"
+        stored.result == [a: 1]
+    }
+
+    def "Backend should store the exception"() {
+        def backend = new RedisBackend(pool, 60, MoreExecutors.directExecutor())
+        def stored
+
+        when:
+        backend.reportException("id1", "client", "id1", new IllegalStateException("bad"))
+
+        then:
+        1 * pipeline.setex("celery-task-meta-id1", 60, { stored = new JsonSlurper().parseText(it) })
+        stored.status == "FAILURE"
+        stored.result == [exc_type: "IllegalStateException", exc_message: "bad"]
+    }
+
+    def consumer() {
+        // The consumer starts by subscribing to the client channel in its own thread.
+        jedis.subscribe(_, _) >> { JedisPubSub pubSub, String[] channels -> pubSub.onSubscribe(channels[0], 1) }
+        def consumer = Spy(RedisResultConsumer, constructorArgs: [pool, "client", MoreExecutors.directExecutor()])
+        consumer.subscribe(_) >> {}
+        consumer.unsubscribe(_) >> {}
+        return consumer
+    }
+
+    def "Consumer should complete the future from the published result"() {
+        def consumer = consumer()
+        jedis.get("celery-task-meta-id1") >> null
+
+        when:
+        def result = consumer.getResult("id1")
+        consumer.onSubscribe("celery-task-meta-id1", 2)
+
+        then:
+        !result.done
+
+        when:
+        consumer.onMessage("celery-task-meta-id1", '{"status": "STARTED", "task_id": "id1"}')
+
+        then:
+        !result.done
+
+        when:
+        consumer.onMessage("celery-task-meta-id1",
+                '{"status": "SUCCESS", "result": 3, "task_id": "id1", "date_done": "2020-01-01T00:00:00"}')
+
+        then:
+        result.get() == 3
+    }
+
+    def "Consumer should pick up the result stored before subscribing"() {
+        def consumer = consumer()
+        jedis.get("celery-task-meta-id1") >> '{"status": "SUCCESS", "result": [1], "task_id": "id1"}'
+
+        when:
+        def result = consumer.getResult("id1")
+        consumer.onSubscribe("celery-task-meta-id1", 2)
+
+        then:
+        result.get() == [1]
+    }
+
+    def "Consumer should report the task exception"() {
+        def consumer = consumer()
+
+        when:
+        def result = consumer.getResult("id1")
+        consumer.onMessage("celery-task-meta-id1",
+                '{"status": "FAILURE", "task_id": "id1", "result": {"exc_type": "ValueError", "exc_message": ["x"]}}')
+        result.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message == "ValueError([x])"
+    }
+}
@@ -0,0 +1,66 @@
+package com.geneea.celery.blobstores.file
+
+import com.geneea.celery.blobstores.CeleryBlobStores
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class FileBlobStoreTest extends Specification {
+
+    def Path directory
+
+    def setup() {
+        directory = Files.createTempDirectory("celery-blobs")
+    }
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "Blob store should keep the data until deleted"() {
+        def store = CeleryBlobStores.create(scheme + "://" + directory.toUri().path)
+        def data = ("Lorem ipsum dolor sit amet. " * 1000).bytes
+
+        when:
+        def key = store.put(data)
+        def buffer = store.get(key)
+        def read = new byte[buffer.remaining()]
+        buffer.get(read)
+
+        then:
+        store.class == storeClass
+        read == data
+        Files.exists(directory.resolve(key))
+
+        when:
+        store.delete(key)
+
+        then:
+        !Files.exists(directory.resolve(key))
+
+        when:
+        store.get(key)
+
+        then:
+        thrown(IOException)
+
+        where:
+        scheme | storeClass
+        "file" | FileBlobStore
+        "mmap" | MappedBlobStore
+    }
+
+    def "Blob store should refuse keys outside its directory"() {
+        def store = new FileBlobStore(directory)
+
+        when:
+        store.get(key)
+
+        then:
+        thrown(IOException)
+
+        where:
+        key << ["../etc/passwd", "/etc/passwd", "a/b", ""]
+    }
+}
@@ -0,0 +1,88 @@
+package com.geneea.celery.brokers.memory
+
+import spock.lang.Specification
+import spock.lang.Timeout
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class BoundedQueueTest extends Specification {
+
+    def "Queue should refuse items over its capacity"() {
+        def queue = new BoundedQueue<Integer>(2)
+
+        expect:
+        queue.offer(1)
+        queue.offer(2)
+        !queue.offer(3)
+        queue.size() == 2
+
+        queue.poll() == 1
+        queue.offer(3)
+        queue.poll() == 2
+        queue.poll() == 3
+        queue.poll() == null
+    }
+
+    @Timeout(10)
+    def "Put should wait for space and take for an item"() {
+        def queue = new BoundedQueue<Integer>(1)
+        def executor = Executors.newSingleThreadExecutor()
+
+        when:
+        queue.put(1)
+        def put = executor.submit({ queue.put(2) } as Runnable)
+        sleep(100)
+
+        then:
+        !put.done
+
+        when:
+        def first = queue.take()
+        put.get(5, TimeUnit.SECONDS)
+
+        then:
+        first == 1
+        queue.take() == 2
+
+        when:
+        def take = executor.submit({ queue.take() } as java.util.concurrent.Callable)
+        sleep(100)
+
+        then:
+        !take.done
+
+        when:
+        queue.put(3)
+
+        then:
+        take.get(5, TimeUnit.SECONDS) == 3
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    @Timeout(30)
+    def "Queue should pass all items between many producers and consumers"() {
+        def queue = new BoundedQueue<Integer>(16)
+        def executor = Executors.newFixedThreadPool(8)
+        def received = ConcurrentHashMap.newKeySet()
+
+        when:
+        def consumers = (0..<4).collect {
+            executor.submit({ 10000.times { received.add(queue.take()) } } as Runnable)
+        }
+        def producers = (0..<4).collect { p ->
+            executor.submit({ 10000.times { queue.put(p * 10000 + it) } } as Runnable)
+        }
+        (producers + consumers)*.get(20, TimeUnit.SECONDS)
+
+        then:
+        received.size() == 40000
+        queue.size() == 0
+
+        cleanup:
+        executor.shutdownNow()
+    }
+}
@@ -2,10 +2,14 @@ package com.geneea.celery.brokers.rabbit
 
 import com.rabbitmq.client.BasicProperties
 import com.rabbitmq.client.Channel
+import com.rabbitmq.client.ConfirmListener
 import com.geneea.celery.spi.Message
 import spock.genesis.Gen
 import spock.lang.Specification
 
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
 class RabbitBrokerTest extends Specification {
 
     def Channel channel
@@ -22,7 +26,7 @@ class RabbitBrokerTest extends Specification {
 
         when:
         message.setBody(body)
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", _, body);
@@ -32,11 +36,36 @@ class RabbitBrokerTest extends Specification {
 
     }
 
+    def "it should set the priority"() {
+
+        when:
+        message.send("celery")
+        message.setPriority(7)
+        message.send("celery")
+
+        then:
+        1 * channel.basicPublish("", "celery", { it.priority == 0 }, _)
+
+        then:
+        1 * channel.basicPublish("", "celery", { it.priority == 7 }, _)
+    }
+
+    def "it should declare a queue with priorities"() {
+
+        when:
+        broker.declareQueue("plain")
+        broker.declareQueue("prioritized", 10)
+
+        then:
+        1 * channel.queueDeclare("plain", true, false, false, null)
+        1 * channel.queueDeclare("prioritized", true, false, false, ["x-max-priority": 10])
+    }
+
     def "it should set content encoding"() {
 
         when:
         message.setContentEncoding(enc)
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { it.contentEncoding == enc }, _);
@@ -49,7 +78,7 @@ class RabbitBrokerTest extends Specification {
 
         when:
         message.setContentType(cType)
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { it.contentType == cType }, _);
@@ -64,7 +93,7 @@ class RabbitBrokerTest extends Specification {
         when:
         message.headers.replyTo = clientId
         message.headers.id = messageId
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { props = it }, _);
@@ -78,7 +107,7 @@ class RabbitBrokerTest extends Specification {
     def "it should set task id as correlation id"() {
         when:
         message.headers.id = messageId
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { it.correlationId == messageId }, _);
@@ -91,7 +120,7 @@ class RabbitBrokerTest extends Specification {
         def BasicProperties props
 
         when:
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { props = it }, _);
@@ -107,7 +136,7 @@ class RabbitBrokerTest extends Specification {
         message.body = ("[[" + args + "]], {}, {}").getBytes("utf-8")
         message.headers.id = id
         message.headers.origin = clientName
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { props = it }, _);
@@ -142,7 +171,7 @@ class RabbitBrokerTest extends Specification {
         when:
         message.headers.origin = clientId
         message.headers.id = messageId
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { props = it }, _);
@@ -170,7 +199,7 @@ class RabbitBrokerTest extends Specification {
         when:
         message.headers.id = messageId
         message.headers.taskName = task
-        message.send()
+        message.send("celery")
 
         then:
         1 * channel.basicPublish("", "celery", { props = it }, _);
@@ -180,4 +209,212 @@ class RabbitBrokerTest extends Specification {
         messageId << (0..5).collect({UUID.randomUUID().toString()})
         task << Gen.these("x.y.z.SomeClass#method", "Cls#method", "xyz").then(Gen.string(50)).take(6)
     }
+
+    def "it should publish a batch back-to-back and wait for confirms once"() {
+        def messages = (1..5).collect { broker.newMessage() }
+
+        when:
+        broker.sendAll("celery", messages, true)
+
+        then:
+        1 * channel.confirmSelect()
+
+        then:
+        5 * channel.basicPublish("", "celery", _, _)
+
+        then:
+        1 * channel.waitForConfirmsOrDie()
+    }
+
+    def "it should not wait for confirms of a batch unless asked"() {
+        def messages = (1..3).collect { broker.newMessage() }
+
+        when:
+        broker.sendAll("celery", messages, false)
+
+        then:
+        3 * channel.basicPublish("", "celery", _, _)
+        0 * channel.confirmSelect()
+        0 * channel.waitForConfirmsOrDie()
+    }
+}
+
+class RabbitBrokerPoolTest extends Specification {
+
+    def "it should spread publishing threads over the channels"() {
+        def channels = (1..2).collect { Mock(Channel.class) }
+        def broker = new RabbitBroker(channels)
+        def published = [0, 0]
+
+        when:
+        (1..4).collect {
+            Thread.start { broker.newMessage().send("celery") }
+        }*.join()
+
+        then:
+        _ * channels[0].basicPublish("", "celery", _, _) >> { published[0]++ }
+        _ * channels[1].basicPublish("", "celery", _, _) >> { published[1]++ }
+        published.sum() == 4
+        published.every { it > 0 }
+    }
+
+    def "it should keep a thread on the same channel"() {
+        def channels = (1..3).collect { Mock(Channel.class) }
+        def broker = new RabbitBroker(channels)
+
+        when:
+        (1..5).each { broker.newMessage().send("celery") }
+
+        then:
+        5 * channels[(int) (Thread.currentThread().id % 3)].basicPublish("", "celery", _, _)
+        0 * _.basicPublish(*_)
+    }
+}
+
+class RabbitBrokerConfirmTest extends Specification {
+
+    def Channel channel
+    def ConfirmListener confirmListener
+    def RabbitBroker broker
+    def long seqNo = 1
+
+    def setup() {
+        channel = Mock(Channel.class)
+        channel.addConfirmListener(_) >> { confirmListener = it[0] }
+        channel.getNextPublishSeqNo() >> { seqNo }
+        channel.basicPublish(*_) >> { seqNo++ }
+        broker = new RabbitBroker(channel, 2)
+    }
+
+    def "it should complete the confirmations when acked"() {
+        def confirmations
+
+        when:
+        confirmations = (1..2).collect { broker.newMessage().sendAsync("celery") }
+
+        then:
+        confirmations.every { !it.isDone() }
+
+        when:
+        confirmListener.handleAck(1, false)
+
+        then:
+        confirmations[0].isDone()
+        !confirmations[1].isDone()
+
+        when:
+        confirmListener.handleAck(2, true)
+
+        then:
+        confirmations.every { it.isDone() && !it.isCompletedExceptionally() }
+    }
+
+    def "it should complete all the previous confirmations on a multiple ack"() {
+        def confirmations
+
+        when:
+        confirmations = (1..2).collect { broker.newMessage().sendAsync("celery") }
+        confirmListener.handleAck(2, true)
+
+        then:
+        confirmations.every { it.isDone() && !it.isCompletedExceptionally() }
+    }
+
+    def "it should fail the confirmation when nacked"() {
+        def confirmation = broker.newMessage().sendAsync("celery")
+
+        when:
+        confirmListener.handleNack(1, false)
+        confirmation.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+    }
+
+    def "a full window should hold up only the publishers waiting for it"() {
+        (1..2).each { broker.newMessage().sendAsync("celery") }
+        def sent = false
+
+        when:
+        Thread.start {
+            broker.newMessage().sendAsync("celery")
+            sent = true
+        }
+        sleep(100)
+        broker.declareQueue("other")
+
+        then:
+        !sent
+        1 * channel.queueDeclare("other", true, false, false, null)
+
+        when:
+        confirmListener.handleAck(1, false)
+        sleep(100)
+
+        then:
+        sent
+    }
+
+    def "a batch larger than the window should go out in parts"() {
+        def messages = (1..5).collect { broker.newMessage() }
+        def sent = false
+
+        when:
+        Thread.start {
+            broker.sendAll("celery", messages, false)
+            sent = true
+        }
+        sleep(100)
+
+        then:
+        !sent
+
+        when:
+        (1..4).each {
+            confirmListener.handleAck(it, false)
+            sleep(20)
+        }
+        sleep(100)
+
+        then:
+        sent
+    }
+
+    def "it should wait for confirmation of a batch"() {
+        def messages = (1..2).collect { broker.newMessage() }
+        def sent = false
+
+        when:
+        Thread.start {
+            broker.sendAll("celery", messages, true)
+            sent = true
+        }
+        sleep(100)
+
+        then:
+        !sent
+
+        when:
+        confirmListener.handleAck(2, true)
+        sleep(100)
+
+        then:
+        sent
+        0 * channel.waitForConfirmsOrDie()
+    }
+
+    def "the factory should refuse a window of no unconfirmed messages"() {
+        when:
+        new RabbitBrokerFactory().createBroker(
+                new URI("amqp://localhost/%2F?confirm_publish=true&max_unconfirmed=$maxUnconfirmed"),
+                Executors.newSingleThreadExecutor())
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "The number of unconfirmed messages must be positive, got $maxUnconfirmed"
+
+        where:
+        maxUnconfirmed << [0, -1]
+    }
 }
@@ -0,0 +1,144 @@
+package com.geneea.celery.brokers.redis
+
+import groovy.json.JsonSlurper
+import redis.clients.jedis.Jedis
+import redis.clients.jedis.JedisPool
+import redis.clients.jedis.Pipeline
+import redis.clients.jedis.exceptions.JedisConnectionException
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class RedisBrokerTest extends Specification {
+
+    def pool = Mock(JedisPool)
+    def jedis = Mock(Jedis)
+    def pipeline = Mock(Pipeline)
+    def broker
+
+    def setup() {
+        pool.getResource() >> jedis
+        jedis.pipelined() >> pipeline
+        broker = new RedisBroker(pool)
+    }
+
+    def cleanup() {
+        broker.close()
+    }
+
+    def "Message should be in the kombu format"() {
+        def message = broker.newMessage()
+
+        when:
+        message.setBody("[[1, 2], {}, {}]".bytes)
+        message.setContentEncoding("utf-8")
+        message.setContentType("application/json")
+        message.headers.setId("id1")
+        message.headers.setTaskName("tasks.add")
+        message.headers.setReplyTo("client")
+        def json = new JsonSlurper().parseText(message.toJson("celery"))
+
+        then:
+        new String(json.body.decodeBase64()) == "[[1, 2], {}, {}]"
+        json["content-encoding"] == "utf-8"
+        json["content-type"] == "application/json"
+        json.headers.id == "id1"
+        json.headers.task == "tasks.add"
+        json.headers.lang == "py"
+        json.properties.correlation_id == "id1"
+        json.properties.reply_to == "client"
+        json.properties.body_encoding == "base64"
+        json.properties.delivery_info == [exchange: "", routing_key: "celery"]
+        json.properties.delivery_tag != null
+    }
+
+    def "Messages should be pushed in a pipeline"() {
+        def messages = (1..3).collect {
+            def message = broker.newMessage()
+            message.setBody("[[$it], {}, {}]".bytes)
+            message
+        }
+
+        when:
+        broker.sendAll("celery", messages, true)
+
+        then:
+        (1..3) * pipeline.lpush("celery", _)
+        (1..3) * pipeline.sync()
+    }
+
+    def "Send should wait for Redis"() {
+        when:
+        broker.newMessage().send("celery")
+
+        then:
+        1 * pipeline.lpush("celery", _)
+
+        then:
+        1 * pipeline.sync()
+    }
+
+    def "Failed push should fail the send"() {
+        pipeline.sync() >> { throw new JedisConnectionException("down") }
+
+        when:
+        broker.newMessage().sendAsync("celery").get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+    }
+
+    def "Unexpected failure of a push should fail the send too"() {
+        pipeline.sync() >> { throw new IllegalStateException("broken") }
+
+        when:
+        broker.newMessage().sendAsync("celery").get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+        e.cause.cause instanceof IllegalStateException
+
+        when: "the publisher should survive it"
+        broker.newMessage().sendAsync("celery").get(5, TimeUnit.SECONDS)
+
+        then:
+        thrown(ExecutionException)
+    }
+
+    def "Close should stop the publisher and close the pool"() {
+        when:
+        broker.close()
+
+        then:
+        1 * pool.close()
+        !Thread.allStackTraces.keySet().any { it.name == "celery-redis-publisher" && it.alive }
+
+        when:
+        broker.newMessage().sendAsync("celery").get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+    }
+
+    def "Take should decode the popped message"() {
+        jedis.brpop(1, "celery") >> ["celery", '{"body": "W10=", "properties": {"reply_to": "c"}, "unknown": 1}']
+
+        when:
+        def message = broker.take("celery", 1)
+
+        then:
+        message.body == "W10="
+        message.@properties.replyTo == "c"
+    }
+
+    def "Take should return null on timeout"() {
+        jedis.brpop(1, "celery") >> null
+
+        expect:
+        broker.take("celery", 1) == null
+    }
+}
@@ -0,0 +1,59 @@
+package com.geneea.celery.metrics
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class MicrometerMetricsTest extends Specification {
+
+    def registry = new SimpleMeterRegistry()
+    def metrics = new MicrometerMetrics(registry)
+
+    def "Submissions should be timed and the published tasks counted"() {
+        when:
+        metrics.submitted(1, 1_000_000)
+        metrics.submitted(10, 3_000_000)
+
+        then:
+        registry.get("celery.client.submit").timer().count() == 2
+        registry.get("celery.client.submit").timer().totalTime(TimeUnit.MILLISECONDS) == 4
+        registry.get("celery.client.published").counter().count() == 11
+    }
+
+    def "Tasks should be timed by name and outcome"() {
+        when:
+        metrics.executed("a", 1_000_000, false)
+        metrics.executed("a", 2_000_000, false)
+        metrics.executed("a", 5_000_000, true)
+        metrics.executed("b", 1_000_000, false)
+
+        then:
+        registry.get("celery.worker.task").tags("task", "a", "outcome", "success").timer().count() == 2
+        registry.get("celery.worker.task").tags("task", "a", "outcome", "failure").timer().count() == 1
+        registry.get("celery.worker.task").tags("task", "b").timer().count() == 1
+    }
+
+    def "Queue wait should be timed by task and never be negative"() {
+        when:
+        metrics.received("a", 50)
+        metrics.received("a", -3)
+
+        then:
+        def timer = registry.get("celery.worker.queue.wait").tags("task", "a").timer()
+        timer.count() == 2
+        timer.totalTime(TimeUnit.MILLISECONDS) == 50
+    }
+
+    def "Each worker should have gauges of its own"() {
+        when:
+        metrics.workerStarted({ 3 }, { 10 })
+        metrics.workerStarted({ 1 }, { 20 })
+        System.gc()
+
+        then:
+        registry.get("celery.worker.in_flight").tags("worker", "0").gauge().value() == 3
+        registry.get("celery.worker.in_flight").tags("worker", "1").gauge().value() == 1
+        registry.get("celery.worker.prefetch").tags("worker", "1").gauge().value() == 20
+    }
+}
@@ -0,0 +1,141 @@
+package com.geneea.celery.reactive
+
+import com.geneea.celery.Celery
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class ResultPublisherTest extends Specification {
+
+    def "Publisher should emit the results as they arrive, honoring the demand"() {
+        def futures = (1..3).collect { new CompletableFuture<Integer>() }
+        def subscriber = new RecordingSubscriber()
+
+        when:
+        ResultPublisher.of(futures.collect { new TestResult<>(it) }).subscribe(subscriber)
+        subscriber.subscription.request(2)
+        futures[2].complete(3)
+        futures[0].complete(1)
+        futures[1].complete(2)
+
+        then:
+        subscriber.values() == [3, 1]
+        !subscriber.completed
+
+        when:
+        subscriber.subscription.request(5)
+
+        then:
+        subscriber.values() == [3, 1, 2]
+        subscriber.completed
+    }
+
+    def "Failed and null results should be emitted as well"() {
+        def failed = new CompletableFuture<Integer>()
+        failed.completeExceptionally(new RuntimeException("Bad"))
+        def subscriber = new RecordingSubscriber()
+
+        when:
+        ResultPublisher.of([new TestResult<>(failed), new TestResult<>(CompletableFuture.completedFuture(null))])
+                .subscribe(subscriber)
+        subscriber.subscription.request(Long.MAX_VALUE)
+
+        then:
+        subscriber.results.size() == 2
+        subscriber.results[1].get() == null
+        subscriber.completed
+
+        when:
+        subscriber.results[0].get()
+
+        then:
+        thrown(ExecutionException)
+    }
+
+    def "Cancelled subscription should receive no more results"() {
+        def future = new CompletableFuture<Integer>()
+        def subscriber = new RecordingSubscriber()
+
+        when:
+        ResultPublisher.of([new TestResult<>(future)]).subscribe(subscriber)
+        subscriber.subscription.request(1)
+        subscriber.subscription.cancel()
+        future.complete(1)
+
+        then:
+        subscriber.results.empty
+        !subscriber.completed
+    }
+
+    def "Non-positive request should end the stream with an error"() {
+        def subscriber = new RecordingSubscriber()
+
+        when:
+        ResultPublisher.of([new TestResult<>(new CompletableFuture<Integer>())]).subscribe(subscriber)
+        subscriber.subscription.request(0)
+
+        then:
+        subscriber.error instanceof IllegalArgumentException
+    }
+
+    def "Publisher of no results should complete right away"() {
+        def subscriber = new RecordingSubscriber()
+
+        when:
+        ResultPublisher.of([]).subscribe(subscriber)
+
+        then:
+        subscriber.completed
+    }
+}
+
+class RecordingSubscriber implements Subscriber<Celery.AsyncResult<Integer>> {
+    Subscription subscription
+    List<Celery.AsyncResult<Integer>> results = []
+    boolean completed
+    Throwable error
+
+    List<Integer> values() {
+        return results*.get()
+    }
+
+    @Override
+    void onSubscribe(Subscription s) {
+        subscription = s
+    }
+
+    @Override
+    void onNext(Celery.AsyncResult<Integer> result) {
+        results << result
+    }
+
+    @Override
+    void onError(Throwable t) {
+        error = t
+    }
+
+    @Override
+    void onComplete() {
+        completed = true
+    }
+}
+
+class TestResult<T> implements Celery.AsyncResult<T> {
+    final CompletableFuture<T> future
+
+    TestResult(CompletableFuture<T> future) {
+        this.future = future
+    }
+
+    boolean isDone() { future.isDone() }
+
+    T get() { future.get() }
+
+    T get(long timeout, TimeUnit unit) { future.get(timeout, unit) }
+
+    CompletableFuture<T> toCompletableFuture() { future }
+}
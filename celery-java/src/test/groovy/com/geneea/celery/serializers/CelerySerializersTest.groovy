@@ -0,0 +1,59 @@
+package com.geneea.celery.serializers
+
+import spock.lang.Specification
+
+class CelerySerializersTest extends Specification {
+
+    def "Serializers should be found by name and content type"() {
+        when:
+        def serializer = CelerySerializers.forName(name)
+
+        then:
+        serializer.contentType == contentType
+        serializer.contentEncoding == contentEncoding
+        CelerySerializers.forContentType(contentType).is(serializer)
+
+        where:
+        name      | contentType             | contentEncoding
+        "json"    | "application/json"      | "utf-8"
+        "msgpack" | "application/x-msgpack" | "binary"
+    }
+
+    def "Messages without a content type should be JSON"() {
+        expect:
+        CelerySerializers.forContentType(null).name == "json"
+    }
+
+    def "Unknown serializers should be refused"() {
+        when:
+        CelerySerializers.forName("pickle")
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        CelerySerializers.forContentType("application/x-python-serialize")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "Msgpack should round-trip the data"() {
+        def mapper = CelerySerializers.forName("msgpack").mapper
+        def data = [[1, "two", 3.5d, null, [a: true]], [:]]
+
+        when:
+        def bytes = mapper.writeValueAsBytes(data)
+
+        then:
+        mapper.readValue(bytes, List) == data
+    }
+
+    def "Msgpack should read what Python's msgpack.packb writes"() {
+        // msgpack.packb([[1, 2], {}, {}])
+        def packed = [0x93, 0x92, 0x01, 0x02, 0x80, 0x80] as byte[]
+
+        expect:
+        CelerySerializers.forName("msgpack").mapper.readValue(packed, List) == [[1, 2], [:], [:]]
+    }
+}
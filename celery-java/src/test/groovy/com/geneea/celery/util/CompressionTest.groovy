@@ -0,0 +1,51 @@
+package com.geneea.celery.util
+
+import spock.lang.Specification
+
+class CompressionTest extends Specification {
+
+    def "Compression should round-trip the data"() {
+        def compression = Compression.forName(name)
+        def data = ("Lorem ipsum dolor sit amet. " * 1000).bytes
+
+        when:
+        def compressed = compression.compress(data)
+
+        then:
+        compressed.length < data.length / 10
+        Compression.decompress(compression.contentType, compressed) == data
+        compression.contentType == contentType
+
+        where:
+        name   | contentType
+        "zlib" | "application/x-gzip"
+        "lz4"  | "application/x-lz4"
+        "zstd" | "application/zstd"
+    }
+
+    def "Zlib should read what Python's zlib.compress writes"() {
+        // zlib.compress(b"hello")
+        def compressed = [0x78, 0x9c, 0xcb, 0x48, 0xcd, 0xc9, 0xc9, 0x07, 0x00, 0x06, 0x2c, 0x02, 0x15] as byte[]
+
+        expect:
+        new String(Compression.decompress("application/x-gzip", compressed), "utf-8") == "hello"
+    }
+
+    def "Uncompressed body should be left as it is"() {
+        def body = "[]".bytes
+
+        expect:
+        Compression.decompress(null, body).is(body)
+    }
+
+    def "Unknown or corrupted compression should fail"() {
+        when:
+        Compression.decompress(contentType, "not compressed".bytes)
+
+        then:
+        thrown(IOException)
+
+        where:
+        contentType << ["application/x-unknown", "application/x-gzip"]
+    }
+}
@@ -0,0 +1,57 @@
+package com.geneea.celery.util
+
+import spock.lang.Specification
+
+class QueueShardsTest extends Specification {
+
+    def "A single shard should be the queue itself"() {
+        def shards = new QueueShards("celery", 1)
+
+        expect:
+        shards.queues == ["celery"]
+        shards.forKey("a") == "celery"
+        shards.forKey(null) == "celery"
+    }
+
+    def "Tasks without a key should go to the shards in turn"() {
+        def shards = new QueueShards("q", 3)
+
+        expect:
+        shards.queues == ["q.0", "q.1", "q.2"]
+        (1..6).collect { shards.forKey(null) } == ["q.0", "q.1", "q.2", "q.0", "q.1", "q.2"]
+    }
+
+    def "Keys should be spread evenly and always go to the same shard"() {
+        def shards = new QueueShards("q", 8)
+        def keys = (1..8000).collect { "key-$it".toString() }
+
+        when:
+        def counts = keys.countBy { shards.forKey(it) }
+
+        then:
+        counts.size() == 8
+        counts.values().every { it > 800 && it < 1200 }
+        keys.every { shards.forKey(it) == new QueueShards("q", 8).forKey(it) }
+    }
+
+    def "Adding a shard should move only its share of the keys"() {
+        def before = new QueueShards("q", 8)
+        def after = new QueueShards("q", 9)
+        def keys = (1..9000).collect { "key-$it".toString() }
+
+        when:
+        def moved = keys.findAll { before.forKey(it) != after.forKey(it) }
+
+        then:
+        moved.every { after.forKey(it) == "q.8" }
+        moved.size() > 800 && moved.size() < 1200
+    }
+
+    def "The number of shards should be positive"() {
+        when:
+        new QueueShards("q", 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
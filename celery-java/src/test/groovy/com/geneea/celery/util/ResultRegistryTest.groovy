@@ -0,0 +1,101 @@
+package com.geneea.celery.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class ResultRegistryTest extends Specification {
+
+    def "Registry should complete the future and forget it"() {
+        def registry = new ResultRegistry(1, TimeUnit.HOURS)
+        def taskId = UUID.randomUUID().toString()
+
+        when:
+        def future = registry.register(taskId)
+
+        then:
+        registry.register(taskId).is(future)
+        registry.size() == 1
+
+        when:
+        def waitedFor = registry.complete(taskId, 42)
+
+        then:
+        waitedFor
+        future.get() == 42
+        registry.size() == 0
+    }
+
+    def "Registry should drop the results no one waits for"() {
+        def registry = new ResultRegistry(1, TimeUnit.HOURS)
+
+        expect:
+        !registry.complete(UUID.randomUUID().toString(), 1)
+        !registry.fail("not-an-uuid", new RuntimeException())
+        registry.size() == 0
+    }
+
+    def "Registry should fail the future with the exception"() {
+        def registry = new ResultRegistry(1, TimeUnit.HOURS)
+        def future = registry.register("not-an-uuid")
+        def exception = new RuntimeException("Bad")
+
+        when:
+        registry.fail("not-an-uuid", exception)
+        future.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause.is(exception)
+        registry.size() == 0
+    }
+
+    def "Cancelled future should leave the registry"() {
+        def registry = new ResultRegistry(1, TimeUnit.HOURS)
+        def taskId = UUID.randomUUID().toString()
+        def future = registry.register(taskId)
+
+        when:
+        future.cancel(false)
+
+        then:
+        registry.size() == 0
+        !registry.complete(taskId, 1)
+
+        when:
+        future.get()
+
+        then:
+        thrown(CancellationException)
+    }
+
+    def "Stale future should expire"() {
+        def registry = new ResultRegistry(100, TimeUnit.MILLISECONDS)
+        def future = registry.register(UUID.randomUUID().toString())
+
+        when:
+        future.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof TimeoutException
+        registry.size() == 0
+    }
+
+    def "Task IDs should be the same keys exactly when the strings are equal"() {
+        expect:
+        (ResultRegistry.key(a) == ResultRegistry.key(b)) == (a == b)
+
+        where:
+        a                                      | b
+        "0f8fad5b-d9cb-469f-a165-70867728950e" | "0f8fad5b-d9cb-469f-a165-70867728950e"
+        "0f8fad5b-d9cb-469f-a165-70867728950e" | "0f8fad5b-d9cb-469f-a165-70867728950f"
+        "0f8fad5b-d9cb-469f-a165-70867728950e" | "0F8FAD5B-D9CB-469F-A165-70867728950E"
+        "ffffffff-ffff-ffff-ffff-ffffffffffff" | "ffffffff-ffff-ffff-ffff-fffffffffffe"
+        "0f8fad5b-d9cb-469f-a165-70867728950e" | "0f8fad5bd9cb-469f-a165-70867728950e-"
+        "task-1"                               | "task-1"
+    }
+}
@@ -0,0 +1,26 @@
+package com.geneea.celery.util
+
+import spock.lang.Specification
+
+import java.time.Instant
+
+class TimestampsTest extends Specification {
+
+    def "Times should be written as Python writes them"() {
+        expect:
+        Timestamps.format(Instant.parse("2024-05-01T10:00:00.123456Z")) == "2024-05-01T10:00:00.123456+00:00"
+        Timestamps.format(Instant.parse("2024-05-01T10:00:00Z")) == "2024-05-01T10:00:00.000000+00:00"
+    }
+
+    def "Times should be read with or without an offset"() {
+        expect:
+        Timestamps.parse(text) == Instant.parse("2024-05-01T10:00:00.123456Z")
+
+        where:
+        text << [
+                "2024-05-01T10:00:00.123456+00:00",
+                "2024-05-01T12:00:00.123456+02:00",
+                "2024-05-01T10:00:00.123456Z",
+                "2024-05-01T10:00:00.123456"]
+    }
+}
@@ -0,0 +1,62 @@
+package com.geneea.celery.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class TimingWheelTest extends Specification {
+
+    def wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 8)
+
+    def cleanup() {
+        wheel.close()
+    }
+
+    def "Wheel should run the timeouts in the order of their deadlines, also after more turns"() {
+        def order = new ConcurrentLinkedQueue<Integer>()
+        def done = new CountDownLatch(3)
+        def start = System.nanoTime()
+
+        when:
+        [250, 30, 120].each { delay ->
+            wheel.schedule({ order << delay; done.countDown() }, delay, TimeUnit.MILLISECONDS)
+        }
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        order as List == [30, 120, 250]
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250
+    }
+
+    def "Cancelled timeout should not run"() {
+        def ran = new CountDownLatch(1)
+        def done = new CountDownLatch(1)
+
+        when:
+        def timeout = wheel.schedule({ ran.countDown() }, 50, TimeUnit.MILLISECONDS)
+        def cancelled = timeout.cancel()
+        wheel.schedule({ done.countDown() }, 100, TimeUnit.MILLISECONDS)
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        cancelled
+        ran.count == 1
+        !timeout.expired
+        !timeout.cancel()
+    }
+
+    def "Expired timeout can't be cancelled"() {
+        def done = new CountDownLatch(1)
+
+        when:
+        def timeout = wheel.schedule({ done.countDown() }, 0, TimeUnit.MILLISECONDS)
+        done.await(5, TimeUnit.SECONDS)
+        sleep(20)
+
+        then:
+        timeout.expired
+        !timeout.cancel()
+    }
+}
@@ -0,0 +1,57 @@
+package com.geneea.examples
+
+import org.junit.Rule
+import com.geneea.celery.Celery
+import com.geneea.celery.RedisWorker
+import com.geneea.celery.WorkerException
+import com.geneea.celery.examples.BadTaskProxy
+import com.geneea.celery.examples.TestTask
+import com.geneea.celery.examples.TestTaskProxy
+import org.testcontainers.containers.GenericContainer
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+
+class RedisTasksTest extends Specification {
+    static final int REDIS_PORT = 6379
+
+    @Rule
+    GenericContainer redis = new GenericContainer("redis:7")
+            .withExposedPorts(REDIS_PORT)
+
+    Celery client
+    RedisWorker worker
+
+    def setup() {
+        def redisUrl = "redis://${redis.getContainerIpAddress()}:${redis.getMappedPort(REDIS_PORT)}/0"
+        client = Celery.builder().brokerUri(redisUrl).backendUri(redisUrl).build()
+        worker = RedisWorker.builder().brokerUri(redisUrl).concurrency(2).build()
+    }
+
+    def cleanup() {
+        worker.close()
+    }
+
+    def "We should get the result computed by a basic task"() {
+        expect:
+        TestTaskProxy.with(client).sum(1, 2).get() == new TestTask().sum(1, 2)
+    }
+
+    def "Many tasks should be pushed and completed"() {
+        when:
+        def results = (1..100).collect { TestTaskProxy.with(client).sum(it, 1) }
+
+        then:
+        results.withIndex().every { r, i -> r.get() == i + 2 }
+    }
+
+    def "The task throwing an exception should report it"() {
+        when:
+        BadTaskProxy.with(client).throwUncheckedException().get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message == "RuntimeException(null)"
+    }
+}